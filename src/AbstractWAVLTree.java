@@ -0,0 +1,1122 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * AbstractWAVLTree
+ *
+ * The structural core of a WAVL tree, shared by WAVLTree and the specialized tree variants:
+ * linking of new nodes, removal of nodes, the rotations and the rebalancing processes that
+ * restore the rank rules afterwards, under each of the rank policies.<br>
+ *
+ * Rebalancing only depends on the shape of the tree and on the ranks of its nodes, never on
+ * their keys, so subclasses define the node contents (keys, values, buckets of keys...) and
+ * the searches, and delegate all structural changes to this class. Nodes are never copied
+ * into one another, so a node object keeps representing the same entry for as long as it is
+ * in the tree.<br>
+ *
+ * Each node holds a size field, which is the sum of the weights of the nodes in its subtree.
+ * The weight of a node is 1 by default. Subclasses that keep more than one entry per node,
+ * or none, as a tombstone does, override weight, and those that maintain other subtree
+ * aggregates override update, which every structural change calls on the nodes whose
+ * subtrees it changed.<br>
+ *
+ * CompactWAVLTree is the only variant with a core of its own: its nodes have no parent
+ * pointers and store rank differences instead of ranks, so they do not fit Node.
+ *
+ * @param <N>   the node type of the tree
+ */
+public abstract class AbstractWAVLTree<N extends AbstractWAVLTree.Node<N>> {
+    protected N root;
+
+    /** Rank rule maintained by the rebalancing, and deletions left unbalanced under RAVL */
+    protected RankPolicy rankPolicy = RankPolicy.WAVL;
+    private int relaxedDeletions;
+
+    /** Buffers for the vertex types of the current node and its child during rebalancing */
+    private final int[] currTypeBuffer = new int[2];
+    private final int[] childTypeBuffer = new int[2];
+
+    /**
+     * The rank rule the tree maintains, which trades the height of the tree against the
+     * rebalancing work of deletions. All policies share the insertion rebalancing and the
+     * rotation primitives, and differ in the rank differences they allow and in how they
+     * rebalance after a deletion. <br>
+     *
+     * Red-black trees need no policy of their own: every WAVL tree can be colored as a
+     * red-black tree, and WAVL deletion, like red-black deletion, does at most two rotations,
+     * so WAVL is the red-black-equivalent policy, with a height of at most 2log(n) and at most
+     * log_phi(n) while no deletions are made.
+     */
+    public enum RankPolicy {
+        /**
+         * Rank differences of 1 or 2 and no (2,2) nodes, so ranks are heights and the height is
+         * at most 1.44log(n). Deletions demote and rotate up to O(logn) times.
+         */
+        AVL,
+        /** Rank differences of 1 or 2 and leaves of rank 0. Deletions do at most two rotations */
+        WAVL,
+        /**
+         * Any positive rank differences. Deletions do no rebalancing at all, and the tree is
+         * rebuilt when the deletions since the last rebuild outnumber the keys, so the height
+         * stays O(logn) at an amortized O(1) cost per deletion.
+         */
+        RAVL
+    }
+
+    /**
+     * A vertex of the tree. Subclasses add the fields holding the node contents.
+     *
+     * @param <N>   the node type of the tree
+     */
+    public static class Node<N extends Node<N>> {
+        protected N left;
+        protected N right;
+        protected N parent;
+        protected int rank;
+        protected int size = 1;
+
+        /** @return     the left child of this node, or null if it does not have one */
+        public N getLeft() { return left; }
+
+        /** @return     the right child of this node, or null if it does not have one */
+        public N getRight() { return right; }
+
+        /** @return     the parent of this node, or null if it is the root */
+        public N getParent() { return parent; }
+
+        /** @return     the rank of this node */
+        public int getRank() { return rank; }
+
+        /** @return     the sum of the weights of the nodes in the subtree of this node */
+        public int getSubtreeSize() { return size; }
+    }
+
+    /**
+     * Returns the node at the root of the tree, or null if the tree is empty.
+     *
+     * @return      the root node, or null
+     */
+    public N getRoot() {
+        return root;
+    }
+
+    /**
+     * Returns the number of entries in the tree, which is the sum of the weights of its nodes.
+     * This function runs in O(1) time.
+     *
+     * @return      the number of entries in the tree
+     */
+    public int size() {
+        return root == null ? 0 : root.size;
+    }
+
+    /**
+     * Returns true if the tree does not have any nodes in it, false otherwise.
+     *
+     * @return      true if tree is empty, otherwise false
+     */
+    public boolean empty() {
+        return root == null;
+    }
+
+    /**
+     * Sets the rank rule the tree maintains, see RankPolicy. The policy can only be changed
+     * while the tree is empty.
+     *
+     * @param policy    the rank policy
+     * @throws IllegalStateException    if the tree has nodes
+     */
+    public void setRankPolicy(RankPolicy policy) {
+        if (root != null)
+            throw new IllegalStateException("the rank policy can only be set on an empty tree");
+        this.rankPolicy = policy;
+    }
+
+    /**
+     * Returns the rank rule the tree maintains.
+     *
+     * @return      the rank policy
+     */
+    public RankPolicy getRankPolicy() {
+        return rankPolicy;
+    }
+
+    /**
+     * Returns the number of entries a node stands for. Defaults to 1.
+     *
+     * @param node      a node of the tree
+     * @return          the weight of the node
+     */
+    protected int weight(N node) {
+        return 1;
+    }
+
+    /**
+     * Recomputes the subtree fields of a node from its own fields and those of its children.
+     * Called on every node whose subtree changed, bottom-up. Subclasses maintaining other
+     * subtree aggregates override this function and call it.
+     *
+     * @param node      the node whose subtree changed
+     */
+    protected void update(N node) {
+        node.size = weight(node) +
+                (node.left == null ? 0 : node.left.size) +
+                (node.right == null ? 0 : node.right.size);
+    }
+
+    /**
+     * Calls update on a node and on all of its ancestors, bottom-up. This function runs in
+     * O(h) = O(logn) time.
+     *
+     * @param node      the lowest node whose subtree changed, or null
+     */
+    protected void updatePath(N node) {
+        while (node != null) {
+            update(node);
+            node = node.parent;
+        }
+    }
+
+    /**
+     * Inserts a detached node as the root of an empty tree.
+     *
+     * @param node      the new root
+     */
+    protected void insertRoot(N node) {
+        node.left = node.right = node.parent = null;
+        node.rank = 0;
+        update(node);
+        root = node;
+    }
+
+    /**
+     * Links a detached node as a child of a node which does not have a child on that side,
+     * updates the subtree fields along the path to the root and rebalances the tree.<br>
+     *
+     * This function runs in O(h) = O(logn) time.
+     *
+     * @param parent    the parent of the new node
+     * @param node      the new node
+     * @param asLeft    true to place the node as the left child of parent, false for right
+     * @return          the number of promotions, rotations and double rotations performed
+     */
+    protected int insertChild(N parent, N node, boolean asLeft) {
+        linkLeaf(parent, node, asLeft);
+        updatePath(parent);
+        return insertionRebalance(parent);
+    }
+
+    /**
+     * Links a detached node as a leaf of rank 0 below parent, on the given side, and computes
+     * its own subtree fields, without updating those of its ancestors or rebalancing. Used by
+     * insertChild, and by insertions which keep the subtree fields up to date on their way
+     * down. This function runs in O(1) time.
+     *
+     * @param parent    the parent of the new node
+     * @param node      the new node
+     * @param asLeft    true to place the node as the left child of parent, false for right
+     */
+    protected void linkLeaf(N parent, N node, boolean asLeft) {
+        node.left = node.right = null;
+        node.parent = parent;
+        node.rank = 0;
+        if (asLeft)
+            parent.left = node;
+        else
+            parent.right = node;
+        update(node);
+    }
+
+    /**
+     * Characterizes the type of node by the rank differences with its children.<br>
+     *
+     * If the node is a unary node of a leaf, then the missing child is referred to as an external
+     * node with rank -1. The function returns a size 2 array containing the rank differences,
+     * left to right. This allows to determine the course of action during the rebalancing process.<br>
+     *
+     * The rank differences are written to a buffer supplied by the caller rather than to a new
+     * array, so that rebalancing does not allocate.<br>
+     *
+     * This function runs in O(1) time as it only requires access to pointers.
+     *
+     * @param node      the node of which the rank differences are returned
+     * @param rankDiffs a size 2 array the rank differences are written to
+     * @return          a size 2 array: array[0] - rank difference between the node
+     *                  and its left child; array[1] - rank difference between the node
+     *                  and its right child
+     */
+    private int[] vertexType(N node, int[] rankDiffs) {
+        rankDiffs[0] = node.rank - rankOf(node.left);
+        rankDiffs[1] = node.rank - rankOf(node.right);
+        return rankDiffs;
+    }
+
+    /**
+     * Receives a size 2 array of rank differences produced by the vertexType function,
+     * and checks if the vertex type is valid according to the WAVL rules. <br>
+     *
+     * Returns a boolean value - true if the vertex type is one of the following: {(1,1),
+     * (1,2), (2,1), (2,2)}, and false otherwise, implying rebalancing is required. <br>
+     *
+     * This function runs in O(1) time as it iterates on a fixed sized array.
+     *
+     * @param vType     a size 2 array of rank differences between a certain node in the tree
+     *                  and its two children
+     * @return          true if vertex type is in accordance with the WAVL invariants, false
+     *                  otherwise
+     */
+    private static boolean isValidType(int[] vType) {
+        for (int rankDiff : vType) {
+            if (rankDiff != 1 && rankDiff != 2)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the rank of a node, or -1 for a missing node.
+     */
+    protected static int rankOf(Node<?> node) {
+        return node == null ? -1 : node.rank;
+    }
+
+    /**
+     * Returns true if both rank differences of the node are 1, counting a missing child
+     * as an external leaf of rank -1.
+     */
+    protected static boolean isOneOne(Node<?> node) {
+        return node.rank - rankOf(node.left) == 1 && node.rank - rankOf(node.right) == 1;
+    }
+
+    /**
+     * Rebalances the tree after insertion. <br>
+     *
+     * Receives a tree node where a violation of the rank rules may have occurred as a result
+     * of an insertion, the parent of the new leaf, and corrects it by performing a series of
+     * rebalancing actions up the path from the given node to the root of the tree: while a
+     * node has a 0-child, it is promoted if its other child is a 1-child, and otherwise the
+     * violation is fixed by a single or double rotation, which ends the process.<br>
+     *
+     * The function runs in O(h) = O(logn) time, as it performs O(logn) promotions in the worst
+     * case and at most one rotation, each in O(1) time.
+     *
+     * @param node      the parent of the new leaf
+     * @return          number of promotions, rotations and double rotations performed
+     *                  during the rebalancing process
+     */
+    protected int insertionRebalance(N node) {
+        int counter = 0;
+        N curr = node;
+        int[] currVType = vertexType(node, currTypeBuffer);
+
+        /* A 0-child is the only violation an insertion creates, under every rank policy */
+        while (curr != null && (currVType[0] == 0 || currVType[1] == 0)) { // curr != null: Haven't reached the root yet
+
+            if (currVType[0] + currVType[1] == 1) { // (0,1), (1,0) Promotion cases
+                counter++;
+                curr.rank++;
+                curr = curr.parent;
+                if (curr != null)
+                    currVType = vertexType(curr, currTypeBuffer);
+                continue;
+            }
+            // Rotation cases
+
+            /* Under RAVL, the differences written as 2 below may be any difference of 2 or more */
+            if (currVType[0] == 0) { // Rolling up from the left
+                assert (currVType[1] >= 2); // (0,2)
+
+                int[] childVType = vertexType(curr.left, childTypeBuffer);
+
+                if (childVType[0] == 1) { // child is (1,2)
+                    counter += rotateRight(curr, true);
+                } else {
+                    assert (childVType[1] == 1); // child is (2,1)
+                    counter += doubleRotateRight(curr, true);
+                }
+
+            } else if (currVType[1] == 0) { // Rolling up from the right
+                assert (currVType[0] >= 2); // (2,0)
+
+                int[] childVType = vertexType(curr.right, childTypeBuffer);
+
+                if (childVType[1] == 1) { //child is (2,1)
+                    counter += rotateLeft(curr, true);
+                } else {
+                    assert (childVType[0] == 1); // child is (1,2)
+                    counter += doubleRotateLeft(curr, true);
+                }
+            }
+            return counter;
+        }
+        return counter;
+    }
+
+    /**
+     * Removes a node from the tree and rebalances it according to the rank policy. A binary
+     * node first trades places with its successor, so that the node removed has at most one
+     * child, which then takes its place. Under WAVL and AVL, that child is a leaf. The node
+     * object is detached and may be reused by the caller.<br>
+     *
+     * Under RAVL nothing is rebalanced, and the tree is rebuilt once the deletions since the
+     * last rebuild outnumber its entries.<br>
+     *
+     * This function runs in O(h) = O(logn) time, and O(n) time when the tree is rebuilt,
+     * which happens at most once per n deletions.
+     *
+     * @param node      the node to remove
+     * @return          the number of demotions, promotions, rotations and double rotations
+     *                  performed
+     */
+    protected int remove(N node) {
+        if (node.left != null && node.right != null) {
+            N successor = node.right;
+            while (successor.left != null)
+                successor = successor.left;
+            swapPositions(node, successor);
+        }
+
+        N parent = node.parent;
+        replaceChild(parent, node, node.left != null ? node.left : node.right);
+        node.left = node.right = node.parent = null;
+        node.rank = 0;
+        updatePath(parent);
+
+        if (rankPolicy == RankPolicy.RAVL) {
+            if (++relaxedDeletions > size())
+                rebuild();
+            return 0;
+        }
+        return rankPolicy == RankPolicy.AVL ? avlDeletionRebalance(parent) : deletionRebalance(parent);
+    }
+
+    /**
+     * Rebalances the tree after a deletion under the WAVL policy. <br>
+     *
+     * Receives the parent of the position a node was removed from, where the child on that
+     * side lost a rank, and corrects the rank rules up the path to the root: a leaf of non-zero
+     * rank is demoted, a node with a 3-child is demoted if its other child is a 2-child, both
+     * are demoted if the other child is a (2,2) node, and otherwise a single or double rotation
+     * ends the process.<br>
+     *
+     * The function runs in O(h) = O(logn) time, with O(logn) demotions in the worst case and
+     * at most one rotation, each in O(1) time.
+     *
+     * @param node      the parent of the removed node, or null if it was the root
+     * @return          number of demotions, rotations and double rotations performed
+     *                  during the rebalancing process
+     */
+    protected int deletionRebalance(N node) {
+        int counter = 0;
+        N curr = node;
+
+        if (curr == null) { // Empty tree
+            return 0;
+        }
+
+        int[] currVType = vertexType(node, currTypeBuffer);
+
+        // Check if offender is a leaf with non zero rank
+        if (curr.left == null && curr.right == null && curr.rank != 0) {
+            curr.rank = 0;
+            counter++;
+            curr = curr.parent;
+            if (curr != null)
+                currVType = vertexType(curr, currTypeBuffer);
+        }
+
+        while (curr != null && !isValidType(currVType)) {
+            counter++;
+
+            if (currVType[0] + currVType[1] == 5) { // (3,2), (2,3) Demotion Cases
+                curr.rank--;
+                curr = curr.parent;
+                if (curr != null)
+                    currVType = vertexType(curr, currTypeBuffer);
+                continue;
+            }
+
+            if (currVType[0] == 3) { // Rolling up from the right
+
+                int[] childVType = vertexType(curr.right, childTypeBuffer);
+
+                if (currVType[1] == 1 && childVType[0] + childVType[1] == 4) { // child is (2,2) - Double demote
+                    curr.rank--;
+                    curr.right.rank--;
+                    counter += 2; // Two demotions
+                    curr = curr.parent;
+                    if (curr != null)
+                        currVType = vertexType(curr, currTypeBuffer);
+                } else if (childVType[1] == 1) { // child is (1,1) or (2,1)
+                    counter += rotateLeft(curr, false);
+                    return counter;
+                } else {
+                    assert (childVType[0] == 1 && childVType[1] == 2);
+                    counter += doubleRotateLeft(curr, false);
+                    return counter;
+                }
+
+            } else if (currVType[1] == 3) { // Rolling up from the left
+
+                int[] childVType = vertexType(curr.left, childTypeBuffer);
+
+                if (currVType[0] == 1 && childVType[0] + childVType[1] == 4) { // child is (2,2) - Double demote
+                    curr.rank--;
+                    curr.left.rank--;
+                    counter += 2;
+                    curr = curr.parent;
+                    if (curr != null)
+                        currVType = vertexType(curr, currTypeBuffer);
+                } else if (childVType[0] == 1) { // child is (1,1) or (1,2)
+                    counter += rotateRight(curr, false);
+                    return counter;
+                } else {
+                    assert (childVType[0] == 2 && childVType[1] == 1);
+                    counter += doubleRotateRight(curr, false);
+                    return counter;
+                }
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Rebalances the tree after a deletion under the AVL policy, where the rank of every node
+     * is its height. Going up from the parent of the removed node, each node's rank is reset
+     * to its height, and a node whose children's heights differ by 2 is rotated: once if the
+     * outer grandchild is at least as high as the inner one, and twice otherwise. The walk
+     * stops at the first node whose height is unchanged. <br>
+     *
+     * The subtree fields on the path are refreshed once, when the node is removed, before this
+     * walk. The rotations keep the entries of the subtrees they rotate, so each only
+     * recomputes the nodes it moves, without another pass up to the root.<br>
+     *
+     * This function runs in O(h) = O(logn) time, with O(logn) rotations in the worst case,
+     * each taking O(1) time.
+     *
+     * @param node      the parent of the removed node, or null if it was the root
+     * @return          number of demotions, promotions and rotations performed
+     */
+    private int avlDeletionRebalance(N node) {
+        int counter = 0;
+        N curr = node;
+        while (curr != null) {
+            int previous = curr.rank;
+            int leftRank = rankOf(curr.left);
+            int rightRank = rankOf(curr.right);
+            N top = curr;
+
+            if (Math.abs(leftRank - rightRank) == 2) {
+                boolean leftHigh = leftRank > rightRank;
+                N child = leftHigh ? curr.left : curr.right;
+                N inner = leftHigh ? child.right : child.left;
+                N outer = leftHigh ? child.left : child.right;
+                if (rankOf(inner) > rankOf(outer)) {
+                    if (leftHigh)
+                        doubleRotateRight(curr, true);
+                    else
+                        doubleRotateLeft(curr, true);
+                    counter += 2 + fitHeight(curr) + fitHeight(child) + fitHeight(inner);
+                    top = inner;
+                } else {
+                    if (leftHigh)
+                        rotateRight(curr, true);
+                    else
+                        rotateLeft(curr, true);
+                    counter += 1 + fitHeight(curr) + fitHeight(child);
+                    top = child;
+                }
+            } else {
+                counter += fitHeight(curr);
+            }
+
+            if (top.rank == previous)
+                break;
+            curr = top.parent;
+        }
+        return counter;
+    }
+
+    /**
+     * Sets the rank of a node to its height, computed from its children's ranks, and returns
+     * 1 if the rank changed and 0 otherwise.
+     */
+    private static int fitHeight(Node<?> node) {
+        int height = 1 + Math.max(rankOf(node.left), rankOf(node.right));
+        if (node.rank == height)
+            return 0;
+        node.rank = height;
+        return 1;
+    }
+
+    /**
+     * Rebuilds the tree from its nodes as a perfectly balanced tree, see rebuildFrom. Called
+     * under RAVL once the deletions since the last rebuild outnumber the entries. Subclasses
+     * which keep nodes that should not survive a rebuild override this function.<br>
+     *
+     * This function runs in O(n) time.
+     */
+    @SuppressWarnings("unchecked")
+    protected void rebuild() {
+        List<N> nodes = new ArrayList<>();
+        for (N node = firstNode(); node != null; node = successorNode(node)) {
+            nodes.add(node);
+        }
+        rebuildFrom((N[]) nodes.toArray(new Node<?>[nodes.size()]), nodes.size());
+    }
+
+    /**
+     * Replaces the tree by the first count nodes of an array, sorted in in-order, linked as a
+     * perfectly balanced tree whose ranks are the heights of the nodes. The heights of sibling
+     * subtrees differ by at most 1, so every rank difference is 1 or 2 and the result is a
+     * valid tree under every rank policy.<br>
+     *
+     * This function runs in O(count) time.
+     *
+     * @param nodes     the nodes of the new tree, in order
+     * @param count     the number of nodes used from the array
+     */
+    protected void rebuildFrom(N[] nodes, int count) {
+        root = buildBalanced(nodes, 0, count, null);
+        relaxedDeletions = 0;
+    }
+
+    /**
+     * Links the nodes in the range [from, to) of a sorted array into a perfectly balanced
+     * subtree, and returns its root. The recursion depth is log(n).
+     */
+    protected N buildBalanced(N[] nodes, int from, int to, N parent) {
+        if (from >= to)
+            return null;
+        int mid = (from + to) >>> 1;
+        N node = nodes[mid];
+        node.parent = parent;
+        node.left = buildBalanced(nodes, from, mid, node);
+        node.right = buildBalanced(nodes, mid + 1, to, node);
+        return completeBuilt(node);
+    }
+
+    /**
+     * Sets the rank of a node built by buildBalanced to its height, and its subtree fields,
+     * from those of its children, which are complete.
+     */
+    protected N completeBuilt(N node) {
+        node.rank = 1 + Math.max(rankOf(node.left), rankOf(node.right));
+        update(node);
+        return node;
+    }
+
+    /**
+     * Puts a descendant of z in the place of z, as the root or as the child of z's parent on
+     * the same side. Used by the rotations, which then link z below the descendant.
+     *
+     * @param top       the node taking the place of z
+     * @param z         the root of the subtree rotated
+     */
+    private void takePlaceOf(N top, N z) {
+        replaceChild(z.parent, z, top);
+    }
+
+    /**
+     * Sets the left child of a node, and the child's parent field, without updating any
+     * subtree field. Used by the rotations, which update the nodes they move.
+     */
+    private static <N extends Node<N>> void linkLeft(N node, N child) {
+        node.left = child;
+        if (child != null)
+            child.parent = node;
+    }
+
+    /**
+     * Sets the right child of a node, and the child's parent field, without updating any
+     * subtree field. Used by the rotations, which update the nodes they move.
+     */
+    private static <N extends Node<N>> void linkRight(N node, N child) {
+        node.right = child;
+        if (child != null)
+            child.parent = node;
+    }
+
+    /**
+     * Performs a single rotation to the right of the subtree of which the node
+     * provided is the root. <br>
+     *
+     * Illustration below is in accordance with variable names:
+     *
+     *        p                    p
+     *        |                    |
+     *        z                    x
+     *      /  \  Rotate right   /  \
+     *     x   y                a   z
+     *    / \                      / \
+     *   a  b                     b  y
+     *
+     * During insertion, node z is demoted during this rotation. All other nodes retain their ranks. <br>
+     *
+     * During deletion, node x is promoted, and z is demoted once or twice, depending
+     * on z's children. If z becomes a leaf after the rotation and is only demoted once,
+     * its rank difference with the external leaf y becomes 2, causing a violation of
+     * the invariants, as leaves are only allowed to be (1,1) vertices.
+     * To solve this, z is demoted once again. All other nodes retain their ranks.<br>
+     *
+     * The function runs in O(1) time, as it only involves a fixed number of pointers and
+     * fields. A rotation keeps the set of entries in the subtree, so only the subtree fields
+     * of the rotated nodes are recomputed, and those of their ancestors stay valid.
+     *
+     * @param z         the node at the root of the subtree rotated
+     * @param insert    true if the rotation takes place during insertion, false if it does
+     *                  during deletion
+     * @return          the number of rebalancing step made during this process -
+     *                  1 rotation + the number of promotions and demotions made
+     */
+    @SuppressWarnings("Duplicates")
+    protected int rotateRight(N z, boolean insert) {
+        int counter = 1;
+
+        N x = z.left;
+        N b = x.right;
+
+        takePlaceOf(x, z);
+        linkLeft(z, b);
+        linkRight(x, z);
+        update(z);
+        update(x);
+
+        if (insert) {
+            z.rank--;
+            counter++;
+        }
+        else {
+            z.rank--;
+            x.rank++;
+            counter += 2;
+            if (z.left == null && z.right == null) {
+                z.rank--;
+                counter++;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Performs a single rotation to the left of the subtree of which the node
+     * provided is the root. <br>
+     *
+     * Illustration below is in accordance with variable names:
+     *
+     *     p                     p
+     *     |                     |
+     *     z                     y
+     *   /  \   Rotate left    /  \
+     *  x   y                 z   b
+     *     / \               / \
+     *    a  b              x  a
+     *
+     * During insertion, node z is demoted during this rotation. All other nodes retain their ranks<br>
+     *
+     * During deletion, node y is promoted, and z is demoted once or twice, depending
+     * on z's children. If z becomes a leaf after the rotation and is only demoted once,
+     * its rank difference with the external leaf x becomes 2, causing a violation of
+     * the invariants, as leaves are only allowed to be (1,1) vertices.
+     * To solve this, z is demoted once again. All other nodes retain their ranks.<br>
+     *
+     * The function runs in O(1) time, as it only involves a fixed number of pointers and
+     * fields. A rotation keeps the set of entries in the subtree, so only the subtree fields
+     * of the rotated nodes are recomputed, and those of their ancestors stay valid.
+     *
+     * @param z         the node at the root of the subtree rotated
+     * @param insert    true if the rotation takes place during insertion, false if it does
+     *                  during deletion
+     * @return          the number of rebalancing step made during this process -
+     *                  1 rotation + the number of promotions and demotions made
+     */
+    @SuppressWarnings("Duplicates")
+    protected int rotateLeft(N z, boolean insert) {
+        int counter = 1;
+
+        N y = z.right;
+        N a = y.left;
+
+        takePlaceOf(y, z);
+        linkRight(z, a);
+        linkLeft(y, z);
+        update(z);
+        update(y);
+
+        if (insert) {
+            z.rank--;
+            counter++;
+        }
+        else {
+            z.rank--;
+            y.rank++;
+            counter += 2;
+            if (z.left == null && z.right == null) {
+                z.rank--;
+                counter++;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Performs a double rotation to the right of the subtree of which the node
+     * provided is the root. <br>
+     *
+     * Illustration below is in accordance with variable names:
+     *
+     *      p                            p
+     *      |                            |
+     *      z                            b
+     *     / \                         /   \
+     *    x  y  Double rotate right   x    z
+     *   / \                         / \  / \
+     *  a  b                        a  c d  y
+     *    / \
+     *   c  d
+     *
+     * During insertion, nodes x and z are demoted, and node b is promoted during this
+     * rotation. All other nodes retain their ranks.<br>
+     *
+     * During deletion, the rank of node b increases by 2, that of node z decreases by 2,
+     * and that of x decreases by 1. All other nodes retains their ranks. <br>
+     *
+     * The function runs in O(1) time, as it only involves a fixed number of pointers and
+     * fields. A rotation keeps the set of entries in the subtree, so only the subtree fields
+     * of the rotated nodes are recomputed, and those of their ancestors stay valid.
+     *
+     * @param z         the node at the root of the subtree rotated
+     * @param insert    true if the rotation takes place during insertion, false if it does
+     *                  during deletion
+     * @return          the number of rebalancing step made during this process -
+     *                  1 rotation + the number of promotions and demotions made
+     *
+     */
+    protected int doubleRotateRight(N z, boolean insert) {
+        int counter = 1;
+
+        N x = z.left;
+        N b = x.right;
+        N c = b.left;
+        N d = b.right;
+
+        takePlaceOf(b, z);
+        linkRight(x, c);
+        linkLeft(z, d);
+        linkLeft(b, x);
+        linkRight(b, z);
+        update(x);
+        update(z);
+        update(b);
+
+        if (insert) {
+            x.rank--;
+            z.rank--;
+            b.rank++;
+        } else {
+            b.rank += 2;
+            z.rank -= 2;
+            x.rank--;
+        }
+        return counter + 3;
+    }
+
+    /**
+     * Performs a double rotation to the left of the subtree of which the node
+     * provided is the root. <br>
+     *
+     * Illustration below is in accordance with variable names:
+     *
+     *    p                            p
+     *    |                            |
+     *    z                            a
+     *   / \                         /   \
+     *  x  y   Double rotate left   z    y
+     *    / \                      / \  / \
+     *   a  b                     x  c d  b
+     *  / \
+     * c  d
+     *
+     * During insertion, nodes y and z are demoted, and node a is promoted during this
+     * rotation. All other nodes retain their ranks.<br>
+     *
+     * During deletion, the rank of node a increases by 2, that of node z decreases by 2,
+     * and that of y decreases by 1. All other nodes retains their ranks. <br>
+     *
+     * The function runs in O(1) time, as it only involves a fixed number of pointers and
+     * fields. A rotation keeps the set of entries in the subtree, so only the subtree fields
+     * of the rotated nodes are recomputed, and those of their ancestors stay valid.
+     *
+     * @param z         the node at the root of the subtree rotated
+     * @param insert    true if the rotation takes place during insertion, false if it does
+     *                  during deletion
+     * @return          the number of rebalancing step made during this process -
+     *                  1 rotation + the number of promotions and demotions made
+     *
+     */
+    protected int doubleRotateLeft(N z, boolean insert) {
+        int counter = 1;
+
+        N y = z.right;
+        N a = y.left;
+        N c = a.left;
+        N d = a.right;
+
+        takePlaceOf(a, z);
+        linkRight(z, c);
+        linkLeft(y, d);
+        linkLeft(a, z);
+        linkRight(a, y);
+        update(z);
+        update(y);
+        update(a);
+
+        if (insert) {
+            y.rank--;
+            z.rank--;
+            a.rank++;
+        } else {
+            a.rank += 2;
+            z.rank -= 2;
+            y.rank--;
+        }
+        return counter + 3;
+    }
+
+    /**
+     * Exchanges the places of two nodes in the tree: their parents, children, ranks and
+     * sizes, so that each node keeps its entry and all the data attached to it, while the
+     * sizes stay with the places. The nodes may be parent and child. Used by deletion to move
+     * the deleted node down to a place with at most one child, where the subtree fields of
+     * both places are recomputed when it is removed.<br>
+     *
+     * This function runs in O(1) time as it only involves a fixed number of pointers.
+     *
+     * @param a     a node in the tree
+     * @param b     another node in the tree
+     */
+    protected void swapPositions(N a, N b) {
+        N aParent = a.parent, aLeft = a.left, aRight = a.right;
+        N bParent = b.parent, bLeft = b.left, bRight = b.right;
+        boolean aIsLeft = aParent != null && aParent.left == a;
+        boolean bIsLeft = bParent != null && bParent.left == b;
+
+        /* Each node takes the other's links, where a link between them is reversed */
+        b.parent = aParent == b ? a : aParent;
+        b.left = aLeft == b ? a : aLeft;
+        b.right = aRight == b ? a : aRight;
+        a.parent = bParent == a ? b : bParent;
+        a.left = bLeft == a ? b : bLeft;
+        a.right = bRight == a ? b : bRight;
+        int rank = a.rank;
+        a.rank = b.rank;
+        b.rank = rank;
+        int size = a.size;
+        a.size = b.size;
+        b.size = size;
+
+        /* The neighbours are pointed at their new parent or child */
+        adoptChildren(a);
+        adoptChildren(b);
+        relinkParent(b, a, aIsLeft);
+        relinkParent(a, b, bIsLeft);
+    }
+
+    /**
+     * Points the parent fields of the children of a node at the node.
+     */
+    private static <N extends Node<N>> void adoptChildren(N node) {
+        if (node.left != null)
+            node.left.parent = node;
+        if (node.right != null)
+            node.right.parent = node;
+    }
+
+    /**
+     * Points the parent of a node, which took the place of other, at the node, unless the
+     * parent is other itself, whose links are already set.
+     */
+    private void relinkParent(N node, N other, boolean isLeft) {
+        if (node.parent == null)
+            root = node;
+        else if (node.parent != other) {
+            if (isLeft)
+                node.parent.left = node;
+            else
+                node.parent.right = node;
+        }
+    }
+
+    /**
+     * Sets replacement to take the place of child below parent, or as the root if parent is
+     * null.
+     */
+    protected void replaceChild(N parent, N child, N replacement) {
+        if (parent == null)
+            root = replacement;
+        else if (parent.left == child)
+            parent.left = replacement;
+        else
+            parent.right = replacement;
+
+        if (replacement != null)
+            replacement.parent = parent;
+    }
+
+    /**
+     * Returns the node with the smallest key in the tree, or null if the tree is empty.
+     * This function runs in O(h) = O(logn) time.
+     *
+     * @return      the leftmost node of the tree
+     */
+    protected N firstNode() {
+        N curr = root;
+        if (curr == null)
+            return null;
+        while (curr.left != null)
+            curr = curr.left;
+        return curr;
+    }
+
+    /**
+     * Returns the node with the largest key in the tree, or null if the tree is empty.
+     * This function runs in O(h) = O(logn) time.
+     *
+     * @return      the rightmost node of the tree
+     */
+    protected N lastNode() {
+        N curr = root;
+        if (curr == null)
+            return null;
+        while (curr.right != null)
+            curr = curr.right;
+        return curr;
+    }
+
+    /**
+     * Returns the node following the provided one in an in-order walk of the tree, or null
+     * if it is the last node. This function runs in O(h) = O(logn) time in the worst case,
+     * and in O(1) amortized time over a full walk.
+     *
+     * @param node      a node of the tree
+     * @return          the successor of the node, or null
+     */
+    protected N successorNode(N node) {
+        if (node.right != null) {
+            N curr = node.right;
+            while (curr.left != null)
+                curr = curr.left;
+            return curr;
+        }
+        N curr = node;
+        N parent = curr.parent;
+        while (parent != null && parent.right == curr) {
+            curr = parent;
+            parent = parent.parent;
+        }
+        return parent;
+    }
+
+    /**
+     * Returns the node preceding the provided one in an in-order walk of the tree, or null
+     * if it is the first node. This function runs in O(h) = O(logn) time.
+     *
+     * @param node      a node of the tree
+     * @return          the predecessor of the node, or null
+     */
+    protected N predecessorNode(N node) {
+        if (node.left != null) {
+            N curr = node.left;
+            while (curr.right != null)
+                curr = curr.right;
+            return curr;
+        }
+        N curr = node;
+        N parent = curr.parent;
+        while (parent != null && parent.left == curr) {
+            curr = parent;
+            parent = parent.parent;
+        }
+        return parent;
+    }
+
+    /**
+     * Returns the node holding the i'th entry in the in-order walk of the tree, counting
+     * every node as many times as its weight, or null if i is not between 1 and the size of the
+     * tree. This function runs in O(h) = O(logn) time, as it descends using the subtree sizes.
+     *
+     * @param i     the position of the entry, starting at 1
+     * @return      the node holding the i'th entry, or null
+     */
+    protected N selectNode(int i) {
+        if (i < 1 || i > size())
+            return null;
+
+        N curr = root;
+        while (true) {
+            int leftSize = curr.left == null ? 0 : curr.left.size;
+            if (i <= leftSize) {
+                curr = curr.left;
+            } else if (i <= leftSize + weight(curr)) {
+                return curr;
+            } else {
+                i -= leftSize + weight(curr);
+                curr = curr.right;
+            }
+        }
+    }
+
+    /**
+     * Returns the sum of the weights of the nodes preceding a node in an in-order walk of the
+     * tree. This function runs in O(h) = O(logn) time, as it climbs from the node to the root.
+     *
+     * @param node      a node of the tree
+     * @return          the total weight of the nodes before it
+     */
+    protected int weightBefore(N node) {
+        int before = node.left == null ? 0 : node.left.size;
+        N curr = node;
+        while (curr.parent != null) {
+            N parent = curr.parent;
+            if (parent.right == curr)
+                before += weight(parent) + (parent.left == null ? 0 : parent.left.size);
+            curr = parent;
+        }
+        return before;
+    }
+
+    /**
+     * Validates the structure of the tree: parent pointers, rank differences allowed by the
+     * rank policy, rank 0 at the leaves unless the policy is RAVL, and the subtree sizes.
+     * Intended for tests.
+     *
+     * @return      null if the structure is valid, or a description of the first violation
+     */
+    public String validateStructure() {
+        if (root != null && root.parent != null)
+            return "root has a parent";
+        return validateStructure(root);
+    }
+
+    private String validateStructure(N node) {
+        if (node == null)
+            return null;
+        if ((node.left != null && node.left.parent != node)
+                || (node.right != null && node.right.parent != node))
+            return "wrong parent pointer below rank " + node.rank + " node";
+        int leftDiff = node.rank - rankOf(node.left);
+        int rightDiff = node.rank - rankOf(node.right);
+        int maxDiff = rankPolicy == RankPolicy.RAVL ? Integer.MAX_VALUE : 2;
+        if (leftDiff < 1 || leftDiff > maxDiff || rightDiff < 1 || rightDiff > maxDiff)
+            return "node of rank " + node.rank + " is (" + leftDiff + "," + rightDiff + ")";
+        if (node.left == null && node.right == null && node.rank != 0 && rankPolicy != RankPolicy.RAVL)
+            return "leaf of rank " + node.rank;
+        int expected = weight(node) + (node.left == null ? 0 : node.left.size) +
+                (node.right == null ? 0 : node.right.size);
+        if (node.size != expected)
+            return "subtree size " + node.size + ", expected " + expected;
+        String error = validateStructure(node.left);
+        return error != null ? error : validateStructure(node.right);
+    }
+}
@@ -0,0 +1,431 @@
+import java.util.Arrays;
+
+/**
+ *
+ * BucketWAVLTree
+ *
+ * A WAVL tree whose nodes are sorted buckets of up to bucketCapacity int keys, stored in
+ * primitive arrays, instead of a single key each.<br>
+ *
+ * The buckets are ordered by their key ranges and kept balanced by the WAVL rules of
+ * AbstractWAVLTree. Each node stores the routing key of its bucket in a field of its own: a
+ * lower bound of the bucket's keys, above all the keys of the buckets before it, so that the
+ * bucket of a key is the last one whose routing key is not above it. A lookup descends
+ * through about log(n / bucketCapacity) nodes comparing the key with their routing keys
+ * only, without touching the arrays of the buckets it passes, and then searches a single
+ * contiguous array, which takes a few cache lines instead of log(bucketCapacity) more
+ * dependent node accesses. The size field of each node counts the keys in its subtree, so
+ * select and rank run in O(logn) time.<br>
+ *
+ * A full bucket is split into two half-full buckets. Unless the tree holds a single bucket,
+ * every bucket is kept at least a quarter full: a bucket which falls below that after a
+ * deletion borrows keys from a neighbour, evening out the two, or is merged with it if
+ * together they would not fill half a bucket. The buckets therefore take O(n) space, with at
+ * most 4n / bucketCapacity + 1 of them.
+ *
+ */
+public class BucketWAVLTree extends AbstractWAVLTree<BucketWAVLTree.Bucket> {
+    private final int bucketCapacity;
+
+    /**
+     * A node of the tree: a sorted run of keys and their values, and the routing key the
+     * descents compare with.
+     */
+    public static class Bucket extends AbstractWAVLTree.Node<Bucket> {
+        /** Lower bound of the keys of the bucket, above every key of the buckets before it */
+        private int low;
+        private final int[] keys;
+        private final String[] values;
+        private int count;
+
+        private Bucket(int capacity) {
+            this.keys = new int[capacity];
+            this.values = new String[capacity];
+        }
+
+        /** @return     the number of keys in the bucket */
+        public int getCount() { return count; }
+
+        /** @return     the smallest key in the bucket */
+        public int getMinKey() { return keys[0]; }
+
+        /** @return     the largest key in the bucket */
+        public int getMaxKey() { return keys[count - 1]; }
+
+        /** @return     the routing key of the bucket, at most its smallest key */
+        public int getRoutingKey() { return low; }
+    }
+
+    /**
+     * Creates an empty tree with buckets of 64 keys.
+     */
+    public BucketWAVLTree() {
+        this(64);
+    }
+
+    /**
+     * Creates an empty tree with buckets of the provided capacity.
+     *
+     * @param bucketCapacity    the maximal number of keys in a bucket, at least 4
+     */
+    public BucketWAVLTree(int bucketCapacity) {
+        if (bucketCapacity < 4)
+            throw new IllegalArgumentException("bucket capacity must be at least 4: " + bucketCapacity);
+        this.bucketCapacity = bucketCapacity;
+    }
+
+    /**
+     * Returns the smallest number of keys of a bucket, unless it is the only one.
+     */
+    private int minFill() {
+        return bucketCapacity / 4;
+    }
+
+    @Override
+    protected int weight(Bucket node) {
+        return node.count;
+    }
+
+    /**
+     * Returns the index of the first key in the bucket which is greater than or equal to k,
+     * or count if there is none.<br>
+     *
+     * The binary search narrows the range by a conditional move rather than a branch on the
+     * comparison, so it does not suffer mispredictions, and always takes log(count) steps.
+     */
+    private static int lowerBound(Bucket b, int k) {
+        int[] keys = b.keys;
+        int base = 0;
+        int n = b.count;
+        while (n > 1) {
+            int half = n >>> 1;
+            base = keys[base + half - 1] < k ? base + half : base;
+            n -= half;
+        }
+        return base + (keys[base] < k ? 1 : 0);
+    }
+
+    /**
+     * Descends from the root to the bucket k belongs to, the last one whose routing key is
+     * at most k, comparing k with the routing keys of the nodes only. Returns null if k is
+     * below every routing key, and so smaller than every key in the tree.
+     */
+    private Bucket findBucket(int k) {
+        Bucket found = null;
+        Bucket b = root;
+        while (b != null) {
+            if (k < b.low) {
+                b = b.left;
+            } else {
+                found = b;
+                b = b.right;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Searches the tree for key k and returns its value, or null if k isn't in the tree.<br>
+     *
+     * This method runs in O(logn) time.
+     *
+     * @param k         the key being searched
+     * @return          value associated with key k, or null if k is not in the tree
+     */
+    public String search(int k) {
+        Bucket b = findBucket(k);
+        if (b == null)
+            return null;
+        int i = lowerBound(b, k);
+        return i < b.count && b.keys[i] == k ? b.values[i] : null;
+    }
+
+    /**
+     * Inserts key k with value i to the tree. If the bucket the key belongs to is full, it is
+     * split first, and the upper half of its keys moves to a new bucket placed right after it.<br>
+     *
+     * This method runs in O(logn + bucketCapacity) time.
+     *
+     * @param k     the key inserted
+     * @param i     the info associated with the key
+     * @return      the number of rebalancing operations performed, or -1 if key k already
+     *              exists in the tree
+     */
+    public int insert(int k, String i) {
+        if (root == null) {
+            Bucket b = new Bucket(bucketCapacity);
+            b.low = k;
+            b.keys[0] = k;
+            b.values[0] = i;
+            b.count = 1;
+            insertRoot(b);
+            return 0;
+        }
+
+        Bucket b = findBucket(k);
+        if (b == null) {
+            /* k is below every key, and goes to the first bucket, whose bound it becomes */
+            b = firstNode();
+            b.low = k;
+        }
+        int pos = lowerBound(b, k);
+        if (pos < b.count && b.keys[pos] == k)
+            return -1;
+
+        if (b.count < bucketCapacity) {
+            insertAt(b, pos, k, i);
+            updatePath(b);
+            return 0;
+        }
+
+        /* Split: the upper half moves to a new bucket which becomes b's successor */
+        Bucket upper = new Bucket(bucketCapacity);
+        int half = bucketCapacity / 2;
+        upper.count = b.count - half;
+        System.arraycopy(b.keys, half, upper.keys, 0, upper.count);
+        System.arraycopy(b.values, half, upper.values, 0, upper.count);
+        Arrays.fill(b.values, half, b.count, null);
+        b.count = half;
+
+        if (pos <= half)
+            insertAt(b, pos, k, i);
+        else
+            insertAt(upper, pos - half, k, i);
+        upper.low = upper.keys[0];
+
+        if (b.right == null)
+            return insertChild(b, upper, false);
+        Bucket parent = b.right;
+        while (parent.left != null)
+            parent = parent.left;
+        return insertChild(parent, upper, true);
+    }
+
+    private static void insertAt(Bucket b, int pos, int k, String i) {
+        System.arraycopy(b.keys, pos, b.keys, pos + 1, b.count - pos);
+        System.arraycopy(b.values, pos, b.values, pos + 1, b.count - pos);
+        b.keys[pos] = k;
+        b.values[pos] = i;
+        b.count++;
+    }
+
+    /**
+     * Removes key k from the tree. A bucket left under a quarter full borrows keys from a
+     * neighbour, its successor or if it is the last bucket its predecessor, or is merged with
+     * it, as described in fixUnderflow.<br>
+     *
+     * This method runs in O(logn + bucketCapacity) time.
+     *
+     * @param k     key to be removed from the tree, if it exists in it
+     * @return      the number of rebalancing operations performed, or -1 if k was not found
+     */
+    public int delete(int k) {
+        Bucket b = findBucket(k);
+        if (b == null)
+            return -1;
+        int pos = lowerBound(b, k);
+        if (pos == b.count || b.keys[pos] != k)
+            return -1;
+
+        System.arraycopy(b.keys, pos + 1, b.keys, pos, b.count - pos - 1);
+        System.arraycopy(b.values, pos + 1, b.values, pos, b.count - pos - 1);
+        b.count--;
+        b.values[b.count] = null;
+
+        if (b.count >= minFill() || (b.left == null && b.right == null && b.parent == null)) {
+            if (b.count == 0)
+                return remove(b);
+            updatePath(b);
+            return 0;
+        }
+        return fixUnderflow(b);
+    }
+
+    /**
+     * Restores the minimum fill of a bucket which fell one key below it, next to a neighbour
+     * which has at least the minimum fill. If the two hold at least twice the minimum, keys
+     * move from the fuller one to the other, so that each ends up with half of them, and the
+     * routing key of the upper bucket is set to its new first key. Otherwise they fit in half
+     * a bucket, and the keys of the upper bucket are appended to the lower one, which keeps
+     * its routing key, and the upper bucket is removed from the tree.<br>
+     *
+     * This function runs in O(logn + bucketCapacity) time.
+     *
+     * @param b     a bucket below the minimum fill, which is not the only bucket
+     * @return      the number of rebalancing operations performed
+     */
+    private int fixUnderflow(Bucket b) {
+        Bucket next = successorNode(b);
+        Bucket lower = next != null ? b : predecessorNode(b);
+        Bucket upper = next != null ? next : b;
+
+        int total = lower.count + upper.count;
+        if (total < 2 * minFill()) {
+            System.arraycopy(upper.keys, 0, lower.keys, lower.count, upper.count);
+            System.arraycopy(upper.values, 0, lower.values, lower.count, upper.count);
+            lower.count = total;
+            upper.count = 0;
+            updatePath(lower);
+            return remove(upper);
+        }
+
+        int target = total / 2;
+        if (lower.count < target) {
+            /* The first keys of the upper bucket move to the end of the lower one */
+            int moved = target - lower.count;
+            System.arraycopy(upper.keys, 0, lower.keys, lower.count, moved);
+            System.arraycopy(upper.values, 0, lower.values, lower.count, moved);
+            System.arraycopy(upper.keys, moved, upper.keys, 0, upper.count - moved);
+            System.arraycopy(upper.values, moved, upper.values, 0, upper.count - moved);
+            Arrays.fill(upper.values, upper.count - moved, upper.count, null);
+            lower.count += moved;
+            upper.count -= moved;
+        } else {
+            /* The last keys of the lower bucket move to the front of the upper one */
+            int moved = lower.count - target;
+            System.arraycopy(upper.keys, 0, upper.keys, moved, upper.count);
+            System.arraycopy(upper.values, 0, upper.values, moved, upper.count);
+            System.arraycopy(lower.keys, target, upper.keys, 0, moved);
+            System.arraycopy(lower.values, target, upper.values, 0, moved);
+            Arrays.fill(lower.values, target, lower.count, null);
+            lower.count = target;
+            upper.count += moved;
+        }
+        upper.low = upper.keys[0];
+        updatePath(lower);
+        updatePath(upper);
+        return 0;
+    }
+
+    /**
+     * Returns the info of the i'th smallest key in the tree, or null if i is not between 1
+     * and the number of keys in the tree. This function runs in O(logn) time, as it descends
+     * using the key counts of the subtrees.
+     *
+     * @param i         the position of the key in the sorted order, starting at 1
+     * @return          the value associated with the i'th smallest key
+     */
+    public String select(int i) {
+        if (i < 1 || i > size())
+            return null;
+
+        Bucket b = root;
+        while (true) {
+            int leftSize = b.left == null ? 0 : b.left.size;
+            if (i <= leftSize) {
+                b = b.left;
+            } else if (i <= leftSize + b.count) {
+                return b.values[i - leftSize - 1];
+            } else {
+                i -= leftSize + b.count;
+                b = b.right;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of keys in the tree which are smaller than k. This function runs
+     * in O(logn) time.
+     *
+     * @param k     a key, not necessarily in the tree
+     * @return      the number of keys smaller than k
+     */
+    public int rank(int k) {
+        /* The keys before the bucket of k, the last one passed to the right, are counted on
+        the way down, and then those of its own keys below k */
+        int smaller = 0;
+        Bucket found = null;
+        Bucket b = root;
+        while (b != null) {
+            if (k < b.low) {
+                b = b.left;
+            } else {
+                smaller += (b.left == null ? 0 : b.left.size) + b.count;
+                found = b;
+                b = b.right;
+            }
+        }
+        return found == null ? 0 : smaller - found.count + lowerBound(found, k);
+    }
+
+    /**
+     * Returns the value associated with the minimal key in the tree, or null if it is empty.
+     *
+     * @return      the value of the minimal key
+     */
+    public String min() {
+        Bucket b = firstNode();
+        return b == null ? null : b.values[0];
+    }
+
+    /**
+     * Returns the value associated with the maximal key in the tree, or null if it is empty.
+     *
+     * @return      the value of the maximal key
+     */
+    public String max() {
+        Bucket b = lastNode();
+        return b == null ? null : b.values[b.count - 1];
+    }
+
+    /**
+     * Validates the structure of the tree as AbstractWAVLTree does, and the buckets: their
+     * keys are sorted and between their routing key and that of the next bucket, and every
+     * bucket but a single one has the minimum fill. Intended for tests.
+     *
+     * @return      null if the structure is valid, or a description of the first violation
+     */
+    @Override
+    public String validateStructure() {
+        String error = super.validateStructure();
+        if (error != null)
+            return error;
+        boolean single = root != null && root.left == null && root.right == null;
+        for (Bucket b = firstNode(); b != null; b = successorNode(b)) {
+            Bucket next = successorNode(b);
+            if (b.count == 0 || b.count > bucketCapacity || (!single && b.count < minFill()))
+                return "bucket of " + b.count + " keys";
+            if (b.keys[0] < b.low)
+                return "key " + b.keys[0] + " below routing key " + b.low;
+            for (int j = 1; j < b.count; j++) {
+                if (b.keys[j - 1] >= b.keys[j])
+                    return "unsorted keys " + b.keys[j - 1] + ", " + b.keys[j];
+            }
+            if (next != null && b.keys[b.count - 1] >= next.low)
+                return "key " + b.keys[b.count - 1] + " not below next routing key " + next.low;
+        }
+        return null;
+    }
+
+    /**
+     * Returns a sorted array of the tree's keys. This function runs in O(n) time, as it
+     * copies whole buckets in an in-order walk.
+     *
+     * @return      array of the tree's keys in ascending order
+     */
+    public int[] keysToArray() {
+        int[] keys = new int[size()];
+        int j = 0;
+        for (Bucket b = firstNode(); b != null; b = successorNode(b)) {
+            System.arraycopy(b.keys, 0, keys, j, b.count);
+            j += b.count;
+        }
+        return keys;
+    }
+
+    /**
+     * Returns an array of the tree's values, sorted in ascending order of their keys.
+     * This function runs in O(n) time.
+     *
+     * @return      array of values associated with the keys in ascending order
+     */
+    public String[] infoToArray() {
+        String[] values = new String[size()];
+        int j = 0;
+        for (Bucket b = firstNode(); b != null; b = successorNode(b)) {
+            System.arraycopy(b.values, 0, values, j, b.count);
+            j += b.count;
+        }
+        return values;
+    }
+}
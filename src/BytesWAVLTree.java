@@ -0,0 +1,189 @@
+/**
+ *
+ * BytesWAVLTree
+ *
+ * A WAVL tree with variable-length byte[] keys and String values, built on AbstractWAVLTree.
+ * Keys are ordered by unsigned lexicographic comparison, where a proper prefix of a key is
+ * smaller than the key, so composite keys encoded as byte strings keep their natural order.<br>
+ *
+ * The key arrays are referenced by the tree, not copied, and must not be modified while they
+ * are in it.
+ *
+ */
+public class BytesWAVLTree extends AbstractWAVLTree<BytesWAVLTree.BytesNode> {
+    /** Result of the last comparison made by findInsertionPlace */
+    private int lastCompare;
+
+    /**
+     * A node of the tree, holding a byte[] key and its value.
+     */
+    public static class BytesNode extends AbstractWAVLTree.Node<BytesNode> {
+        private final byte[] key;
+        private final String value;
+
+        private BytesNode(byte[] key, String value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        /** @return     the key of the node, which must not be modified */
+        public byte[] getKey() { return key; }
+
+        /** @return     the value of the node */
+        public String getValue() { return value; }
+    }
+
+    /**
+     * Compares two byte strings in unsigned lexicographic order.<br>
+     *
+     * The loop first skips the common prefix, comparing the signed bytes for equality only,
+     * and the unsigned order is computed once, at the first mismatch. This runs in O(m) time,
+     * where m is the length of the common prefix.
+     *
+     * @param a     a byte string
+     * @param b     a byte string
+     * @return      a negative number, zero or a positive number as a is smaller than, equal
+     *              to or greater than b
+     */
+    public static int compare(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        int i = 0;
+        while (i < length && a[i] == b[i]) {
+            i++;
+        }
+        if (i < length)
+            return (a[i] & 0xff) - (b[i] & 0xff);
+        return a.length - b.length;
+    }
+
+    /**
+     * Returns the node with key k, or the node below which k would be inserted if it is not
+     * in the tree, and leaves the result of the last comparison in lastCompare. The tree must
+     * not be empty.
+     */
+    private BytesNode findInsertionPlace(byte[] k) {
+        BytesNode node = root;
+        while (true) {
+            int cmp = compare(k, node.key);
+            BytesNode next = cmp < 0 ? node.left : cmp > 0 ? node.right : null;
+            if (next == null) {
+                lastCompare = cmp;
+                return node;
+            }
+            node = next;
+        }
+    }
+
+    /**
+     * Searches the tree for key k and returns its value, or null if k isn't in the tree.
+     * This method runs in O(logn) comparisons.
+     *
+     * @param k         the key being searched
+     * @return          value associated with key k, or null
+     */
+    public String search(byte[] k) {
+        BytesNode node = root;
+        while (node != null) {
+            int cmp = compare(k, node.key);
+            if (cmp == 0)
+                return node.value;
+            node = cmp < 0 ? node.left : node.right;
+        }
+        return null;
+    }
+
+    /**
+     * Inserts key k with value i to the tree. This method runs in O(logn) comparisons.
+     *
+     * @param k     the key inserted, which must not be modified afterwards
+     * @param i     the info associated with the key
+     * @return      the number of rebalancing operations performed, or -1 if key k already
+     *              exists in the tree
+     */
+    public int insert(byte[] k, String i) {
+        if (root == null) {
+            insertRoot(new BytesNode(k, i));
+            return 0;
+        }
+        BytesNode parent = findInsertionPlace(k);
+        if (lastCompare == 0)
+            return -1;
+        return insertChild(parent, new BytesNode(k, i), lastCompare < 0);
+    }
+
+    /**
+     * Removes key k from the tree. This method runs in O(logn) comparisons.
+     *
+     * @param k     key to be removed from the tree, if it exists in it
+     * @return      the number of rebalancing operations performed, or -1 if k was not found
+     */
+    public int delete(byte[] k) {
+        if (root == null)
+            return -1;
+        BytesNode node = findInsertionPlace(k);
+        if (lastCompare != 0)
+            return -1;
+        return remove(node);
+    }
+
+    /**
+     * Returns the value of the i'th smallest key in the tree, or null if i is not between 1
+     * and the size of the tree. This method runs in O(logn) time.
+     *
+     * @param i     the position of the key in the sorted order, starting at 1
+     * @return      the value associated with the i'th smallest key
+     */
+    public String select(int i) {
+        BytesNode node = selectNode(i);
+        return node == null ? null : node.value;
+    }
+
+    /**
+     * Returns the value associated with the minimal key in the tree, or null if it is empty.
+     *
+     * @return      the value of the minimal key
+     */
+    public String min() {
+        BytesNode node = firstNode();
+        return node == null ? null : node.value;
+    }
+
+    /**
+     * Returns the value associated with the maximal key in the tree, or null if it is empty.
+     *
+     * @return      the value of the maximal key
+     */
+    public String max() {
+        BytesNode node = lastNode();
+        return node == null ? null : node.value;
+    }
+
+    /**
+     * Returns a sorted array of the tree's keys. This function runs in O(n) time.
+     *
+     * @return      array of the tree's keys in ascending order
+     */
+    public byte[][] keysToArray() {
+        byte[][] keys = new byte[size()][];
+        int j = 0;
+        for (BytesNode node = firstNode(); node != null; node = successorNode(node)) {
+            keys[j++] = node.key;
+        }
+        return keys;
+    }
+
+    /**
+     * Returns an array of the tree's values, sorted in ascending order of their keys.
+     * This function runs in O(n) time.
+     *
+     * @return      array of values associated with the keys in ascending order
+     */
+    public String[] infoToArray() {
+        String[] values = new String[size()];
+        int j = 0;
+        for (BytesNode node = firstNode(); node != null; node = successorNode(node)) {
+            values[j++] = node.value;
+        }
+        return values;
+    }
+}
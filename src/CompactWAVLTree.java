@@ -0,0 +1,545 @@
+import java.util.Arrays;
+
+/**
+ *
+ * CompactWAVLTree
+ *
+ * A WAVL tree with int keys and String values whose nodes do not store their ranks. WAVL
+ * rebalancing never needs an absolute rank, only whether each rank difference is 1 or 2, so
+ * every node keeps one bit per child, set when that child (possibly an external leaf) is a
+ * 2-child. The bits are packed into a single byte, and the rebalancing reads and rewrites
+ * them directly, without computing rank differences by subtraction.<br>
+ *
+ * A rank difference of 0 or 3, which exists only during rebalancing, is never stored: the
+ * rebalancing keeps track of the single offending child, and the bit of its side stands for
+ * the difference it had before the violation. The rank of a node is still defined, as the
+ * rank of any of its children plus the difference, and is recomputed from the bits by
+ * validateStructure.<br>
+ *
+ * The nodes keep no subtree sizes either, so the tree does not support select or rank. Nor do
+ * they keep parent pointers: insertions, deletions and walks record the path they descend on
+ * a stack of nodes owned by the tree, which is reused by every operation and grows with the
+ * height of the tree, and rebalancing climbs the stack instead. A node thus holds only its
+ * key, its value, its two child links and the bits, and linking a node writes a single
+ * reference. As the stack is shared, the tree must not be used by several threads at once,
+ * even for reads that walk it.
+ *
+ */
+public class CompactWAVLTree {
+    /** Bit of CompactNode.bits set when the left child is a 2-child */
+    private static final int LEFT_TWO = 1;
+    /** Bit of CompactNode.bits set when the right child is a 2-child */
+    private static final int RIGHT_TWO = 2;
+
+    private CompactNode root;
+    private int size;
+    /** The nodes on the path of the current operation, from the root down */
+    private CompactNode[] path = new CompactNode[32];
+
+    /**
+     * A node of the tree, holding an int key, its value and the rank differences of its
+     * children.
+     */
+    public static class CompactNode {
+        private final int key;
+        private String value;
+        private CompactNode left;
+        private CompactNode right;
+        private byte bits;
+
+        private CompactNode(int key, String value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        /** @return     the key of the node */
+        public int getKey() { return key; }
+
+        /** @return     the value of the node */
+        public String getValue() { return value; }
+
+        /** @return     the left child of this node, or null if it does not have one */
+        public CompactNode getLeft() { return left; }
+
+        /** @return     the right child of this node, or null if it does not have one */
+        public CompactNode getRight() { return right; }
+
+        /** @return     the rank difference between this node and its left child, 1 or 2 */
+        public int getLeftRankDifference() { return (bits & LEFT_TWO) != 0 ? 2 : 1; }
+
+        /** @return     the rank difference between this node and its right child, 1 or 2 */
+        public int getRightRankDifference() { return (bits & RIGHT_TWO) != 0 ? 2 : 1; }
+    }
+
+    /**
+     * Returns the bit standing for a 2-child on the given side.
+     */
+    private static int twoBit(boolean left) {
+        return left ? LEFT_TWO : RIGHT_TWO;
+    }
+
+    /**
+     * Returns true if the child of node on the given side is a 2-child.
+     */
+    private static boolean isTwo(CompactNode node, boolean left) {
+        return (node.bits & twoBit(left)) != 0;
+    }
+
+    /**
+     * Sets the rank difference of the child of node on the given side to 2, or to 1.
+     */
+    private static void setTwo(CompactNode node, boolean left, boolean two) {
+        node.bits = (byte) (two ? node.bits | twoBit(left) : node.bits & ~twoBit(left));
+    }
+
+    /**
+     * Stores a node at the given depth of the path stack, growing the stack if needed.
+     */
+    private void push(int depth, CompactNode node) {
+        if (depth == path.length)
+            path = Arrays.copyOf(path, depth * 2);
+        path[depth] = node;
+    }
+
+    /**
+     * Returns the node at the root of the tree, or null if the tree is empty.
+     *
+     * @return      the root node, or null
+     */
+    public CompactNode getRoot() {
+        return root;
+    }
+
+    /**
+     * Returns the number of keys in the tree. This function runs in O(1) time.
+     *
+     * @return      the number of keys in the tree
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns true if the tree does not have any nodes in it, false otherwise.
+     *
+     * @return      true if tree is empty, otherwise false
+     */
+    public boolean empty() {
+        return root == null;
+    }
+
+    /**
+     * Returns the node with key k, or null if k isn't in the tree.
+     */
+    private CompactNode findNode(int k) {
+        CompactNode node = root;
+        while (node != null && node.key != k) {
+            node = k < node.key ? node.left : node.right;
+        }
+        return node;
+    }
+
+    /**
+     * Searches the tree for key k and returns its value, or null if k isn't in the tree.
+     * This method runs in O(logn) time.
+     *
+     * @param k         the key being searched
+     * @return          value associated with key k, or null
+     */
+    public String search(int k) {
+        CompactNode node = findNode(k);
+        return node == null ? null : node.value;
+    }
+
+    /**
+     * Inserts key k with value i to the tree, as a new leaf which is then rebalanced
+     * bottom-up. This method runs in O(logn) time.
+     *
+     * @param k     the key inserted
+     * @param i     the info associated with the key
+     * @return      the number of promotions, rotations and double rotations performed, or -1
+     *              if key k already exists in the tree
+     */
+    public int insert(int k, String i) {
+        if (root == null) {
+            root = new CompactNode(k, i);
+            size = 1;
+            return 0;
+        }
+
+        int depth = 0;
+        CompactNode parent = root;
+        while (true) {
+            if (k == parent.key)
+                return -1;
+            push(depth++, parent);
+            CompactNode next = k < parent.key ? parent.left : parent.right;
+            if (next == null)
+                break;
+            parent = next;
+        }
+
+        CompactNode node = new CompactNode(k, i);
+        if (k < parent.key)
+            parent.left = node;
+        else
+            parent.right = node;
+        size++;
+        return insertionRebalance(node, depth);
+    }
+
+    /**
+     * Restores the WAVL invariants after node was linked as a new leaf, whose rank is one
+     * more than that of the external leaf it replaced. While the node whose rank grew was a
+     * 2-child, it becomes a 1-child and the process ends. Otherwise it is a 0-child: its
+     * parent is promoted if its sibling is a 1-child, turning the sibling into a 2-child, and
+     * the violation is fixed by a single or double rotation otherwise.
+     *
+     * @param node      the new leaf
+     * @param depth     the depth of the leaf, whose ancestors are on the path stack
+     */
+    private int insertionRebalance(CompactNode node, int depth) {
+        int counter = 0;
+        CompactNode x = node;
+
+        for (int d = depth - 1; d >= 0; d--) {
+            CompactNode p = path[d];
+            CompactNode g = d > 0 ? path[d - 1] : null;
+            boolean xLeft = p.left == x;
+            if (isTwo(p, xLeft)) { // x was a 2-child
+                setTwo(p, xLeft, false);
+                break;
+            }
+
+            if (!isTwo(p, !xLeft)) { // (0,1), (1,0) Promotion cases
+                p.bits = (byte) twoBit(!xLeft);
+                counter++;
+                x = p;
+                continue;
+            }
+
+            // Rotation cases, sibling is a 2-child
+            if (isTwo(x, !xLeft)) { // inner child of x is a 2-child, so its outer one is a 1-child
+                rotateUp(x, p, g);
+                x.bits = 0;
+                p.bits = 0;
+                counter += 2;
+            } else {
+                CompactNode inner = xLeft ? x.right : x.left;
+                /* x and p adopt the children of inner on their sides, at the same differences */
+                x.bits = (byte) (isTwo(inner, xLeft) ? twoBit(!xLeft) : 0);
+                p.bits = (byte) (isTwo(inner, !xLeft) ? twoBit(xLeft) : 0);
+                inner.bits = 0;
+                rotateUp(inner, x, p);
+                rotateUp(inner, p, g);
+                counter += 4;
+            }
+            break;
+        }
+        return counter;
+    }
+
+    /**
+     * Removes key k from the tree. A binary node first swaps places with its successor, so
+     * that the node removed always has at most one child, which then takes its place. This
+     * method runs in O(logn) time.
+     *
+     * @param k     key to be removed from the tree, if it exists in it
+     * @return      the number of demotions, rotations and double rotations performed, or -1
+     *              if k was not found
+     */
+    public int delete(int k) {
+        int depth = 0;
+        CompactNode node = root;
+        while (node != null && node.key != k) {
+            push(depth++, node);
+            node = k < node.key ? node.left : node.right;
+        }
+        if (node == null)
+            return -1;
+
+        if (node.left != null && node.right != null) {
+            int nodeDepth = depth;
+            push(depth++, node);
+            CompactNode succ = node.right;
+            while (succ.left != null) {
+                push(depth++, succ);
+                succ = succ.left;
+            }
+            swapWithSuccessor(node, nodeDepth == 0 ? null : path[nodeDepth - 1], succ, path[depth - 1]);
+            path[nodeDepth] = succ; // the node is now below succ, at the depth succ had
+        }
+
+        CompactNode child = node.left != null ? node.left : node.right;
+        CompactNode parent = depth == 0 ? null : path[depth - 1];
+        boolean wasLeft = parent != null && parent.left == node;
+        replaceChild(parent, node, child);
+        size--;
+        int counter = parent == null ? 0 : deletionRebalance(depth, wasLeft);
+        Arrays.fill(path, 0, depth, null); // do not keep removed nodes reachable
+        return counter;
+    }
+
+    /**
+     * Exchanges the positions of a binary node and its successor in the tree, including
+     * their rank difference bits, without changing the contents of either node.
+     *
+     * @param node          a binary node
+     * @param nodeParent    the parent of node, or null if it is the root
+     * @param succ          the successor of node
+     * @param succParent    the parent of succ, which is node itself if succ is its right child
+     */
+    private void swapWithSuccessor(CompactNode node, CompactNode nodeParent, CompactNode succ, CompactNode succParent) {
+        CompactNode nodeLeft = node.left;
+        CompactNode succRight = succ.right;
+        byte bits = node.bits;
+        node.bits = succ.bits;
+        succ.bits = bits;
+
+        replaceChild(nodeParent, node, succ);
+        succ.left = nodeLeft;
+
+        if (succParent == node) {
+            succ.right = node;
+        } else {
+            succ.right = node.right;
+            succParent.left = node;
+        }
+
+        node.left = null;
+        node.right = succRight;
+    }
+
+    /**
+     * Restores the WAVL invariants after a node of rank 0 or 1 has been removed from below
+     * parent, on the given side. The removed node had a leaf of rank 0 or no child at all, so
+     * the difference on that side grows by 1. A 1-child becomes a 2-child, and if the parent
+     * is then a (2,2) leaf it is demoted, growing its own difference. A 2-child becomes a
+     * 3-child: the parent is demoted if its other child is a 2-child, both are demoted if the
+     * other child is a (2,2) node, and otherwise a single or double rotation ends the process.
+     *
+     * @param depth     the depth of the removed node, whose ancestors are on the path stack
+     * @param fromLeft  true if the removed node was the left child of its parent
+     */
+    private int deletionRebalance(int depth, boolean fromLeft) {
+        int counter = 0;
+        int d = depth - 1;
+        CompactNode p = path[d];
+        boolean xLeft = fromLeft;
+
+        if (!isTwo(p, xLeft)) {
+            setTwo(p, xLeft, true);
+            if (p.left != null || p.right != null)
+                return 0;
+            p.bits = 0; // (2,2) leaf
+            counter++;
+            if (d == 0)
+                return counter;
+            CompactNode pp = path[--d];
+            xLeft = pp.left == p;
+            p = pp;
+            if (!isTwo(p, xLeft)) {
+                setTwo(p, xLeft, true);
+                return counter;
+            }
+        }
+
+        while (true) { // the child of p on side xLeft is a 3-child
+            CompactNode g = d > 0 ? path[d - 1] : null;
+            CompactNode y = xLeft ? p.right : p.left;
+            if (isTwo(p, !xLeft)) { // Demotion case
+                p.bits = (byte) twoBit(xLeft);
+                counter++;
+            } else {
+                boolean outerTwo = isTwo(y, !xLeft);
+                boolean innerTwo = isTwo(y, xLeft);
+
+                if (outerTwo && innerTwo) { // Double demotion case
+                    p.bits = (byte) twoBit(xLeft);
+                    y.bits = 0;
+                    counter += 2;
+                } else if (!outerTwo) { // Single rotation
+                    rotateUp(y, p, g);
+                    p.bits = (byte) (twoBit(xLeft) | (innerTwo ? twoBit(!xLeft) : 0));
+                    counter += 3;
+                    boolean pLeaf = p.left == null && p.right == null;
+                    if (pLeaf) { // (2,2) leaf
+                        p.bits = 0;
+                        counter++;
+                    }
+                    y.bits = (byte) (twoBit(!xLeft) | (pLeaf ? twoBit(xLeft) : 0));
+                    break;
+                } else { // Double rotation
+                    CompactNode yInner = xLeft ? y.left : y.right;
+                    /* p and y adopt the children of yInner on their sides, at the same differences */
+                    p.bits = (byte) (isTwo(yInner, xLeft) ? twoBit(!xLeft) : 0);
+                    y.bits = (byte) (isTwo(yInner, !xLeft) ? twoBit(xLeft) : 0);
+                    yInner.bits = LEFT_TWO | RIGHT_TWO;
+                    rotateUp(yInner, y, p);
+                    rotateUp(yInner, p, g);
+                    counter += 4;
+                    break;
+                }
+            }
+
+            if (g == null)
+                break;
+            d--;
+            xLeft = g.left == p;
+            p = g;
+            if (!isTwo(p, xLeft)) {
+                setTwo(p, xLeft, true);
+                break;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Rotates a node above its parent, preserving the in-order of the tree. The rank
+     * difference bits are left to the caller. This function runs in O(1) time.
+     *
+     * @param x     the node rotated up
+     * @param p     the parent of x
+     * @param g     the parent of p, or null if p is the root
+     */
+    private void rotateUp(CompactNode x, CompactNode p, CompactNode g) {
+        if (p.left == x) {
+            p.left = x.right;
+            x.right = p;
+        } else {
+            p.right = x.left;
+            x.left = p;
+        }
+        replaceChild(g, p, x);
+    }
+
+    /**
+     * Sets replacement to take the place of child below parent, or as the root if parent is
+     * null.
+     */
+    private void replaceChild(CompactNode parent, CompactNode child, CompactNode replacement) {
+        if (parent == null)
+            root = replacement;
+        else if (parent.left == child)
+            parent.left = replacement;
+        else
+            parent.right = replacement;
+    }
+
+    /**
+     * Returns the value associated with the minimal key in the tree, or null if the tree is
+     * empty. This function runs in O(logn) time.
+     *
+     * @return      value of the minimal key, or null
+     */
+    public String min() {
+        CompactNode node = root;
+        if (node == null)
+            return null;
+        while (node.left != null)
+            node = node.left;
+        return node.value;
+    }
+
+    /**
+     * Returns the value associated with the maximal key in the tree, or null if the tree is
+     * empty. This function runs in O(logn) time.
+     *
+     * @return      value of the maximal key, or null
+     */
+    public String max() {
+        CompactNode node = root;
+        if (node == null)
+            return null;
+        while (node.right != null)
+            node = node.right;
+        return node.value;
+    }
+
+    /**
+     * Walks the tree in order, keeping the nodes whose left subtree is being walked on the
+     * path stack, and copies the keys to keys and the values to values, each if it is not
+     * null. This function runs in O(n) time.
+     */
+    private void walk(int[] keys, String[] values) {
+        int depth = 0;
+        int j = 0;
+        CompactNode node = root;
+        while (node != null || depth > 0) {
+            if (node != null) {
+                push(depth++, node);
+                node = node.left;
+            } else {
+                node = path[--depth];
+                if (keys != null)
+                    keys[j] = node.key;
+                if (values != null)
+                    values[j] = node.value;
+                j++;
+                node = node.right;
+            }
+        }
+    }
+
+    /**
+     * Returns a sorted array of the tree's keys. This function runs in O(n) time.
+     *
+     * @return      array of the tree's keys in ascending order
+     */
+    public int[] keysToArray() {
+        int[] keys = new int[size];
+        walk(keys, null);
+        return keys;
+    }
+
+    /**
+     * Returns an array of the tree's values, sorted in ascending order of their keys.
+     * This function runs in O(n) time.
+     *
+     * @return      array of the values in ascending order of their keys
+     */
+    public String[] infoToArray() {
+        String[] values = new String[size];
+        walk(null, values);
+        return values;
+    }
+
+    /**
+     * Validates the structure of the tree: the BST order, the size, and
+     * the rank difference bits, which must give every node the same rank through both of its
+     * children and make every leaf a (1,1) node. Intended for tests.
+     *
+     * @return      null if the structure is valid, or a description of the first violation
+     */
+    public String validateStructure() {
+        String[] error = new String[1];
+        int[] count = new int[1];
+        validateStructure(root, Long.MIN_VALUE, Long.MAX_VALUE, error, count);
+        if (error[0] == null && count[0] != size)
+            return "size " + size + ", expected " + count[0];
+        return error[0];
+    }
+
+    /**
+     * Returns the rank of a node as given by the bits of its subtree, or -1 for a missing
+     * node, and records the first violation found in error.
+     */
+    private static int validateStructure(CompactNode node, long low, long high, String[] error, int[] count) {
+        if (node == null || error[0] != null)
+            return -1;
+        count[0]++;
+        if (node.key <= low || node.key >= high)
+            error[0] = "key " + node.key + " out of BST order";
+        else if (node.left == null && node.right == null && node.bits != 0)
+            error[0] = "leaf " + node.key + " is not (1,1)";
+
+        int leftRank = validateStructure(node.left, low, node.key, error, count);
+        int rightRank = validateStructure(node.right, node.key, high, error, count);
+        int rank = leftRank + node.getLeftRankDifference();
+        if (error[0] == null && rank != rightRank + node.getRightRankDifference())
+            error[0] = "node " + node.key + " has rank " + rank + " through its left child and "
+                    + (rightRank + node.getRightRankDifference()) + " through its right child";
+        return rank;
+    }
+}
@@ -0,0 +1,190 @@
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ *
+ * LeftRightWAVLTree
+ *
+ * A WAVL tree for one writer and many concurrent readers, in which readers never lock and
+ * never wait, and always see a consistent tree.<br>
+ *
+ * The tree is kept in two WAVLTree instances, following the Left-Right technique (Ramalhete
+ * and Correia '15). Readers use the instance published in a volatile field, while the writer
+ * applies each change to the other instance, publishes it, waits until no reader is still
+ * using the instance it replaced, and then applies the same change to that instance too. A
+ * change thus costs two O(logn) updates of WAVLTree, made with its usual rotations, plus the
+ * time for the readers of the old instance to finish, and no version of the tree is ever
+ * copied or left to the garbage collector.<br>
+ *
+ * Readers announce themselves on one of two pairs of counters, which the writer alternates
+ * between, so that it only waits for readers that started before a publication. The counters
+ * are LongAdders, split into arrivals and departures, so that readers do not contend on a
+ * single memory location.<br>
+ *
+ * The instances are created with the default configuration of WAVLTree, so that their read
+ * methods do not modify them. Changes must be deterministic, since they are applied twice.
+ *
+ */
+public class LeftRightWAVLTree {
+    private final WAVLTree[] instances = {new WAVLTree(), new WAVLTree()};
+    /** Index of the instance readers use */
+    private volatile int published;
+    /** Index of the pair of counters new readers announce themselves on */
+    private volatile int readerVersion;
+    private final LongAdder[] arrivals = {new LongAdder(), new LongAdder()};
+    private final LongAdder[] departures = {new LongAdder(), new LongAdder()};
+
+    /**
+     * Runs a read-only function on the current version of the tree. Every call the function
+     * makes sees the same version, which reflects all changes completed before the read
+     * started. The function must not modify the tree or keep references to it.
+     *
+     * @param reader    a function reading the tree
+     * @param <R>       the type of the result
+     * @return          the result of the function
+     */
+    public <R> R read(Function<WAVLTree, R> reader) {
+        int version = readerVersion;
+        arrivals[version].increment();
+        try {
+            return reader.apply(instances[published]);
+        } finally {
+            departures[version].increment();
+        }
+    }
+
+    /**
+     * Searches the current version of the tree for key k, as WAVLTree.search.
+     *
+     * @param k     the key being searched
+     * @return      value associated with key k, or null if k is not in the tree
+     */
+    public String search(int k) {
+        return read(t -> t.search(k));
+    }
+
+    /**
+     * Returns the value of the i'th smallest key in the current version, as WAVLTree.select.
+     *
+     * @param i     the position of the key in the sorted order, starting at 1
+     * @return      the value associated with the i'th smallest key
+     */
+    public String select(int i) {
+        return read(t -> t.select(i));
+    }
+
+    /**
+     * Returns the number of keys in the current version of the tree.
+     *
+     * @return      the number of keys in the tree
+     */
+    public int size() {
+        return read(WAVLTree::size);
+    }
+
+    /**
+     * Returns a sorted array of the keys of the current version of the tree.
+     *
+     * @return      array of the tree's keys in ascending order
+     */
+    public int[] keysToArray() {
+        return read(WAVLTree::keysToArray);
+    }
+
+    /**
+     * Inserts key k with value i to the tree, as WAVLTree.insert.
+     *
+     * @param k     the key inserted
+     * @param i     the info associated with the key
+     * @return      the number of rebalancing operations performed, or -1 if key k already
+     *              exists in the tree
+     */
+    public int insert(int k, String i) {
+        int[] result = new int[1];
+        write(t -> result[0] = t.insert(k, i));
+        return result[0];
+    }
+
+    /**
+     * Removes key k from the tree, as WAVLTree.delete.
+     *
+     * @param k     key to be removed from the tree, if it exists in it
+     * @return      the number of rebalancing operations performed, or -1 if k was not found
+     */
+    public int delete(int k) {
+        int[] result = new int[1];
+        write(t -> result[0] = t.delete(k));
+        return result[0];
+    }
+
+    /**
+     * Applies a change to the tree, which readers see at once: a read started before the
+     * change is published sees none of it, and a read started after sees all of it. The
+     * change is applied to both instances in turn, so it must be deterministic, and it must
+     * not depend on anything but the tree. Writers are serialized.<br>
+     *
+     * If the change throws, the instance it was being applied to may be partly changed, so
+     * it is rebuilt from the other instance before the exception is rethrown. When the first
+     * application throws, nothing is published, and the tree stays as it was. The second
+     * application can only throw if the change is not deterministic, and the tree then keeps
+     * the version that was published.<br>
+     *
+     * This method runs in twice the time of the change, plus the time it takes readers
+     * of the previous version to finish, and in O(n) time if the change throws.
+     *
+     * @param change    the modifications made to the tree
+     */
+    public synchronized void write(Consumer<WAVLTree> change) {
+        int current = published;
+        apply(change, 1 - current);
+        published = 1 - current;
+        awaitReaders();
+        apply(change, current);
+    }
+
+    /**
+     * Applies a change to the instance of the given index, which no reader uses, and if the
+     * change throws, replaces that instance by a copy of the other one and rethrows. The
+     * copy is published with the instance by the next write of published.
+     */
+    private void apply(Consumer<WAVLTree> change, int index) {
+        try {
+            change.accept(instances[index]);
+        } catch (RuntimeException | Error e) {
+            WAVLTree source = instances[1 - index];
+            instances[index] = WAVLTree.buildParallel(source.keysToArray(), source.infoToArray());
+            throw e;
+        }
+    }
+
+    /**
+     * Waits until no reader is using the instance that was published before the last
+     * publication. New readers are first sent to the other pair of counters, after the
+     * readers left on it by the publication before have departed, and then the readers on
+     * the previous pair are waited for. A reader that read readerVersion before the switch
+     * may announce itself on the previous pair after the switch, but it then reads the new
+     * instance, so the wait for it is harmless.
+     */
+    private void awaitReaders() {
+        int previous = readerVersion;
+        int next = 1 - previous;
+        while (!isEmpty(next)) {
+            Thread.yield();
+        }
+        readerVersion = next;
+        while (!isEmpty(previous)) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Returns true if every reader which arrived on a pair of counters has departed. The
+     * departures are summed first, so a reader arriving and departing during the check can
+     * only make the arrivals larger.
+     */
+    private boolean isEmpty(int version) {
+        long departed = departures[version].sum();
+        return arrivals[version].sum() == departed;
+    }
+}
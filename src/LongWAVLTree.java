@@ -0,0 +1,177 @@
+/**
+ *
+ * LongWAVLTree
+ *
+ * A WAVL tree with primitive long keys and String values, built on AbstractWAVLTree. Keys are
+ * stored and compared as longs, without boxing, so 64-bit identifiers need not be hashed down
+ * to ints.
+ *
+ */
+public class LongWAVLTree extends AbstractWAVLTree<LongWAVLTree.LongNode> {
+
+    /**
+     * A node of the tree, holding a long key and its value.
+     */
+    public static class LongNode extends AbstractWAVLTree.Node<LongNode> {
+        private final long key;
+        private final String value;
+
+        private LongNode(long key, String value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        /** @return     the key of the node */
+        public long getKey() { return key; }
+
+        /** @return     the value of the node */
+        public String getValue() { return value; }
+    }
+
+    /**
+     * Returns the node with key k, or the node below which k would be inserted if it is not
+     * in the tree. The tree must not be empty.
+     */
+    private LongNode findInsertionPlace(long k) {
+        LongNode node = root;
+        while (true) {
+            LongNode next = k < node.key ? node.left : k > node.key ? node.right : null;
+            if (next == null)
+                return node;
+            node = next;
+        }
+    }
+
+    /**
+     * Searches the tree for key k and returns its value, or null if k isn't in the tree.
+     * This method runs in O(logn) time.
+     *
+     * @param k         the key being searched
+     * @return          value associated with key k, or null
+     */
+    public String search(long k) {
+        LongNode node = root;
+        while (node != null) {
+            if (k == node.key)
+                return node.value;
+            node = k < node.key ? node.left : node.right;
+        }
+        return null;
+    }
+
+    /**
+     * Inserts key k with value i to the tree. This method runs in O(logn) time.
+     *
+     * @param k     the key inserted
+     * @param i     the info associated with the key
+     * @return      the number of rebalancing operations performed, or -1 if key k already
+     *              exists in the tree
+     */
+    public int insert(long k, String i) {
+        if (root == null) {
+            insertRoot(new LongNode(k, i));
+            return 0;
+        }
+        LongNode parent = findInsertionPlace(k);
+        if (parent.key == k)
+            return -1;
+        return insertChild(parent, new LongNode(k, i), k < parent.key);
+    }
+
+    /**
+     * Removes key k from the tree. This method runs in O(logn) time.
+     *
+     * @param k     key to be removed from the tree, if it exists in it
+     * @return      the number of rebalancing operations performed, or -1 if k was not found
+     */
+    public int delete(long k) {
+        if (root == null)
+            return -1;
+        LongNode node = findInsertionPlace(k);
+        if (node.key != k)
+            return -1;
+        return remove(node);
+    }
+
+    /**
+     * Returns the value of the i'th smallest key in the tree, or null if i is not between 1
+     * and the size of the tree. This method runs in O(logn) time.
+     *
+     * @param i     the position of the key in the sorted order, starting at 1
+     * @return      the value associated with the i'th smallest key
+     */
+    public String select(int i) {
+        LongNode node = selectNode(i);
+        return node == null ? null : node.value;
+    }
+
+    /**
+     * Returns the number of keys in the tree which are smaller than k. This method runs in
+     * O(logn) time.
+     *
+     * @param k     a key, not necessarily in the tree
+     * @return      the number of keys smaller than k
+     */
+    public int rank(long k) {
+        int smaller = 0;
+        LongNode node = root;
+        while (node != null) {
+            if (k <= node.key) {
+                node = node.left;
+            } else {
+                smaller += 1 + (node.left == null ? 0 : node.left.size);
+                node = node.right;
+            }
+        }
+        return smaller;
+    }
+
+    /**
+     * Returns the value associated with the minimal key in the tree, or null if it is empty.
+     *
+     * @return      the value of the minimal key
+     */
+    public String min() {
+        LongNode node = firstNode();
+        return node == null ? null : node.value;
+    }
+
+    /**
+     * Returns the value associated with the maximal key in the tree, or null if it is empty.
+     *
+     * @return      the value of the maximal key
+     */
+    public String max() {
+        LongNode node = lastNode();
+        return node == null ? null : node.value;
+    }
+
+    /**
+     * Returns a sorted array of the tree's keys. This function runs in O(n) time.
+     *
+     * @return      array of the tree's keys in ascending order
+     */
+    public long[] keysToArray() {
+        long[] keys = new long[size()];
+        int j = 0;
+        for (LongNode node = firstNode(); node != null; node = successorNode(node)) {
+            keys[j++] = node.key;
+        }
+        return keys;
+    }
+
+    /**
+     * Returns an array of the tree's values, sorted in ascending order of their keys.
+     * This function runs in O(n) time.
+     *
+     * @return      array of values associated with the keys in ascending order
+     */
+    public String[] infoToArray() {
+        String[] values = new String[size()];
+        int j = 0;
+        for (LongNode node = firstNode(); node != null; node = successorNode(node)) {
+            values[j++] = node.value;
+        }
+        return values;
+    }
+}
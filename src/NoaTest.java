@@ -1,7 +1,30 @@
 import java.util.*;
 
 public class NoaTest {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException, java.io.IOException {
+        if (args.length > 0 && args[0].equals("fuzz")) {
+            long seed = args.length > 1 ? Long.parseLong(args[1]) : 0;
+            long millis = args.length > 2 ? Long.parseLong(args[2]) : 10000;
+            int threads = Runtime.getRuntime().availableProcessors();
+            System.exit(parallelFuzz(seed, threads, millis, 2000, 50) ? 0 : 1);
+        }
+        if (args.length > 0 && args[0].equals("bench")) {
+            int n = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+            benchmarkLookups(n);
+            benchmarkKeyTypes(n);
+            benchmarkCounters(n);
+            benchmarkTopDown(n);
+            benchmarkRankPolicies(n);
+            benchmarkCompact(n);
+            benchmarkBuild(n);
+            benchmarkChangeLog(n);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("serve")) {
+            long millis = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+            benchmarkQueryService(1 << 20, millis);
+            return;
+        }
         experiment();
     }
 
@@ -69,19 +92,18 @@ public class NoaTest {
 //        t.delete(16);
 //        System.out.println(WAVLTreePrinter.toString(t));
 //
-        fuzz(10000, false, false);
+        fuzz(10000, 0, false);
     }
 
     private static void experiment() {
         for (int i = 1; i < 11; i++) {
-            fuzz(i * 10000, false, false);
+            fuzz(i * 10000, i, false);
         }
     }
 
-    private static void fuzz(int count, boolean print, boolean validateStructure) {
+    private static void fuzz(int count, long seed, boolean validateStructure) {
         WAVLTree t = new WAVLTree();
-        Random r = new Random();
-        //Set<Integer> inserted = new HashSet<>();
+        Random r = new Random(seed);
 
         int maxOpsForInsert = 0;
         int totalOpsForInsert = 0;
@@ -98,8 +120,6 @@ public class NoaTest {
                 System.out.println(WAVLTreePrinter.toString(t));
                 return;
             }
-
-            //inserted.add(randomKey);
         }
 
         int[] keys = t.keysToArray();
@@ -118,74 +138,2015 @@ public class NoaTest {
 
         System.out.println(""+ count + ", " + maxOpsForInsert + ", " + averageInsert
                             + ", " + maxOpsForDelete + ", " + averageDelete);
+    }
 
+    /**
+     * Compares the lookup throughput of WAVLTree, BucketWAVLTree and WAVLIndex on n random keys, with
+     * lookups of random present keys. Each measurement is repeated so that the JIT compiler
+     * has warmed up by the last round.
+     */
+    private static void benchmarkLookups(int n) {
+        Random r = new Random(n);
+        int[] keys = new int[n];
+        WAVLTree wavl = new WAVLTree();
+        BucketWAVLTree buckets = new BucketWAVLTree();
+        for (int i = 0; i < n; i++) {
+            keys[i] = r.nextInt();
+            wavl.insert(keys[i], "");
+            buckets.insert(keys[i], "");
+        }
+        int[] queries = new int[4 * n];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = keys[r.nextInt(n)];
+        }
 
+        WAVLIndex index = wavl.freezeToIndex();
 
-//        System.out.println("Tree built: " + t.getRoot().getSubtreeSize());
-//
-//        if (t.keysToArray().length != inserted.size()) {
-//            System.out.println("keysToArray.length != inserted.size(), " + t.keysToArray().length + "!=" + inserted.size());
-//            return;
-//        }
-//
-//        ArrayList<Integer> keys = new ArrayList<>();
-//        for (int k : t.keysToArray()) {
-//            keys.add(k);
-//        }
-//
-//        if (!inserted.containsAll(keys)) {
-//            System.out.println("keysToArray != inserted");
-//            return;
-//        }
-//
-//        for (Integer k : keys) {
-//            if (t.search(k) == null) {
-//                System.out.println("Couldn't search for: " + k);
-//                return;
-//            }
-//        }
-//
-//        if (t.size() != keys.size()) {
-//            System.out.println("wrong tree size");
-//            return;
-//        }
-//
-//        Collections.shuffle(keys, r);
-//
-//        System.out.println("Keys shuffles: " + keys.size());
-//
-//        for (Integer k : keys) {
-//            if (print) {
-//                System.out.println("Deleting key: " + k);
-//            }
-//
-//            t.delete(k);
-//
-//            if (print) {
-//                System.out.println(WAVLTreePrinter.toString(t));
-//            }
-//
-//            if (validateStructure && !validateBinaryStructure(t.getRoot())) {
-//                System.out.println("Tree failed validation during delete");
-//                System.out.println(WAVLTreePrinter.toString(t));
-//                return;
-//            }
-//
-//            if (t.search(k) != null) {
-//                System.out.println("Didn't expect to find key after deletion: " + k);
-//                break;
-//            }
-//        }
-//
-//        if (!t.empty()) {
-//            System.out.println("Tree isn't empty:");
-//            System.out.println(WAVLTreePrinter.toString(t));
-//        }
-//
-//        if (t.size() != 0) {
-//            System.out.println("wrong tree size");
-//            return;
-//        }
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            int found = 0;
+            for (int q : queries) {
+                if (wavl.search(q) != null)
+                    found++;
+            }
+            long wavlNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int q : queries) {
+                if (buckets.search(q) != null)
+                    found++;
+            }
+            long bucketNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int q : queries) {
+                if (index.search(q) != null)
+                    found++;
+            }
+            long indexNanos = System.nanoTime() - start;
+
+            System.out.println(String.format("n=%d WAVLTree %.1fns/lookup, BucketWAVLTree %.1fns/lookup, " +
+                            "WAVLIndex %.1fns/lookup (%d)", n, (double) wavlNanos / queries.length,
+                    (double) bucketNanos / queries.length, (double) indexNanos / queries.length, found));
+        }
+    }
+
+    /**
+     * Compares the insertion and lookup times of WAVLTree, LongWAVLTree and BytesWAVLTree on
+     * the same n random keys, widened to longs and encoded as 8-byte strings respectively.
+     */
+    private static void benchmarkKeyTypes(int n) {
+        Random r = new Random(n);
+        int[] keys = new int[n];
+        long[] longKeys = new long[n];
+        byte[][] byteKeys = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            keys[i] = r.nextInt();
+            longKeys[i] = (long) keys[i] << 32 | r.nextInt(1 << 16);
+            byteKeys[i] = java.nio.ByteBuffer.allocate(8).putLong(longKeys[i] ^ Long.MIN_VALUE).array();
+        }
+
+        for (int round = 0; round < 3; round++) {
+            WAVLTree ints = new WAVLTree();
+            LongWAVLTree longs = new LongWAVLTree();
+            BytesWAVLTree bytes = new BytesWAVLTree();
+            long[] nanos = new long[6];
+
+            long start = System.nanoTime();
+            for (int k : keys)
+                ints.insert(k, "");
+            nanos[0] = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (long k : longKeys)
+                longs.insert(k, "");
+            nanos[1] = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (byte[] k : byteKeys)
+                bytes.insert(k, "");
+            nanos[2] = System.nanoTime() - start;
+
+            int found = 0;
+            start = System.nanoTime();
+            for (int k : keys)
+                found += ints.search(k) == null ? 0 : 1;
+            nanos[3] = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (long k : longKeys)
+                found += longs.search(k) == null ? 0 : 1;
+            nanos[4] = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (byte[] k : byteKeys)
+                found += bytes.search(k) == null ? 0 : 1;
+            nanos[5] = System.nanoTime() - start;
+
+            System.out.println(String.format("n=%d insert int %.1fns, long %.1fns, byte[] %.1fns; " +
+                            "search int %.1fns, long %.1fns, byte[] %.1fns (%d)", n,
+                    (double) nanos[0] / n, (double) nanos[1] / n, (double) nanos[2] / n,
+                    (double) nanos[3] / n, (double) nanos[4] / n, (double) nanos[5] / n, found));
+        }
+    }
+
+    /**
+     * Compares a counting workload over n/8 distinct keys, n increments in all, done with a
+     * search followed by a deletion and an insertion, and done with a single merge.
+     */
+    private static void benchmarkCounters(int n) {
+        Random r = new Random(n);
+        int[] keys = new int[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = r.nextInt(Math.max(1, n / 8));
+        }
+        java.util.function.BiFunction<String, String, String> increment =
+                (a, b) -> String.valueOf(Integer.parseInt(a) + 1);
+
+        for (int round = 0; round < 3; round++) {
+            WAVLTree separate = new WAVLTree();
+            long start = System.nanoTime();
+            for (int k : keys) {
+                String count = separate.search(k);
+                if (count == null) {
+                    separate.insert(k, "1");
+                } else {
+                    separate.delete(k);
+                    separate.insert(k, String.valueOf(Integer.parseInt(count) + 1));
+                }
+            }
+            long separateNanos = System.nanoTime() - start;
+
+            WAVLTree merged = new WAVLTree();
+            start = System.nanoTime();
+            for (int k : keys) {
+                merged.merge(k, "1", increment);
+            }
+            long mergeNanos = System.nanoTime() - start;
+
+            System.out.println(String.format("n=%d counters: search+delete+insert %.1fns, merge %.1fns (%s)",
+                    n, (double) separateNanos / n, (double) mergeNanos / n,
+                    Arrays.equals(separate.infoToArray(), merged.infoToArray()) ? "same counts" : "DIFFERENT"));
+        }
+    }
+
+    /**
+     * Compares bottom-up and top-down insertion of the same n random keys, and then deletion
+     * of half of them, in time and in rebalancing operations, and reports the heights of the
+     * resulting trees.
+     */
+    private static void benchmarkTopDown(int n) {
+        Random r = new Random(n);
+        int[] keys = new int[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = r.nextInt();
+        }
+
+        for (int round = 0; round < 3; round++) {
+            long[][] nanos = new long[2][2];
+            long[][] operations = new long[2][2];
+            int[][] heights = new int[2][2];
+            for (int mode = 0; mode < 2; mode++) {
+                WAVLTree t = new WAVLTree();
+                t.setTopDownInsert(mode == 1);
+                t.setTopDownDelete(mode == 1);
+                long start = System.nanoTime();
+                for (int k : keys) {
+                    operations[mode][0] += Math.max(0, t.insert(k, ""));
+                }
+                nanos[mode][0] = System.nanoTime() - start;
+                heights[mode][0] = t.stats().getHeight();
+
+                start = System.nanoTime();
+                for (int j = 0; j < n; j += 2) {
+                    operations[mode][1] += Math.max(0, t.delete(keys[j]));
+                }
+                nanos[mode][1] = System.nanoTime() - start;
+                heights[mode][1] = t.stats().getHeight();
+            }
+            for (int phase = 0; phase < 2; phase++) {
+                int count = phase == 0 ? n : (n + 1) / 2;
+                System.out.println(String.format("n=%d %s bottom-up %.1fns, %.2f ops, height %d; " +
+                                "top-down %.1fns, %.2f ops, height %d", n, phase == 0 ? "insert" : "delete",
+                        (double) nanos[0][phase] / count, (double) operations[0][phase] / count, heights[0][phase],
+                        (double) nanos[1][phase] / count, (double) operations[1][phase] / count, heights[1][phase]));
+            }
+        }
+    }
+
+    /**
+     * Runs each rank policy through the same workloads and reports, per operation, the time
+     * and the rebalancing operations, and the height and average depth of the resulting tree.
+     * Every workload starts from the same n random keys, inserted in the first phase, and
+     * then runs n operations on random keys from twice that range: insert-only keeps
+     * inserting, churn alternates inserts and deletes, delete-heavy deletes three times out
+     * of four, and read-heavy searches nine times out of ten.
+     */
+    private static void benchmarkRankPolicies(int n) {
+        String[] workloads = {"insert-only", "churn", "delete-heavy", "read-heavy"};
+        int[] deletesOutOf20 = {0, 10, 15, 1};
+        int[] searchesOutOf20 = {0, 0, 0, 18};
+        Random r = new Random(n);
+        int[] keys = new int[2 * n];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = r.nextInt();
+        }
+
+        for (int w = 0; w < workloads.length; w++) {
+            for (WAVLTree.RankPolicy policy : WAVLTree.RankPolicy.values()) {
+                WAVLTree t = new WAVLTree();
+                t.setRankPolicy(policy);
+                for (int i = 0; i < n; i++) {
+                    t.insert(keys[i], "");
+                }
+
+                Random ops = new Random(w);
+                long operations = 0;
+                long start = System.nanoTime();
+                for (int i = 0; i < n; i++) {
+                    int k = keys[ops.nextInt(keys.length)];
+                    int kind = ops.nextInt(20);
+                    if (kind < searchesOutOf20[w])
+                        t.search(k);
+                    else if (kind < searchesOutOf20[w] + deletesOutOf20[w])
+                        operations += Math.max(0, t.delete(k));
+                    else
+                        operations += Math.max(0, t.insert(k, ""));
+                }
+                long nanos = System.nanoTime() - start;
+
+                WAVLTree.TreeStats stats = t.stats();
+                System.out.println(String.format("n=%d %-12s %-4s %.1fns, %.2f ops, height %d, average depth %.2f",
+                        n, workloads[w], policy, (double) nanos / n, (double) operations / n,
+                        stats.getHeight(), stats.getAverageDepth()));
+            }
+        }
+    }
+
+    /**
+     * Compares WAVLTree and CompactWAVLTree on the same n random keys: the time of the
+     * insertions, of a search for every key and of n alternating insertions and deletions of
+     * other keys, and the heap taken by the full tree, measured as the growth of the used heap
+     * after a collection, per key.
+     */
+    private static void benchmarkCompact(int n) {
+        Random r = new Random(n);
+        int[] keys = new int[2 * n];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = r.nextInt();
+        }
+        Runtime runtime = Runtime.getRuntime();
+
+        for (int round = 0; round < 3; round++) {
+            long[] nanos = new long[6];
+            long[] bytes = new long[2];
+
+            System.gc();
+            long before = runtime.totalMemory() - runtime.freeMemory();
+            WAVLTree full = new WAVLTree();
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++)
+                full.insert(keys[i], "");
+            nanos[0] = System.nanoTime() - start;
+            System.gc();
+            bytes[0] = runtime.totalMemory() - runtime.freeMemory() - before;
+
+            System.gc();
+            before = runtime.totalMemory() - runtime.freeMemory();
+            CompactWAVLTree compact = new CompactWAVLTree();
+            start = System.nanoTime();
+            for (int i = 0; i < n; i++)
+                compact.insert(keys[i], "");
+            nanos[1] = System.nanoTime() - start;
+            System.gc();
+            bytes[1] = runtime.totalMemory() - runtime.freeMemory() - before;
+
+            int found = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < n; i++)
+                found += full.search(keys[i]) == null ? 0 : 1;
+            nanos[2] = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < n; i++)
+                found += compact.search(keys[i]) == null ? 0 : 1;
+            nanos[3] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                full.insert(keys[n + i], "");
+                full.delete(keys[i]);
+            }
+            nanos[4] = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                compact.insert(keys[n + i], "");
+                compact.delete(keys[i]);
+            }
+            nanos[5] = System.nanoTime() - start;
+
+            System.out.println(String.format("n=%d insert full %.1fns, compact %.1fns; search full %.1fns, " +
+                            "compact %.1fns; churn full %.1fns, compact %.1fns; heap full %.1fB/key, " +
+                            "compact %.1fB/key (%d)", n,
+                    (double) nanos[0] / n, (double) nanos[1] / n, (double) nanos[2] / n, (double) nanos[3] / n,
+                    (double) nanos[4] / n, (double) nanos[5] / n, (double) bytes[0] / n, (double) bytes[1] / n,
+                    found));
+        }
+    }
+
+    /**
+     * Compares loading n unsorted random pairs by inserting them one by one and by
+     * buildParallel, and reports the heights of the resulting trees.
+     */
+    private static void benchmarkBuild(int n) {
+        Random r = new Random(n);
+        int[] keys = new int[n];
+        String[] values = new String[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = r.nextInt();
+            values[i] = "";
+        }
+
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            WAVLTree inserted = new WAVLTree();
+            for (int i = 0; i < n; i++)
+                inserted.insert(keys[i], values[i]);
+            long insertNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            WAVLTree built = WAVLTree.buildParallel(keys, values);
+            long buildNanos = System.nanoTime() - start;
+
+            System.out.println(String.format("n=%d load by insert %.1fms, height %d; buildParallel on %d cores " +
+                            "%.1fms, height %d (%s)", n, insertNanos / 1e6, inserted.stats().getHeight(),
+                    Runtime.getRuntime().availableProcessors(), buildNanos / 1e6, built.stats().getHeight(),
+                    Arrays.equals(inserted.keysToArray(), built.keysToArray()) ? "same keys" : "DIFFERENT"));
+        }
+    }
+
+    /**
+     * Measures the cost of logging n insertions of random keys to a change log, against
+     * inserting them without a log, and the time a replica takes to apply the records,
+     * streamed in frames of 4096 records, with the size of the stream per record.
+     */
+    private static void benchmarkChangeLog(int n) throws java.io.IOException {
+        Random r = new Random(n);
+        int[] keys = new int[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = r.nextInt();
+        }
+
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            WAVLTree plain = new WAVLTree();
+            for (int k : keys)
+                plain.insert(k, "value");
+            long plainNanos = System.nanoTime() - start;
+
+            WAVLChangeLog log = new WAVLChangeLog(1 << 30);
+            start = System.nanoTime();
+            WAVLTree logged = new WAVLTree();
+            logged.setChangeLog(log);
+            for (int k : keys)
+                logged.insert(k, "value");
+            long loggedNanos = System.nanoTime() - start;
+
+            java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+            for (long next = 0; next < log.nextSequence(); )
+                next = log.writeFrame(next, out, 4096);
+            byte[] stream = out.toByteArray();
+            start = System.nanoTime();
+            WAVLTree replica = new WAVLTree();
+            java.io.ByteArrayInputStream in = new java.io.ByteArrayInputStream(stream);
+            for (long next = 0; in.available() > 0; )
+                next = WAVLChangeLog.applyFrame(in, replica, next);
+            long applyNanos = System.nanoTime() - start;
+
+            System.out.println(String.format("n=%d insert %.1fns, with change log %.1fns; replica apply %.1fns, " +
+                            "%.1fB/record (%s)", n, (double) plainNanos / n, (double) loggedNanos / n,
+                    (double) applyNanos / n, (double) stream.length / n,
+                    Arrays.equals(logged.keysToArray(), replica.keysToArray()) ? "same keys" : "DIFFERENT"));
+        }
+    }
+
+    /* ---------------------------------------------------------------------------------
+     * Differential testing: random operation sequences are applied both to each tree variant
+     * and to a java.util.TreeMap, and every result is compared. A sequence is fully determined
+     * by its seed, so any failure can be replayed, and failing sequences are shrunk to a
+     * minimal reproducer before being reported.
+     * --------------------------------------------------------------------------------- */
+
+    /** The operations of the differential test, adapted to each tree variant */
+    interface TestedTree {
+        int insert(int k, String v);
+        int delete(int k);
+        String search(int k);
+        String select(int i);
+        int size();
+        int[] keysToArray();
+        String[] infoToArray();
+        String min();
+        String max();
+        String validate();
+    }
+
+    /** Creates a new empty tree of the variant with the given index */
+    static TestedTree newTree(int variant) {
+        switch (variant) {
+            case 0:
+                return adapt(new WAVLTree(16), false); // recycles nodes, so reused nodes are exercised
+            case 1: {
+                WAVLTree t = new WAVLTree();
+                t.setFingerSearch(true);
+                t.setSearchCacheCapacity(8);
+                t.setAugmentation(ORDERED_HASH);
+                return adapt(t, true);
+            }
+            case 2:
+            case 3:
+                return adapt(new BucketWAVLTree(variant == 2 ? 32 : 4));
+            case 4:
+                return adapt(new LongWAVLTree());
+            case 5:
+                return adapt(new BytesWAVLTree());
+            case 6:
+                return adapt(new PrimitiveWAVLTree());
+            case 8: {
+                WAVLTree t = new WAVLTree(4);
+                t.setLazyDelete(true, 0.5);
+                t.setFingerSearch(true);
+                t.setSearchCacheCapacity(8);
+                t.setAugmentation(ORDERED_HASH);
+                return adapt(t, true);
+            }
+            case 9: {
+                WAVLTree t = new WAVLTree(4);
+                t.setTopDownInsert(true);
+                t.setLazyDelete(true, 0.5);
+                t.setAugmentation(ORDERED_HASH);
+                return adapt(t, true, true);
+            }
+            case 10: {
+                WAVLTree t = new WAVLTree(4);
+                t.setRankPolicy(WAVLTree.RankPolicy.AVL);
+                t.setFingerSearch(true);
+                t.setAugmentation(ORDERED_HASH);
+                return adapt(t, true);
+            }
+            case 11: {
+                WAVLTree t = new WAVLTree(4);
+                t.setRankPolicy(WAVLTree.RankPolicy.RAVL);
+                t.setLazyDelete(true, 0.5);
+                t.setAugmentation(ORDERED_HASH);
+                return adapt(t, true);
+            }
+            case 12:
+                return adapt(new CompactWAVLTree());
+            case 13: {
+                WAVLTree t = new WAVLTree(4);
+                t.setTopDownInsert(true);
+                t.setTopDownDelete(true);
+                t.setFingerSearch(true);
+                t.setSearchCacheCapacity(8);
+                t.setAugmentation(ORDERED_HASH);
+                return adapt(t, true, true);
+            }
+            default:
+                return adapt(new RecordWAVLTree(12, 1)); // grows the slab from a single record
+        }
+    }
+
+    private static final String[] VARIANTS = {"WAVLTree", "WAVLTree with finger search, cache and augmentation",
+            "BucketWAVLTree(32)", "BucketWAVLTree(4)", "LongWAVLTree", "BytesWAVLTree",
+            "PrimitiveWAVLTree", "RecordWAVLTree", "WAVLTree with lazy deletion", "WAVLTree with top-down insertion, lazy deletion and augmentation",
+            "AVL-ranked WAVLTree", "RAVL-ranked WAVLTree with lazy deletion", "CompactWAVLTree",
+            "WAVLTree with top-down insertion and deletion, finger search, cache and augmentation"};
+
+    private static TestedTree adapt(final WAVLTree t, final boolean augmented) {
+        return adapt(t, augmented, false);
+    }
+
+    /**
+     * Adapts a WAVLTree to the differential test. Unless the tree rebalances on the way down,
+     * which may restructure the path before finding the key, a rejected insertion is also
+     * checked to leave the ranks on the path of its key unchanged.
+     */
+    private static TestedTree adapt(final WAVLTree t, final boolean augmented, final boolean topDown) {
+        return new TestedTree() {
+            public int insert(int k, String v) {
+                long before = topDown ? 0 : pathRanks(t, k);
+                int result = t.insert(k, v);
+                if (result == -1 && !topDown && pathRanks(t, k) != before)
+                    throw new IllegalStateException("rejected insertion of " + k + " changed ranks");
+                return result;
+            }
+            public int delete(int k) {
+                int result = t.delete(k);
+                if (t.getTombstoneCount() > 0 && (k & 3) == 0)
+                    t.compactTombstones(2); // a quarter of the deletions compact a batch
+                return result;
+            }
+            public String search(int k) { return t.search(k); }
+            public String select(int i) { return t.select(i); }
+            public int size() { return t.size(); }
+            public int[] keysToArray() { return t.keysToArray(); }
+            public String[] infoToArray() { return t.infoToArray(); }
+            public String min() { return t.min(); }
+            public String max() { return t.max(); }
+            public String validate() {
+                String error = validateWAVL(t);
+                if (error == null)
+                    error = validateIndex(t);
+                if (error == null)
+                    error = validateStats(t);
+                return error != null || !augmented ? error : validateAggregates(t);
+            }
+        };
+    }
+
+    /**
+     * Returns a hash of the ranks of the nodes on the search path of key k, which changes if
+     * a node on the path is promoted or rotated.
+     */
+    static long pathRanks(WAVLTree t, int k) {
+        long hash = 0;
+        for (WAVLTree.WAVLNode node = t.getRoot(); node != null && node.getKey() != k;
+             node = k < node.getKey() ? node.getLeft() : node.getRight())
+            hash = hash * 31 + node.getRank() * 7 + node.getKey();
+        return hash;
+    }
+
+    private static TestedTree adapt(final BucketWAVLTree t) {
+        return new TestedTree() {
+            public int insert(int k, String v) { return t.insert(k, v); }
+            public int delete(int k) { return t.delete(k); }
+            public String search(int k) { return t.search(k); }
+            public String select(int i) { return t.select(i); }
+            public int size() { return t.size(); }
+            public int[] keysToArray() { return t.keysToArray(); }
+            public String[] infoToArray() { return t.infoToArray(); }
+            public String min() { return t.min(); }
+            public String max() { return t.max(); }
+            public String validate() { return t.validateStructure(); }
+        };
+    }
+
+    private static final int OP_INSERT = 0;
+    private static final int OP_DELETE = 1;
+    private static final int OP_SEARCH = 2;
+    private static final int OP_SELECT = 3;
+    private static final int OP_ITERATE = 4;
+    private static final String[] OP_NAMES = {"insert", "delete", "search", "select", "iterate"};
+
+    /** Maps int keys to long keys of the same order, which do not fit in an int */
+    private static final long LONG_KEY_FACTOR = 1000003L << 8;
+
+    private static TestedTree adapt(final LongWAVLTree t) {
+        return new TestedTree() {
+            public int insert(int k, String v) { return t.insert(k * LONG_KEY_FACTOR, v); }
+            public int delete(int k) { return t.delete(k * LONG_KEY_FACTOR); }
+            public String search(int k) { return t.search(k * LONG_KEY_FACTOR); }
+            public String select(int i) { return t.select(i); }
+            public int size() { return t.size(); }
+            public int[] keysToArray() {
+                long[] keys = t.keysToArray();
+                int[] result = new int[keys.length];
+                for (int j = 0; j < keys.length; j++)
+                    result[j] = (int) (keys[j] / LONG_KEY_FACTOR);
+                return result;
+            }
+            public String[] infoToArray() { return t.infoToArray(); }
+            public String min() { return t.min(); }
+            public String max() { return t.max(); }
+            public String validate() { return t.validateStructure(); }
+        };
+    }
+
+    /**
+     * Packs a value of the form "v" + key + "_" + op, as generated by runOps, into a long, so
+     * that the trees with primitive payloads can be tested against the same expected values.
+     */
+    static long packValue(String v) {
+        int split = v.indexOf('_');
+        return (long) Integer.parseInt(v.substring(1, split)) << 32 | Integer.parseInt(v.substring(split + 1));
+    }
+
+    static String unpackValue(long bits) {
+        return "v" + (int) (bits >> 32) + "_" + (int) bits;
+    }
+
+    private static TestedTree adapt(final PrimitiveWAVLTree t) {
+        return new TestedTree() {
+            public int insert(int k, String v) { return t.insertLong(k, packValue(v)); }
+            public int delete(int k) { return t.delete(k); }
+            public String search(int k) { return t.contains(k) ? unpackValue(t.searchLong(k, 0)) : null; }
+            public String select(int i) { return i < 1 || i > t.size() ? null : unpackValue(t.selectLong(i, 0)); }
+            public int size() { return t.size(); }
+            public int[] keysToArray() { return t.keysToArray(); }
+            public String[] infoToArray() {
+                long[] values = t.valuesToArray();
+                String[] result = new String[values.length];
+                for (int j = 0; j < values.length; j++)
+                    result[j] = unpackValue(values[j]);
+                return result;
+            }
+            public String min() { return select(1); }
+            public String max() { return select(t.size()); }
+            public String validate() { return t.validateStructure(); }
+        };
+    }
+
+    /** The compact tree keeps no subtree sizes, so select walks its values */
+    private static TestedTree adapt(final CompactWAVLTree t) {
+        return new TestedTree() {
+            public int insert(int k, String v) { return t.insert(k, v); }
+            public int delete(int k) { return t.delete(k); }
+            public String search(int k) { return t.search(k); }
+            public String select(int i) { return i < 1 || i > t.size() ? null : t.infoToArray()[i - 1]; }
+            public int size() { return t.size(); }
+            public int[] keysToArray() { return t.keysToArray(); }
+            public String[] infoToArray() { return t.infoToArray(); }
+            public String min() { return t.min(); }
+            public String max() { return t.max(); }
+            public String validate() { return t.validateStructure(); }
+        };
+    }
+
+    /** The record tree keeps a packed value as two int fields, at offsets 0 and 8 */
+    private static TestedTree adapt(final RecordWAVLTree t) {
+        return new TestedTree() {
+            public int insert(int k, String v) {
+                long bits = packValue(v);
+                return t.insert(k, java.nio.ByteBuffer.allocate(12).putInt(0, (int) (bits >> 32))
+                        .putInt(8, (int) bits).array());
+            }
+            public int delete(int k) { return t.delete(k); }
+            public String search(int k) {
+                if (!t.contains(k))
+                    return null;
+                return "v" + t.getInt(k, 0, 0) + "_" + t.getInt(k, 8, 0);
+            }
+            public String select(int i) { return i < 1 || i > t.size() ? null : search(t.keysToArray()[i - 1]); }
+            public int size() { return t.size(); }
+            public int[] keysToArray() { return t.keysToArray(); }
+            public String[] infoToArray() {
+                int[] keys = t.keysToArray();
+                String[] result = new String[keys.length];
+                byte[] record = new byte[12];
+                for (int j = 0; j < keys.length; j++) {
+                    t.readRecord(keys[j], record);
+                    java.nio.ByteBuffer b = java.nio.ByteBuffer.wrap(record);
+                    result[j] = "v" + b.getInt(0) + "_" + b.getInt(8);
+                }
+                return result;
+            }
+            public String min() { return select(1); }
+            public String max() { return select(t.size()); }
+            public String validate() { return t.validateStructure(); }
+        };
+    }
+
+    /**
+     * Encodes an int as a byte string of the same unsigned lexicographic order: the key with
+     * its sign bit flipped, big-endian, without trailing zero bytes. Dropping the zeros makes
+     * the keys vary in length, and a key stays greater than its proper prefixes.
+     */
+    static byte[] toBytes(int k) {
+        int bits = k ^ Integer.MIN_VALUE;
+        int length = bits == 0 ? 0 : 4 - Integer.numberOfTrailingZeros(bits) / 8;
+        byte[] bytes = new byte[length];
+        for (int j = 0; j < length; j++)
+            bytes[j] = (byte) (bits >>> (24 - 8 * j));
+        return bytes;
+    }
+
+    static int fromBytes(byte[] bytes) {
+        int bits = 0;
+        for (int j = 0; j < bytes.length; j++)
+            bits |= (bytes[j] & 0xff) << (24 - 8 * j);
+        return bits ^ Integer.MIN_VALUE;
+    }
+
+    private static TestedTree adapt(final BytesWAVLTree t) {
+        return new TestedTree() {
+            public int insert(int k, String v) { return t.insert(toBytes(k), v); }
+            public int delete(int k) { return t.delete(toBytes(k)); }
+            public String search(int k) { return t.search(toBytes(k)); }
+            public String select(int i) { return t.select(i); }
+            public int size() { return t.size(); }
+            public int[] keysToArray() {
+                byte[][] keys = t.keysToArray();
+                int[] result = new int[keys.length];
+                for (int j = 0; j < keys.length; j++)
+                    result[j] = fromBytes(keys[j]);
+                return result;
+            }
+            public String[] infoToArray() { return t.infoToArray(); }
+            public String min() { return t.min(); }
+            public String max() { return t.max(); }
+            public String validate() { return t.validateStructure(); }
+        };
+    }
+
+    /**
+     * Runs the differential fuzzer on many threads for the given duration. Thread j runs the
+     * seeds baseSeed + j, baseSeed + j + threads, ... on every tree variant, and the first
+     * failure found is shrunk and printed together with its seed and variant.
+     */
+    static boolean parallelFuzz(final long baseSeed, final int threads, long millis,
+                                final int opsPerSeed, final int checkEvery)
+            throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + millis;
+        final java.util.concurrent.atomic.AtomicLong totalOps = new java.util.concurrent.atomic.AtomicLong();
+        final java.util.concurrent.atomic.AtomicReference<String> failure =
+                new java.util.concurrent.atomic.AtomicReference<>();
+        Thread[] workers = new Thread[threads];
+
+        for (int j = 0; j < threads; j++) {
+            final int id = j;
+            workers[j] = new Thread(() -> {
+                for (long seed = baseSeed + id; System.currentTimeMillis() < deadline
+                        && failure.get() == null; seed += threads) {
+                    String intervalError = runIntervalOps(seed, opsPerSeed, checkEvery);
+                    if (intervalError != null)
+                        failure.compareAndSet(null, "WAVLIntervalTree, seed " + seed + ": " + intervalError);
+                    for (boolean lazy : new boolean[]{false, true}) {
+                        String expiryError = runExpiryOps(seed, opsPerSeed, checkEvery, lazy);
+                        if (expiryError != null)
+                            failure.compareAndSet(null, "WAVLTree expiration" + (lazy ? " with lazy deletion" : "")
+                                    + ", seed " + seed + ": " + expiryError);
+                    }
+                    /* Writers wait for readers, which is slow without spare cores, so only some seeds */
+                    String leftRightError = seed % 8 == 0 ? runLeftRightOps(seed, opsPerSeed / 20) : null;
+                    if (leftRightError != null)
+                        failure.compareAndSet(null, "LeftRightWAVLTree, seed " + seed + ": " + leftRightError);
+                    for (boolean lazy : new boolean[]{false, true}) {
+                        String handleError = runHandleOps(seed, opsPerSeed, checkEvery, lazy);
+                        if (handleError != null)
+                            failure.compareAndSet(null, "WAVLTree handles" + (lazy ? " with lazy deletion" : "")
+                                    + ", seed " + seed + ": " + handleError);
+                        String upsertError = runUpsertOps(seed, opsPerSeed, checkEvery, lazy);
+                        if (upsertError != null)
+                            failure.compareAndSet(null, "WAVLTree upserts" + (lazy ? " with lazy deletion" : "")
+                                    + ", seed " + seed + ": " + upsertError);
+                        String changeLogError = runChangeLogOps(seed, opsPerSeed, checkEvery, lazy, seed % 2 == 0);
+                        if (changeLogError != null)
+                            failure.compareAndSet(null, "WAVLTree change log" + (lazy ? " with lazy deletion" : "")
+                                    + ", seed " + seed + ": " + changeLogError);
+                        String multisetError = runMultisetOps(seed, opsPerSeed, checkEvery, lazy);
+                        if (multisetError != null)
+                            failure.compareAndSet(null, "WAVLTree multiset" + (lazy ? " with lazy deletion" : "")
+                                    + ", seed " + seed + ": " + multisetError);
+                    }
+                    String buildError = runBuildOps(seed, opsPerSeed, checkEvery);
+                    if (buildError != null)
+                        failure.compareAndSet(null, "WAVLTree.buildParallel, seed " + seed + ": " + buildError);
+                    String serviceError = runServiceOps(seed, opsPerSeed);
+                    if (serviceError != null)
+                        failure.compareAndSet(null, "WAVLQueryService, seed " + seed + ": " + serviceError);
+                    for (WAVLTree.EvictionPolicy policy : WAVLTree.EvictionPolicy.values()) {
+                        boolean lazy = policy == WAVLTree.EvictionPolicy.LFU;
+                        String cacheError = runCacheOps(seed, opsPerSeed, checkEvery, policy, lazy);
+                        if (cacheError != null)
+                            failure.compareAndSet(null, "WAVLTree " + policy + " cache"
+                                    + (lazy ? " with lazy deletion" : "") + ", seed " + seed + ": " + cacheError);
+                    }
+
+                    int[] ops = generateOps(seed, opsPerSeed);
+                    for (int variant = 0; variant < VARIANTS.length; variant++) {
+                        String error = runOps(variant, ops, checkEvery);
+                        totalOps.addAndGet(opsPerSeed);
+                        if (error != null) {
+                            int[] minimal = shrink(variant, ops);
+                            failure.compareAndSet(null, VARIANTS[variant] + ", seed " + seed + ": "
+                                    + runOps(variant, minimal, 1) + System.lineSeparator()
+                                    + describeOps(minimal));
+                        }
+                    }
+                }
+            });
+            workers[j].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        System.out.println(totalOps.get() + " operations on " + threads + " threads in "
+                + millis + "ms");
+        if (failure.get() != null) {
+            System.out.println("Differential test failed, " + failure.get());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Generates a reproducible sequence of operations, encoded as pairs of (operation, argument).
+     * Keys are drawn from a range proportional to the sequence length so that inserts of
+     * existing keys and deletes of missing keys are frequent.
+     */
+    static int[] generateOps(long seed, int count) {
+        Random r = new Random(seed);
+        int keyRange = Math.max(4, count / (1 + r.nextInt(4)));
+        int[] ops = new int[2 * count];
+
+        for (int i = 0; i < count; i++) {
+            int roll = r.nextInt(100);
+            int op = roll < 45 ? OP_INSERT : roll < 75 ? OP_DELETE : roll < 90 ? OP_SEARCH
+                    : roll < 99 ? OP_SELECT : OP_ITERATE;
+            ops[2 * i] = op;
+            ops[2 * i + 1] = op == OP_SELECT ? r.nextInt(keyRange / 2 + 2) : r.nextInt(keyRange) - keyRange / 2;
+        }
+        return ops;
+    }
+
+    /**
+     * Replays a sequence of operations on a new tree of the given variant and a TreeMap,
+     * comparing every result, and validating the full tree structure every checkEvery
+     * operations and at the end.
+     *
+     * @return      null if the tree behaved like the TreeMap, or a description of the first
+     *              difference found
+     */
+    static String runOps(int variant, int[] ops, int checkEvery) {
+        TestedTree t = newTree(variant);
+        TreeMap<Integer, String> expected = new TreeMap<>();
+
+        for (int i = 0; i < ops.length / 2; i++) {
+            int op = ops[2 * i];
+            int arg = ops[2 * i + 1];
+            String where = "op " + i + " (" + OP_NAMES[op] + " " + arg + "): ";
+            try {
+                switch (op) {
+                    case OP_INSERT: {
+                        String value = "v" + arg + "_" + i;
+                        boolean absent = !expected.containsKey(arg);
+                        if ((t.insert(arg, value) != -1) != absent)
+                            return where + "insert result, key present = " + !absent;
+                        if (absent)
+                            expected.put(arg, value);
+                        break;
+                    }
+                    case OP_DELETE: {
+                        boolean present = expected.remove(arg) != null;
+                        if ((t.delete(arg) != -1) != present)
+                            return where + "delete result, key present = " + present;
+                        break;
+                    }
+                    case OP_SEARCH:
+                        if (!Objects.equals(t.search(arg), expected.get(arg)))
+                            return where + "search returned " + t.search(arg);
+                        break;
+                    case OP_SELECT: {
+                        String want = null;
+                        if (arg >= 1 && arg <= expected.size()) {
+                            Iterator<String> values = expected.values().iterator();
+                            for (int j = 1; j < arg; j++)
+                                values.next();
+                            want = values.next();
+                        }
+                        if (!Objects.equals(t.select(arg), want))
+                            return where + "select returned " + t.select(arg) + ", expected " + want;
+                        break;
+                    }
+                    default:
+                        String error = compareContents(t, expected);
+                        if (error != null)
+                            return where + error;
+                }
+            } catch (RuntimeException | AssertionError e) {
+                return where + e;
+            }
+
+            if (t.size() != expected.size())
+                return where + "size " + t.size() + ", expected " + expected.size();
+            if (checkEvery > 0 && (i + 1) % checkEvery == 0) {
+                String error = t.validate();
+                if (error != null)
+                    return where + error;
+            }
+        }
+
+        String error = t.validate();
+        if (error == null)
+            error = compareContents(t, expected);
+        return error == null ? null : "after all ops: " + error;
+    }
+
+    private static String compareContents(TestedTree t, TreeMap<Integer, String> expected) {
+        int[] keys = t.keysToArray();
+        String[] values = t.infoToArray();
+        if (keys.length != expected.size() || values.length != expected.size())
+            return "array lengths " + keys.length + "/" + values.length + ", expected " + expected.size();
+
+        int j = 0;
+        for (Map.Entry<Integer, String> e : expected.entrySet()) {
+            if (keys[j] != e.getKey() || !values[j].equals(e.getValue()))
+                return "entry " + j + " is " + keys[j] + "=" + values[j] + ", expected " + e;
+            j++;
+        }
+
+        if (!Objects.equals(t.min(), expected.isEmpty() ? null : expected.firstEntry().getValue()))
+            return "min returned " + t.min();
+        if (!Objects.equals(t.max(), expected.isEmpty() ? null : expected.lastEntry().getValue()))
+            return "max returned " + t.max();
+        return null;
+    }
+
+    /**
+     * Validates the rank invariants of the whole tree under its rank policy, along with the
+     * BST order, parent pointers and the subtree sizes. WAVL requires rank differences in
+     * {1,2} and rank 0 at the leaves, AVL further forbids (2,2) nodes, and RAVL only requires
+     * positive rank differences.
+     *
+     * @return      null if the tree is valid, or a description of the first violation found
+     */
+    static String validateWAVL(WAVLTree t) {
+        WAVLTree.WAVLNode root = t.getRoot();
+        if (root != null && root.getParent() != null)
+            return "root has a parent";
+        return validateWAVL(root, Long.MIN_VALUE, Long.MAX_VALUE, t.getRankPolicy());
+    }
+
+    private static String validateWAVL(WAVLTree.WAVLNode n, long low, long high, WAVLTree.RankPolicy policy) {
+        if (n == null)
+            return null;
+        if (n.getKey() <= low || n.getKey() >= high)
+            return "key " + n.getKey() + " out of BST order";
+
+        int size = n.isDeleted() ? 0 : n.getCount();
+        for (WAVLTree.WAVLNode child : new WAVLTree.WAVLNode[]{n.getLeft(), n.getRight()}) {
+            int rankDiff = n.getRank() - (child == null ? -1 : child.getRank());
+            if (rankDiff < 1 || rankDiff > 2 && policy != WAVLTree.RankPolicy.RAVL)
+                return "node " + n.getKey() + " has rank difference " + rankDiff;
+            if (child != null) {
+                if (child.getParent() != n)
+                    return "node " + child.getKey() + " has a wrong parent";
+                size += child.getSubtreeSize();
+            }
+        }
+        if (n.getLeft() == null && n.getRight() == null && n.getRank() != 0 && policy != WAVLTree.RankPolicy.RAVL)
+            return "leaf " + n.getKey() + " has rank " + n.getRank();
+        if (policy == WAVLTree.RankPolicy.AVL && n.getRank() - 2 == Math.max(
+                n.getLeft() == null ? -1 : n.getLeft().getRank(), n.getRight() == null ? -1 : n.getRight().getRank()))
+            return "node " + n.getKey() + " is (2,2) in an AVL tree";
+        if (n.getSubtreeSize() != size)
+            return "node " + n.getKey() + " has subtree size " + n.getSubtreeSize() + ", expected " + size;
+
+        String error = validateWAVL(n.getLeft(), low, n.getKey(), policy);
+        return error != null ? error : validateWAVL(n.getRight(), n.getKey(), high, policy);
+    }
+
+    /**
+     * Freezes the tree to a WAVLIndex and checks every query of the index against the
+     * sorted contents of the tree, including keys between and around the tree's keys. In a
+     * multiset the sorted contents repeat each key, and the index must count every occurrence.
+     *
+     * @return      null if the index is consistent with the tree, or a description of the
+     *              first difference found
+     */
+    static String validateIndex(WAVLTree t) {
+        WAVLIndex index = t.freezeToIndex();
+        int[] keys = t.keysToArray();
+        String[] values = t.infoToArray();
+        if (index.size() != keys.length || !Arrays.equals(index.keysToArray(), keys))
+            return "index keys differ from tree keys";
+
+        for (int j = 0; j < keys.length; j++) {
+            if (index.keyAt(j + 1) != keys[j] || !Objects.equals(index.select(j + 1), values[j]))
+                return "index select(" + (j + 1) + ") differs";
+            for (int probe = keys[j] - 1; probe <= keys[j] + 1; probe++) {
+                int lower = countBelow(keys, probe, false); // number of keys smaller than probe
+                int upper = countBelow(keys, probe, true); // number of keys smaller or equal
+                if (index.rank(probe) != lower)
+                    return "index rank(" + probe + ") is " + index.rank(probe) + ", expected " + lower;
+                if (index.count(probe) != upper - lower)
+                    return "index count(" + probe + ") is " + index.count(probe) + ", expected " + (upper - lower);
+                if (!Objects.equals(index.search(probe), upper > lower ? values[lower] : null))
+                    return "index search(" + probe + ") differs";
+                if (!Objects.equals(index.floor(probe), upper == 0 ? null : values[upper - 1]))
+                    return "index floor(" + probe + ") differs";
+                if (!Objects.equals(index.ceiling(probe), lower == keys.length ? null : values[lower]))
+                    return "index ceiling(" + probe + ") differs";
+            }
+        }
+        if (index.select(0) != null || index.select(keys.length + 1) != null)
+            return "index select out of range is not null";
+        return null;
+    }
+
+    /**
+     * Checks WAVLTree.stats against a recursive recount of the live nodes of the tree: the
+     * height, which counts tombstones too, the vertex types, the nodes of each rank and depth,
+     * the average and 99th percentile depth and the node, entry and tombstone counts. A
+     * sampled pass whose budget covers every node must give the same statistics, and one with
+     * a smaller budget the exact counts of entries and tombstones.
+     *
+     * @return      null if the statistics match the recount, or a description of the first
+     *              difference found
+     */
+    static String validateStats(WAVLTree t) {
+        long[] counts = new long[6]; // live nodes, depth sum, (1,1), (1,2), (2,2), invalid
+        List<Long> byRank = new ArrayList<>();
+        List<Long> byDepth = new ArrayList<>();
+        int height = recountStats(t.getRoot(), 0, counts, byRank, byDepth);
+        int maxRank = t.getRoot() == null ? 0 : t.getRoot().getRank();
+        int p99Depth = 0;
+        long seen = 0;
+        for (int d = 0; d < byDepth.size(); d++) {
+            seen += byDepth.get(d);
+            if (seen < 0.99 * counts[0])
+                p99Depth = d + 1;
+        }
+
+        WAVLTree.TreeStats stats = t.stats();
+        if (stats.getHeight() != height || stats.getMaxRank() != maxRank)
+            return "stats height " + stats.getHeight() + " and rank " + stats.getMaxRank()
+                    + ", expected " + height + " and " + maxRank;
+        if (stats.getNodeCount() != counts[0] || stats.getEntryCount() != t.size()
+                || stats.getTombstones() != t.getTombstoneCount())
+            return "stats counts " + stats + ", expected " + counts[0] + " nodes";
+        if (stats.getType11() != counts[2] || stats.getType12() != counts[3]
+                || stats.getType22() != counts[4] || stats.getInvalid() != counts[5])
+            return "stats types " + stats + ", expected " + Arrays.toString(Arrays.copyOfRange(counts, 2, 6));
+        if (stats.getP99Depth() != p99Depth || Math.abs(stats.getAverageDepth()
+                - (counts[0] == 0 ? 0 : (double) counts[1] / counts[0])) > 1e-9)
+            return "stats depths " + stats + ", expected p99 depth " + p99Depth;
+        double[] ranks = stats.getNodesByRank();
+        for (int r = 0; r < Math.max(ranks.length, byRank.size()); r++) {
+            if ((r < ranks.length ? ranks[r] : 0) != (r < byRank.size() ? byRank.get(r) : 0))
+                return "stats nodes of rank " + r + " differ";
+        }
+        double[] depths = stats.getNodesByDepth();
+        for (int d = 0; d < Math.max(depths.length, byDepth.size()); d++) {
+            if ((d < depths.length ? depths[d] : 0) != (d < byDepth.size() ? byDepth.get(d) : 0))
+                return "stats nodes at depth " + d + " differ";
+        }
+
+        WAVLTree.TreeStats full = t.stats((long) t.size() + t.getTombstoneCount(), 1);
+        if (full.isSampled() || !full.toString().equals(stats.toString())
+                || !Arrays.equals(full.getNodesByRank(), ranks) || !Arrays.equals(full.getNodesByDepth(), depths))
+            return "stats with a budget covering every node " + full + ", expected " + stats;
+        WAVLTree.TreeStats sampled = t.stats(t.size() / 2 - 1, 1);
+        if (sampled.getEntryCount() != t.size() || sampled.getTombstones() != t.getTombstoneCount()
+                || sampled.getMaxRank() != maxRank || sampled.getHeight() > height)
+            return "sampled stats " + sampled + ", expected " + stats;
+        return null;
+    }
+
+    /**
+     * Recounts the statistics of the subtree of a node at the given depth into the provided
+     * counters, as validateStats describes, and returns the height of the subtree's deepest
+     * node, tombstones included.
+     */
+    private static int recountStats(WAVLTree.WAVLNode node, int depth, long[] counts, List<Long> byRank, List<Long> byDepth) {
+        if (node == null)
+            return 0;
+        int height = Math.max(depth, Math.max(recountStats(node.getLeft(), depth + 1, counts, byRank, byDepth),
+                recountStats(node.getRight(), depth + 1, counts, byRank, byDepth)));
+        if (node.isDeleted())
+            return height;
+
+        int leftDiff = node.getRank() - (node.getLeft() == null ? -1 : node.getLeft().getRank());
+        int rightDiff = node.getRank() - (node.getRight() == null ? -1 : node.getRight().getRank());
+        counts[0]++;
+        counts[1] += depth;
+        boolean leaf = node.getLeft() == null && node.getRight() == null;
+        if (leaf && node.getRank() != 0)
+            counts[5]++;
+        else if (leftDiff == 1 && rightDiff == 1)
+            counts[2]++;
+        else if (Math.min(leftDiff, rightDiff) == 1 && Math.max(leftDiff, rightDiff) == 2)
+            counts[3]++;
+        else if (leftDiff == 2 && rightDiff == 2)
+            counts[4]++;
+        else
+            counts[5]++;
+        while (byRank.size() <= node.getRank())
+            byRank.add(0L);
+        byRank.set(node.getRank(), byRank.get(node.getRank()) + 1);
+        while (byDepth.size() <= depth)
+            byDepth.add(0L);
+        byDepth.set(depth, byDepth.get(depth) + 1);
+        return height;
+    }
+
+    /**
+     * Returns the number of elements of a sorted array which are smaller than k, or smaller
+     * than or equal to k if inclusive, by a binary search.
+     */
+    static int countBelow(int[] sorted, int k, boolean inclusive) {
+        int lo = 0;
+        int hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid] < k || (inclusive && sorted[mid] == k))
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * An order-sensitive augmentation: the count of the entries and a polynomial hash of
+     * their keys in order, so that combining in the wrong order is detected.
+     */
+    static final WAVLTree.Augmentation<long[]> ORDERED_HASH = new WAVLTree.Augmentation<long[]>() {
+        public long[] identity() { return new long[]{0, 0, 1}; }
+        public long[] lift(int key, String value) { return new long[]{1, key, 1000003}; }
+        public long[] combine(long[] l, long[] r) {
+            return new long[]{l[0] + r[0], l[1] * r[2] + r[1], l[2] * r[2]};
+        }
+    };
+
+    /**
+     * Checks WAVLTree.aggregate over ranges starting and ending at, between and around the
+     * keys of the tree against the aggregate computed directly from its sorted keys.
+     *
+     * @return      null if all the aggregates match, or a description of the first mismatch
+     */
+    static String validateAggregates(WAVLTree t) {
+        int[] keys = t.keysToArray();
+        Random r = new Random(keys.length);
+        for (int j = 0; j < 20 && keys.length > 0; j++) {
+            int lo = keys[r.nextInt(keys.length)] + r.nextInt(3) - 1;
+            int hi = keys[r.nextInt(keys.length)] + r.nextInt(3) - 1;
+            long[] expected = ORDERED_HASH.identity();
+            for (int k : keys) {
+                if (k >= lo && k <= hi)
+                    expected = ORDERED_HASH.combine(expected, ORDERED_HASH.lift(k, null));
+            }
+            long[] actual = t.aggregate(lo, hi);
+            if (!Arrays.equals(actual, expected))
+                return "aggregate(" + lo + ", " + hi + ") is " + Arrays.toString(actual)
+                        + ", expected " + Arrays.toString(expected);
+        }
+        return null;
+    }
+
+    /**
+     * Applies a reproducible sequence of insertions with and without deadlines, deletions,
+     * deadline changes and expirations at an advancing clock to a WAVLTree, and checks its
+     * contents against a TreeMap and a map of the deadlines. The entries expired by each
+     * call are the earliest by deadline and then by key.
+     *
+     * @return      null if the tree behaved like the model, or a description of the first
+     *              difference found
+     */
+    static String runExpiryOps(long seed, int count, int checkEvery, boolean lazy) {
+        Random r = new Random(seed);
+        int range = Math.max(8, count / 4);
+        WAVLTree tree = new WAVLTree(4);
+        if (lazy)
+            tree.setLazyDelete(true, 0.5);
+        TestedTree t = adapt(tree, false);
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        Map<Integer, Long> deadlines = new HashMap<>();
+        long now = 0;
+
+        for (int i = 0; i < count; i++) {
+            int k = r.nextInt(range);
+            int roll = r.nextInt(100);
+            String where = "op " + i + " (key " + k + ", time " + now + "): ";
+
+            if (roll < 40) {
+                String value = "v" + i;
+                boolean absent = !expected.containsKey(k);
+                long deadline = now + r.nextInt(50);
+                int result = roll < 30 ? tree.insert(k, value, deadline) : tree.insert(k, value);
+                if ((result != -1) != absent)
+                    return where + "insert result, key present = " + !absent;
+                if (absent) {
+                    expected.put(k, value);
+                    if (roll < 30)
+                        deadlines.put(k, deadline);
+                }
+            } else if (roll < 55) {
+                boolean present = expected.remove(k) != null;
+                deadlines.remove(k);
+                if ((tree.delete(k) != -1) != present)
+                    return where + "delete result, key present = " + present;
+            } else if (roll < 65) {
+                long deadline = now + r.nextInt(50);
+                boolean present = expected.containsKey(k);
+                if (tree.setExpiry(k, deadline) != present)
+                    return where + "setExpiry result, key present = " + present;
+                if (present)
+                    deadlines.put(k, deadline);
+            } else if (roll < 75) {
+                if (!Objects.equals(tree.search(k), expected.get(k)))
+                    return where + "search returned " + tree.search(k);
+            } else {
+                now += r.nextInt(10);
+                int batch = 1 + r.nextInt(4);
+                List<long[]> due = new ArrayList<>();
+                for (Map.Entry<Integer, Long> e : deadlines.entrySet()) {
+                    if (e.getValue() <= now)
+                        due.add(new long[]{e.getValue(), e.getKey()});
+                }
+                due.sort((a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+                int removed = tree.expire(now, batch);
+                if (removed != Math.min(batch, due.size()))
+                    return where + "expire removed " + removed + ", expected " + Math.min(batch, due.size());
+                for (int j = 0; j < removed; j++) {
+                    expected.remove((int) due.get(j)[1]);
+                    deadlines.remove((int) due.get(j)[1]);
+                }
+            }
+
+            long next = Long.MAX_VALUE;
+            for (long d : deadlines.values())
+                next = Math.min(next, d);
+            if (tree.nextExpiry() != next)
+                return where + "nextExpiry " + tree.nextExpiry() + ", expected " + next;
+            if ((i + 1) % checkEvery == 0 || i == count - 1) {
+                String error = compareContents(t, expected);
+                if (error == null)
+                    error = validateWAVL(tree);
+                if (error != null)
+                    return where + error;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Applies a reproducible sequence of insertions, deletions and searches to a WAVLTree
+     * bounded by a random capacity, and checks its contents and counters against a model
+     * which keeps, for every key, its number of uses and the time of its last use. The
+     * victim of an eviction is the least recently used key under LRU, and the least used
+     * key, then the least recently used among those, under LFU, never the key inserted.
+     *
+     * @return      null if the tree behaved like the model, or a description of the first
+     *              difference found
+     */
+    static String runCacheOps(long seed, int count, int checkEvery, WAVLTree.EvictionPolicy policy,
+                              boolean lazy) {
+        Random r = new Random(seed);
+        int range = Math.max(8, count / 8);
+        int capacity = 1 + r.nextInt(32);
+        WAVLTree tree = new WAVLTree(4);
+        if (lazy)
+            tree.setLazyDelete(true, 0.5);
+        tree.setCapacity(capacity, policy);
+        TestedTree t = adapt(tree, false);
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        Map<Integer, long[]> uses = new HashMap<>(); // key -> {uses, time of last use}
+        long time = 0;
+        long hits = 0;
+        long misses = 0;
+        long evictions = 0;
+
+        for (int i = 0; i < count; i++) {
+            int k = r.nextInt(range);
+            int roll = r.nextInt(100);
+            String where = "op " + i + " (key " + k + ", capacity " + capacity + "): ";
+
+            if (roll < 45) {
+                String value = "v" + i;
+                boolean absent = !expected.containsKey(k);
+                if ((tree.insert(k, value) != -1) != absent)
+                    return where + "insert result, key present = " + !absent;
+                if (absent) {
+                    expected.put(k, value);
+                    uses.put(k, new long[]{1, time++});
+                    if (expected.size() > capacity) {
+                        Integer victim = null;
+                        for (Map.Entry<Integer, long[]> e : uses.entrySet()) {
+                            long[] u = e.getValue();
+                            if (e.getKey() == k)
+                                continue;
+                            if (victim == null) {
+                                victim = e.getKey();
+                                continue;
+                            }
+                            long[] v = uses.get(victim);
+                            boolean lessUsed = policy == WAVLTree.EvictionPolicy.LFU && u[0] != v[0];
+                            if (lessUsed ? u[0] < v[0] : u[1] < v[1])
+                                victim = e.getKey();
+                        }
+                        expected.remove(victim);
+                        uses.remove(victim);
+                        evictions++;
+                    }
+                }
+            } else if (roll < 65) {
+                boolean present = expected.remove(k) != null;
+                uses.remove(k);
+                if ((tree.delete(k) != -1) != present)
+                    return where + "delete result, key present = " + present;
+            } else {
+                if (!Objects.equals(tree.search(k), expected.get(k)))
+                    return where + "search returned " + tree.search(k);
+                long[] u = uses.get(k);
+                if (u == null) {
+                    misses++;
+                } else {
+                    hits++;
+                    u[0]++;
+                    u[1] = time++;
+                }
+            }
+
+            if (tree.getHitCount() != hits || tree.getMissCount() != misses || tree.getEvictionCount() != evictions)
+                return where + "counters " + tree.getHitCount() + "/" + tree.getMissCount() + "/"
+                        + tree.getEvictionCount() + ", expected " + hits + "/" + misses + "/" + evictions;
+            if ((i + 1) % checkEvery == 0 || i == count - 1) {
+                String error = compareContents(t, expected);
+                if (error == null)
+                    error = validateWAVL(tree);
+                if (error != null)
+                    return where + error;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Applies a reproducible sequence of insertions through handles, updates, deletions and
+     * steps by handle, and deletions by key, to a WAVLTree, keeping the handle of every key.
+     * Every handle must keep its key and the current value of that key through the deletion
+     * of other keys, which relinks nodes, and through compactions of tombstones.
+     *
+     * @return      null if the tree and its handles behaved like the model, or a description
+     *              of the first difference found
+     */
+    static String runHandleOps(long seed, int count, int checkEvery, boolean lazy) {
+        Random r = new Random(seed);
+        int range = Math.max(8, count / 4);
+        WAVLTree tree = new WAVLTree(4);
+        if (lazy)
+            tree.setLazyDelete(true, 0.5);
+        TestedTree t = adapt(tree, false);
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        Map<Integer, WAVLTree.WAVLNode> handles = new HashMap<>();
+
+        for (int i = 0; i < count; i++) {
+            int k = r.nextInt(range);
+            int roll = r.nextInt(100);
+            String where = "op " + i + " (key " + k + "): ";
+            WAVLTree.WAVLNode handle = handles.get(k);
+
+            if (roll < 40) {
+                WAVLTree.WAVLNode inserted = tree.insertHandle(k, "v" + i);
+                if ((inserted != null) != (handle == null))
+                    return where + "insertHandle result, key present = " + (handle != null);
+                if (inserted != null) {
+                    if (inserted.getKey() != k)
+                        return where + "insertHandle returned the node of " + inserted.getKey();
+                    expected.put(k, "v" + i);
+                    handles.put(k, inserted);
+                }
+            } else if (roll < 55 && handle != null) {
+                tree.deleteByHandle(handle);
+                expected.remove(k);
+                handles.remove(k);
+            } else if (roll < 65) {
+                if ((t.delete(k) != -1) != (handle != null))
+                    return where + "delete result, key present = " + (handle != null);
+                expected.remove(k);
+                handles.remove(k);
+            } else if (roll < 80 && handle != null) {
+                if (!tree.updateValue(handle, "u" + i))
+                    return where + "updateValue of a live entry failed";
+                expected.put(k, "u" + i);
+            } else if (handle != null) {
+                Integer next = expected.higherKey(k);
+                Integer previous = expected.lowerKey(k);
+                if (tree.successor(handle) != (next == null ? null : handles.get(next)))
+                    return where + "successor is not the handle of " + next;
+                if (tree.predecessor(handle) != (previous == null ? null : handles.get(previous)))
+                    return where + "predecessor is not the handle of " + previous;
+            } else if (tree.handleOf(k) != null) {
+                return where + "handleOf a missing key";
+            }
+
+            if ((i + 1) % checkEvery == 0 || i == count - 1) {
+                for (Map.Entry<Integer, WAVLTree.WAVLNode> e : handles.entrySet()) {
+                    WAVLTree.WAVLNode h = e.getValue();
+                    if (h.getKey() != e.getKey() || h.isDeleted() || !Objects.equals(h.getValue(), expected.get(e.getKey())))
+                        return where + "handle of " + e.getKey() + " now holds key " + h.getKey();
+                    if (tree.handleOf(e.getKey()) != h)
+                        return where + "handleOf " + e.getKey() + " is not its handle";
+                }
+                String error = compareContents(t, expected);
+                if (error == null)
+                    error = validateWAVL(tree);
+                if (error != null)
+                    return where + error;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Applies a reproducible sequence of insertions, deletions, upserts and expirations to a
+     * WAVLTree with a change log, and every few operations streams the new records through a
+     * byte array, in frames of random sizes, to a replica tree. The replica must then have
+     * the same keys, occurrences and values. The log is small, so its ring buffer wraps
+     * around, and a reader behind the dropped records must be refused.
+     *
+     * @return      null if the replica followed the tree, or a description of the first
+     *              difference found
+     */
+    static String runChangeLogOps(long seed, int count, int checkEvery, boolean lazy, boolean multiset) {
+        Random r = new Random(seed);
+        int range = Math.max(8, count / 8);
+        WAVLTree tree = new WAVLTree(4);
+        tree.setFingerSearch(true);
+        tree.setMultiset(multiset);
+        if (lazy)
+            tree.setLazyDelete(true, 0.5);
+        WAVLChangeLog log = new WAVLChangeLog(1024);
+        tree.setChangeLog(log);
+        WAVLTree replica = new WAVLTree();
+        replica.setMultiset(multiset);
+        long applied = 0;
+        java.util.function.BiFunction<String, String, String> append = (a, b) -> a.length() > 4 ? null : a + b;
+
+        try {
+            for (int i = 0; i < count; i++) {
+                int k = r.nextInt(range);
+                int roll = r.nextInt(100);
+                if (roll < 35)
+                    tree.insert(k, "v" + i % 10, i + r.nextInt(50));
+                else if (roll < 55)
+                    tree.delete(k);
+                else if (roll < 60)
+                    tree.deleteAll(k);
+                else if (roll < 70)
+                    tree.put(k, "p" + i % 10);
+                else if (roll < 80)
+                    tree.merge(k, "m", append);
+                else if (roll < 85)
+                    tree.expire(i, 2);
+                else if (roll < 90 && tree.getTombstoneCount() > 0)
+                    tree.compactTombstones(2);
+
+                boolean check = (i + 1) % checkEvery == 0 || i == count - 1;
+                if (r.nextInt(4) == 0 || check) {
+                    java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+                    for (long next = applied; next < log.nextSequence(); )
+                        next = log.writeFrame(next, out, 1 + r.nextInt(8));
+                    java.io.ByteArrayInputStream in = new java.io.ByteArrayInputStream(out.toByteArray());
+                    while (in.available() > 0)
+                        applied = WAVLChangeLog.applyFrame(in, replica, applied);
+                    if (applied != log.nextSequence())
+                        return "op " + i + ": applied up to record " + applied + " of " + log.nextSequence();
+                }
+                if (check) {
+                    if (!Arrays.equals(tree.keysToArray(), replica.keysToArray())
+                            || !Arrays.equals(tree.infoToArray(), replica.infoToArray()))
+                        return "op " + i + ": replica has keys " + Arrays.toString(replica.keysToArray())
+                                + ", expected " + Arrays.toString(tree.keysToArray());
+                }
+            }
+
+            /* A reader which fell behind the ring buffer must not get a frame with a gap */
+            for (int i = 0; log.firstSequence() == 0; i++)
+                tree.put(i % range, "filler");
+            try {
+                log.writeFrame(0, new java.io.ByteArrayOutputStream(), 1);
+                return "a frame from a dropped record was written";
+            } catch (IllegalStateException expected) {
+                return null;
+            }
+        } catch (java.io.IOException e) {
+            return "stream failed: " + e;
+        }
+    }
+
+    /**
+     * Builds a WAVLTree with buildParallel from reproducible unsorted keys with duplicates,
+     * checks it against a TreeMap filled by putIfAbsent in the same order, and then applies
+     * random insertions and deletions to both. Every fourth seed builds a tree large enough
+     * to be split between several fork-join tasks.
+     *
+     * @return      null if the tree behaved like the map, or a description of the first
+     *              difference found
+     */
+    static String runBuildOps(long seed, int count, int checkEvery) {
+        Random r = new Random(seed);
+        int n = seed % 4 == 0 ? 20 * count : r.nextInt(count);
+        int range = Math.max(8, n);
+        int[] keys = new int[n];
+        String[] values = new String[n];
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        for (int j = 0; j < n; j++) {
+            keys[j] = r.nextInt(range) - range / 2;
+            values[j] = "v" + j;
+            expected.putIfAbsent(keys[j], values[j]);
+        }
+        WAVLTree tree = WAVLTree.buildParallel(keys, values);
+        TestedTree t = adapt(tree, false);
+
+        String error = compareContents(t, expected);
+        if (error == null)
+            error = t.validate();
+        if (error != null)
+            return "after the build of " + n + " pairs: " + error;
+
+        for (int i = 0; i < count; i++) {
+            int k = r.nextInt(range) - range / 2;
+            String where = "op " + i + " (key " + k + "): ";
+            boolean inserted = r.nextBoolean();
+            int actual = inserted ? t.insert(k, "w" + i) : t.delete(k);
+            boolean rejected = inserted ? expected.putIfAbsent(k, "w" + i) != null : expected.remove(k) == null;
+            if ((actual == -1) != rejected)
+                return where + (inserted ? "insert" : "delete") + " returned " + actual;
+
+            if ((i + 1) % checkEvery == 0 || i == count - 1) {
+                error = compareContents(t, expected);
+                if (error == null)
+                    error = t.validate();
+                if (error != null)
+                    return where + error;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Applies a reproducible sequence of put, putIfAbsent, compute, computeIfPresent and merge
+     * operations, with deletions and searches, to a WAVLTree and to a TreeMap, whose methods
+     * of the same names define the expected results. The remapping functions delete entries
+     * whose values grow long, so that both replacements and removals are exercised.
+     *
+     * @return      null if the tree behaved like the map, or a description of the first
+     *              difference found
+     */
+    static String runUpsertOps(long seed, int count, int checkEvery, boolean lazy) {
+        Random r = new Random(seed);
+        int range = Math.max(8, count / 8);
+        WAVLTree tree = new WAVLTree(4);
+        tree.setFingerSearch(true);
+        tree.setSearchCacheCapacity(8);
+        tree.setAugmentation(ORDERED_HASH);
+        if (lazy)
+            tree.setLazyDelete(true, 0.5);
+        TestedTree t = adapt(tree, true);
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        java.util.function.BiFunction<Integer, String, String> grow =
+                (key, v) -> v == null ? (key % 3 == 0 ? null : "c") : v.length() > 4 ? null : v + key % 10;
+        java.util.function.BiFunction<String, String, String> append = (a, b) -> a.length() > 4 ? null : a + b;
+
+        for (int i = 0; i < count; i++) {
+            int k = r.nextInt(range);
+            int roll = r.nextInt(100);
+            String value = "v" + (i % 10);
+            String where = "op " + i + " (key " + k + ", roll " + roll + "): ";
+            String actual;
+            String wanted;
+
+            if (roll < 20) {
+                actual = tree.put(k, value);
+                wanted = expected.put(k, value);
+            } else if (roll < 30) {
+                actual = tree.putIfAbsent(k, value);
+                wanted = expected.putIfAbsent(k, value);
+            } else if (roll < 45) {
+                actual = tree.compute(k, grow);
+                wanted = expected.compute(k, grow);
+            } else if (roll < 55) {
+                actual = tree.computeIfPresent(k, grow);
+                wanted = expected.computeIfPresent(k, grow);
+            } else if (roll < 75) {
+                actual = tree.merge(k, "m", append);
+                wanted = expected.merge(k, "m", append);
+            } else if (roll < 85) {
+                actual = t.delete(k) == -1 ? null : "deleted";
+                wanted = expected.remove(k) == null ? null : "deleted";
+            } else {
+                actual = tree.search(k);
+                wanted = expected.get(k);
+            }
+            if (!Objects.equals(actual, wanted))
+                return where + "returned " + actual + ", expected " + wanted;
+
+            if ((i + 1) % checkEvery == 0 || i == count - 1) {
+                String error = compareContents(t, expected);
+                if (error == null)
+                    error = t.validate();
+                if (error != null)
+                    return where + error;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Applies a reproducible sequence of insertions, deletions of one or all occurrences and
+     * queries to a WAVLTree in multiset mode, and checks it against a TreeMap of the count and
+     * first value of every key. Sizes, select, rank, the sorted keys with their repetitions
+     * and the aggregates all count occurrences.
+     *
+     * @return      null if the tree behaved like the model, or a description of the first
+     *              difference found
+     */
+    static String runMultisetOps(long seed, int count, int checkEvery, boolean lazy) {
+        Random r = new Random(seed);
+        int range = Math.max(4, count / 16);
+        WAVLTree tree = new WAVLTree(4);
+        tree.setMultiset(true);
+        tree.setAugmentation(ORDERED_HASH);
+        if (lazy)
+            tree.setLazyDelete(true, 0.5);
+        TreeMap<Integer, Integer> counts = new TreeMap<>();
+        Map<Integer, String> values = new HashMap<>();
+        int size = 0;
+
+        for (int i = 0; i < count; i++) {
+            int k = r.nextInt(range);
+            int roll = r.nextInt(100);
+            String where = "op " + i + " (key " + k + "): ";
+            int occurrences = counts.getOrDefault(k, 0);
+
+            if (roll < 50) {
+                if (tree.insert(k, "v" + i) == -1)
+                    return where + "insert rejected a duplicate";
+                if (occurrences == 0)
+                    values.put(k, "v" + i);
+                counts.put(k, occurrences + 1);
+                size++;
+            } else if (roll < 70) {
+                if ((tree.delete(k) != -1) != (occurrences > 0))
+                    return where + "delete result, occurrences = " + occurrences;
+                if (occurrences > 1)
+                    counts.put(k, occurrences - 1);
+                else
+                    counts.remove(k);
+                size -= Math.min(1, occurrences);
+            } else if (roll < 75) {
+                if ((tree.deleteAll(k) != -1) != (occurrences > 0))
+                    return where + "deleteAll result, occurrences = " + occurrences;
+                counts.remove(k);
+                size -= occurrences;
+            } else {
+                int rank = 0;
+                for (int c : counts.headMap(k).values())
+                    rank += c;
+                if (tree.count(k) != occurrences)
+                    return where + "count " + tree.count(k) + ", expected " + occurrences;
+                if (tree.rank(k) != rank)
+                    return where + "rank " + tree.rank(k) + ", expected " + rank;
+                if (!Objects.equals(tree.search(k), occurrences > 0 ? values.get(k) : null))
+                    return where + "search returned " + tree.search(k);
+                if (occurrences > 0 && !Objects.equals(tree.select(rank + 1 + r.nextInt(occurrences)), values.get(k)))
+                    return where + "select within the occurrences of the key";
+            }
+
+            if (tree.size() != size)
+                return where + "size " + tree.size() + ", expected " + size;
+            if ((i + 1) % checkEvery == 0 || i == count - 1) {
+                int[] keys = new int[size];
+                int j = 0;
+                for (Map.Entry<Integer, Integer> e : counts.entrySet())
+                    for (int c = 0; c < e.getValue(); c++)
+                        keys[j++] = e.getKey();
+                if (!Arrays.equals(tree.keysToArray(), keys))
+                    return where + "keys " + Arrays.toString(tree.keysToArray()) + ", expected " + Arrays.toString(keys);
+                String error = validateWAVL(tree);
+                if (error == null)
+                    error = validateAggregates(tree);
+                if (error == null)
+                    error = validateIndex(tree);
+                if (error == null)
+                    error = validateStats(tree);
+                if (error != null)
+                    return where + error;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Applies a reproducible sequence of changes to a LeftRightWAVLTree while two reader
+     * threads check every version they see. Each change inserts or deletes a pair of keys
+     * 2j and 2j+1 at once, so a reader sees a torn change if a key appears without its pair.
+     * Readers also validate the WAVL invariants of the version they read, and the final
+     * contents are compared with a TreeMap. Some changes throw halfway through, and must leave
+     * no trace in any version.
+     *
+     * @return      null if every version read was consistent, or a description of the first
+     *              inconsistency found
+     */
+    static String runLeftRightOps(long seed, int count) {
+        Random r = new Random(seed);
+        int range = Math.max(4, count / 4);
+        final LeftRightWAVLTree tree = new LeftRightWAVLTree();
+        final java.util.concurrent.atomic.AtomicBoolean writing = new java.util.concurrent.atomic.AtomicBoolean(true);
+        final java.util.concurrent.atomic.AtomicReference<String> error = new java.util.concurrent.atomic.AtomicReference<>();
+
+        Thread[] readers = new Thread[2];
+        for (int j = 0; j < readers.length; j++) {
+            readers[j] = new Thread(() -> {
+                while (writing.get() && error.get() == null) {
+                    String found;
+                    try {
+                        found = tree.read(t -> {
+                            int[] keys = t.keysToArray();
+                            if (keys.length != t.size() || keys.length % 2 != 0)
+                                return "version of size " + t.size() + " with " + keys.length + " keys";
+                            for (int i = 0; i < keys.length; i += 2) {
+                                if (keys[i] % 2 != 0 || keys[i + 1] != keys[i] + 1)
+                                    return "torn pair at " + keys[i];
+                            }
+                            return validateWAVL(t);
+                        });
+                    } catch (RuntimeException e) {
+                        found = "reader failed: " + e;
+                    }
+                    if (found != null)
+                        error.compareAndSet(null, found);
+                }
+            });
+            readers[j].start();
+        }
+
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        for (int i = 0; i < count && error.get() == null; i++) {
+            final int k = 2 * r.nextInt(range);
+            if (r.nextInt(16) == 0) {
+                /* A change failing halfway must not leave its first half in either instance */
+                try {
+                    tree.write(t -> {
+                        t.insert(k, "failed");
+                        t.delete(k + 1);
+                        throw new IllegalStateException("change aborted");
+                    });
+                    return "failed change did not throw";
+                } catch (IllegalStateException e) {
+                    if (!"change aborted".equals(e.getMessage()))
+                        return "failed change threw " + e;
+                }
+            } else if (r.nextInt(3) > 0) {
+                final String value = "v" + i;
+                tree.write(t -> {
+                    t.insert(k, value);
+                    t.insert(k + 1, value);
+                });
+                expected.putIfAbsent(k, value);
+                expected.putIfAbsent(k + 1, value);
+            } else {
+                tree.write(t -> {
+                    t.delete(k);
+                    t.delete(k + 1);
+                });
+                expected.remove(k);
+                expected.remove(k + 1);
+            }
+        }
+        writing.set(false);
+        try {
+            for (Thread reader : readers)
+                reader.join();
+        } catch (InterruptedException e) {
+            return "interrupted";
+        }
+
+        if (error.get() != null)
+            return error.get();
+        int[] keys = tree.keysToArray();
+        String[] values = tree.read(WAVLTree::infoToArray);
+        if (keys.length != expected.size())
+            return "final size " + keys.length + ", expected " + expected.size();
+        int j = 0;
+        for (Map.Entry<Integer, String> e : expected.entrySet()) {
+            if (keys[j] != e.getKey() || !values[j].equals(e.getValue()))
+                return "final entry " + keys[j] + "=" + values[j] + ", expected " + e;
+            j++;
+        }
+        return null;
+    }
+
+    /**
+     * Submits a reproducible sequence of searches, ranges, selects and updates to a
+     * WAVLQueryService from a single thread, and checks every answer against a TreeMap in the
+     * state it had when the request was submitted, since each read must see exactly the
+     * updates submitted before it. The dispatcher runs on a thread of its own, so requests are
+     * batched as they arrive.
+     *
+     * @return      null if every answer was right, or a description of the first wrong one
+     */
+    static String runServiceOps(long seed, int count) {
+        Random r = new Random(seed);
+        int range = Math.max(8, count / 4);
+        WAVLTree tree = new WAVLTree(4);
+        tree.setLazyDelete(r.nextBoolean(), 0.5);
+        java.util.concurrent.ExecutorService executor = java.util.concurrent.Executors.newSingleThreadExecutor();
+        WAVLQueryService service = new WAVLQueryService(tree, executor, 1 + r.nextInt(64));
+        TreeMap<Integer, String> model = new TreeMap<>();
+        List<java.util.concurrent.CompletableFuture<?>> futures = new ArrayList<>();
+        List<Object> expected = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < count; i++) {
+                final int k = r.nextInt(range);
+                int roll = r.nextInt(100);
+                if (roll < 20) {
+                    final String value = "v" + i;
+                    futures.add(service.update(t -> t.insert(k, value)));
+                    model.putIfAbsent(k, value);
+                    expected.add(null);
+                } else if (roll < 35) {
+                    futures.add(service.update(t -> t.delete(k)));
+                    model.remove(k);
+                    expected.add(null);
+                } else if (roll < 70) {
+                    futures.add(service.search(k));
+                    expected.add(model.get(k));
+                } else if (roll < 85) {
+                    int hi = k + r.nextInt(16);
+                    futures.add(service.range(k, hi));
+                    int[] keys = new int[model.subMap(k, true, hi, true).size()];
+                    int j = 0;
+                    for (int key : model.subMap(k, true, hi, true).keySet())
+                        keys[j++] = key;
+                    expected.add(keys);
+                } else {
+                    int pos = r.nextInt(model.size() + 2);
+                    futures.add(service.select(pos));
+                    String want = null;
+                    if (pos >= 1 && pos <= model.size()) {
+                        Iterator<String> it = model.values().iterator();
+                        for (int j = 1; j < pos; j++)
+                            it.next();
+                        want = it.next();
+                    }
+                    expected.add(want);
+                }
+            }
+
+            for (int i = 0; i < count; i++) {
+                Object got = futures.get(i).join();
+                Object want = expected.get(i);
+                boolean equal = want instanceof int[] ? Arrays.equals((int[]) want, (int[]) got) : Objects.equals(want, got);
+                if (!equal)
+                    return "request " + i + " returned " + (got instanceof int[] ? Arrays.toString((int[]) got) : got)
+                            + ", expected " + (want instanceof int[] ? Arrays.toString((int[]) want) : want);
+            }
+            return validateWAVL(tree);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Load generator for WAVLQueryService. For an increasing number of client threads, each
+     * keeping a window of 64 searches of random keys in flight, compares the throughput of the
+     * service, whose dispatcher runs on a single thread, with that of clients calling search
+     * directly under a global lock.
+     */
+    private static void benchmarkQueryService(int n, long millis) throws InterruptedException {
+        WAVLTree tree = new WAVLTree();
+        Random r = new Random(n);
+        for (int i = 0; i < n; i++)
+            tree.insert(r.nextInt(4 * n), "v" + i);
+
+        java.util.concurrent.ExecutorService executor = java.util.concurrent.Executors.newSingleThreadExecutor();
+        final WAVLQueryService service = new WAVLQueryService(tree, executor, 4096);
+        for (int clients = 1; clients <= 64; clients *= 4) {
+            for (final boolean locked : new boolean[]{true, false}) {
+                final long deadline = System.currentTimeMillis() + millis;
+                final java.util.concurrent.atomic.AtomicLong done = new java.util.concurrent.atomic.AtomicLong();
+                Thread[] threads = new Thread[clients];
+                for (int c = 0; c < clients; c++) {
+                    final Random cr = new Random(c);
+                    threads[c] = new Thread(() -> {
+                        java.util.concurrent.CompletableFuture<?>[] window = new java.util.concurrent.CompletableFuture<?>[64];
+                        while (System.currentTimeMillis() < deadline) {
+                            for (int j = 0; j < window.length; j++) {
+                                int k = cr.nextInt(4 * n);
+                                if (locked) {
+                                    synchronized (tree) {
+                                        tree.search(k);
+                                    }
+                                } else {
+                                    window[j] = service.search(k);
+                                }
+                            }
+                            if (!locked)
+                                java.util.concurrent.CompletableFuture.allOf(window).join();
+                            done.addAndGet(window.length);
+                        }
+                    });
+                    threads[c].start();
+                }
+                for (Thread t : threads)
+                    t.join();
+                System.out.println(String.format("%2d clients, %s: %.0f searches/s", clients,
+                        locked ? "global lock" : "query service", done.get() * 1000.0 / millis));
+            }
+        }
+        System.out.println("average batch " + service.getRequestCount() / Math.max(1, service.getBatchCount()));
+        executor.shutdown();
+    }
+
+    /**
+     * Applies a reproducible sequence of interval insertions, deletions, searches and overlap
+     * queries to a WAVLIntervalTree and to a TreeMap keyed by (low, high), and validates the
+     * tree structure and the maximal high endpoints every checkEvery operations.
+     *
+     * @return      null if the tree behaved like the TreeMap, or a description of the first
+     *              difference found
+     */
+    static String runIntervalOps(long seed, int count, int checkEvery) {
+        Random r = new Random(seed);
+        int range = Math.max(8, count / 4);
+        WAVLIntervalTree t = new WAVLIntervalTree();
+        TreeMap<Long, String> expected = new TreeMap<>();
+
+        for (int i = 0; i < count; i++) {
+            int low = r.nextInt(range);
+            int high = low + r.nextInt(range / 8 + 1);
+            long key = ((long) low << 32) | high;
+            int roll = r.nextInt(100);
+            String where = "op " + i + " [" + low + ", " + high + "]: ";
+
+            if (roll < 45) {
+                String value = "v" + i;
+                boolean absent = !expected.containsKey(key);
+                if ((t.insert(low, high, value) != -1) != absent)
+                    return where + "insert result, interval present = " + !absent;
+                if (absent)
+                    expected.put(key, value);
+            } else if (roll < 75) {
+                boolean present = expected.remove(key) != null;
+                if ((t.delete(low, high) != -1) != present)
+                    return where + "delete result, interval present = " + present;
+            } else if (roll < 85) {
+                if (!Objects.equals(t.search(low, high), expected.get(key)))
+                    return where + "search returned " + t.search(low, high);
+            } else {
+                StringBuilder want = new StringBuilder();
+                for (Map.Entry<Long, String> e : expected.entrySet()) {
+                    int l = (int) (e.getKey() >> 32);
+                    int h = (int) (long) e.getKey();
+                    if (l <= high && h >= low)
+                        want.append(e.getValue()).append(' ');
+                }
+                StringBuilder got = new StringBuilder();
+                for (Iterator<WAVLIntervalTree.Interval> it = t.overlapping(low, high); it.hasNext(); ) {
+                    got.append(it.next().getValue()).append(' ');
+                }
+                if (!want.toString().equals(got.toString()))
+                    return where + "overlapping returned " + got + ", expected " + want;
+            }
+
+            if (t.size() != expected.size())
+                return where + "size " + t.size() + ", expected " + expected.size();
+            if ((i + 1) % checkEvery == 0 || i == count - 1) {
+                String error = t.validateStructure();
+                if (error == null)
+                    error = validateMaxHigh(t.getRoot());
+                if (error != null)
+                    return where + error;
+            }
+        }
+        return null;
+    }
+
+    private static String validateMaxHigh(WAVLIntervalTree.Interval n) {
+        if (n == null)
+            return null;
+        int max = n.getHigh();
+        if (n.getLeft() != null)
+            max = Math.max(max, n.getLeft().getMaxHigh());
+        if (n.getRight() != null)
+            max = Math.max(max, n.getRight().getMaxHigh());
+        if (n.getMaxHigh() != max)
+            return "interval " + n + " has max high " + n.getMaxHigh() + ", expected " + max;
+        String error = validateMaxHigh(n.getLeft());
+        return error != null ? error : validateMaxHigh(n.getRight());
+    }
+
+    /**
+     * Shrinks a failing sequence of operations to a minimal one that still fails, by repeatedly
+     * removing chunks of operations, halving the chunk size down to single operations.
+     */
+    static int[] shrink(int variant, int[] ops) {
+        int[] current = ops;
+        for (int chunk = current.length / 4; chunk >= 1; chunk /= 2) {
+            boolean removed = true;
+            while (removed) {
+                removed = false;
+                for (int from = 0; from < current.length / 2; from += chunk) {
+                    int to = Math.min(from + chunk, current.length / 2);
+                    int[] candidate = new int[current.length - 2 * (to - from)];
+                    System.arraycopy(current, 0, candidate, 0, 2 * from);
+                    System.arraycopy(current, 2 * to, candidate, 2 * from, current.length - 2 * to);
+                    if (runOps(variant, candidate, 1) != null) {
+                        current = candidate;
+                        removed = true;
+                    }
+                }
+            }
+        }
+        return current;
+    }
+
+    private static String describeOps(int[] ops) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < ops.length; i += 2) {
+            builder.append(OP_NAMES[ops[i]]).append(' ').append(ops[i + 1]).append(System.lineSeparator());
+        }
+        return builder.toString();
     }
 
     static boolean validateBinaryStructure(WAVLTree.WAVLNode n) {
@@ -0,0 +1,218 @@
+/**
+ *
+ * PrimitiveWAVLTree
+ *
+ * A WAVL tree with int keys and a primitive 64-bit payload stored inline in each node,
+ * built on AbstractWAVLTree. The payload slot holds an int, a long, or the raw bits of a
+ * double, so small numeric values are neither boxed nor formatted as strings, and the typed
+ * accessors return them without allocating.<br>
+ *
+ * Since a primitive has no null, every lookup takes the value to return when the key is
+ * missing. The tree does not remember which type was stored under a key: reading a value
+ * with a different accessor than the one it was written with reinterprets its bits.
+ *
+ */
+public class PrimitiveWAVLTree extends AbstractWAVLTree<PrimitiveWAVLTree.PrimitiveNode> {
+
+    /**
+     * A node of the tree, holding an int key and a 64-bit payload.
+     */
+    public static class PrimitiveNode extends AbstractWAVLTree.Node<PrimitiveNode> {
+        private final int key;
+        private long bits;
+
+        private PrimitiveNode(int key, long bits) {
+            this.key = key;
+            this.bits = bits;
+        }
+
+        /** @return     the key of the node */
+        public int getKey() { return key; }
+
+        /** @return     the raw payload of the node */
+        public long getBits() { return bits; }
+    }
+
+    /**
+     * Returns the node with key k, or the node below which k would be inserted if it is not
+     * in the tree. The tree must not be empty.
+     */
+    private PrimitiveNode findInsertionPlace(int k) {
+        PrimitiveNode node = root;
+        while (true) {
+            PrimitiveNode next = k < node.key ? node.left : k > node.key ? node.right : null;
+            if (next == null)
+                return node;
+            node = next;
+        }
+    }
+
+    /**
+     * Returns the node with key k, or null if k isn't in the tree.
+     */
+    private PrimitiveNode findNode(int k) {
+        PrimitiveNode node = root;
+        while (node != null && node.key != k) {
+            node = k < node.key ? node.left : node.right;
+        }
+        return node;
+    }
+
+    /**
+     * Inserts key k with the raw payload bits to the tree. This method runs in O(logn) time.
+     *
+     * @param k         the key inserted
+     * @param bits      the payload associated with the key
+     * @return          the number of rebalancing operations performed, or -1 if key k already
+     *                  exists in the tree
+     */
+    public int insertLong(int k, long bits) {
+        if (root == null) {
+            insertRoot(new PrimitiveNode(k, bits));
+            return 0;
+        }
+        PrimitiveNode parent = findInsertionPlace(k);
+        if (parent.key == k)
+            return -1;
+        return insertChild(parent, new PrimitiveNode(k, bits), k < parent.key);
+    }
+
+    /**
+     * Inserts key k with an int value, as insertLong.
+     *
+     * @param k     the key inserted
+     * @param v     the value associated with the key
+     * @return      the number of rebalancing operations performed, or -1 if key k already
+     *              exists in the tree
+     */
+    public int insertInt(int k, int v) {
+        return insertLong(k, v);
+    }
+
+    /**
+     * Inserts key k with a double value, stored by its raw bits, as insertLong.
+     *
+     * @param k     the key inserted
+     * @param v     the value associated with the key
+     * @return      the number of rebalancing operations performed, or -1 if key k already
+     *              exists in the tree
+     */
+    public int insertDouble(int k, double v) {
+        return insertLong(k, Double.doubleToRawLongBits(v));
+    }
+
+    /**
+     * Replaces the payload of key k, if it is in the tree. This method runs in O(logn) time
+     * and performs no rebalancing.
+     *
+     * @param k         the key whose payload is replaced
+     * @param bits      the new payload
+     * @return          true if k was found
+     */
+    public boolean setLong(int k, long bits) {
+        PrimitiveNode node = findNode(k);
+        if (node == null)
+            return false;
+        node.bits = bits;
+        return true;
+    }
+
+    /**
+     * Removes key k from the tree. This method runs in O(logn) time.
+     *
+     * @param k     key to be removed from the tree, if it exists in it
+     * @return      the number of rebalancing operations performed, or -1 if k was not found
+     */
+    public int delete(int k) {
+        PrimitiveNode node = findNode(k);
+        return node == null ? -1 : remove(node);
+    }
+
+    /**
+     * Returns true if key k is in the tree. This method runs in O(logn) time.
+     *
+     * @param k     the key being searched
+     * @return      true if k is in the tree
+     */
+    public boolean contains(int k) {
+        return findNode(k) != null;
+    }
+
+    /**
+     * Searches the tree for key k and returns its payload. This method runs in O(logn) time.
+     *
+     * @param k         the key being searched
+     * @param missing   the value returned if k isn't in the tree
+     * @return          the payload associated with key k, or missing
+     */
+    public long searchLong(int k, long missing) {
+        PrimitiveNode node = findNode(k);
+        return node == null ? missing : node.bits;
+    }
+
+    /**
+     * Searches the tree for key k and returns its payload as an int, as searchLong.
+     *
+     * @param k         the key being searched
+     * @param missing   the value returned if k isn't in the tree
+     * @return          the value associated with key k, or missing
+     */
+    public int searchInt(int k, int missing) {
+        PrimitiveNode node = findNode(k);
+        return node == null ? missing : (int) node.bits;
+    }
+
+    /**
+     * Searches the tree for key k and returns its payload as a double, as searchLong.
+     *
+     * @param k         the key being searched
+     * @param missing   the value returned if k isn't in the tree
+     * @return          the value associated with key k, or missing
+     */
+    public double searchDouble(int k, double missing) {
+        PrimitiveNode node = findNode(k);
+        return node == null ? missing : Double.longBitsToDouble(node.bits);
+    }
+
+    /**
+     * Returns the payload of the i'th smallest key in the tree. This method runs in O(logn)
+     * time.
+     *
+     * @param i         the position of the key in the sorted order, starting at 1
+     * @param missing   the value returned if i is not between 1 and the size of the tree
+     * @return          the payload associated with the i'th smallest key, or missing
+     */
+    public long selectLong(int i, long missing) {
+        PrimitiveNode node = selectNode(i);
+        return node == null ? missing : node.bits;
+    }
+
+    /**
+     * Returns a sorted array of the tree's keys. This function runs in O(n) time.
+     *
+     * @return      array of the tree's keys in ascending order
+     */
+    public int[] keysToArray() {
+        int[] keys = new int[size()];
+        int j = 0;
+        for (PrimitiveNode node = firstNode(); node != null; node = successorNode(node)) {
+            keys[j++] = node.key;
+        }
+        return keys;
+    }
+
+    /**
+     * Returns an array of the tree's payloads, sorted in ascending order of their keys.
+     * This function runs in O(n) time.
+     *
+     * @return      array of the payloads in ascending order of their keys
+     */
+    public long[] valuesToArray() {
+        long[] values = new long[size()];
+        int j = 0;
+        for (PrimitiveNode node = firstNode(); node != null; node = successorNode(node)) {
+            values[j++] = node.bits;
+        }
+        return values;
+    }
+}
@@ -0,0 +1,329 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ *
+ * RecordWAVLTree
+ *
+ * A WAVL tree with int keys whose values are fixed-width byte records, built on
+ * AbstractWAVLTree. The records are not objects: they are stored back to back in a single
+ * direct ByteBuffer outside the Java heap, and each node keeps only the number of its
+ * record's slot, so the values add nothing for the garbage collector to trace or copy.<br>
+ *
+ * The slots of deleted records are kept on a free list, stored in an int array, and reused by
+ * later insertions. When all slots are taken the slab is replaced by one of twice the
+ * capacity, up to the Integer.MAX_VALUE bytes a ByteBuffer can hold. Fields of a record are
+ * read and written in place by their byte offset within it.
+ *
+ */
+public class RecordWAVLTree extends AbstractWAVLTree<RecordWAVLTree.RecordNode> {
+    private final int recordWidth;
+    private ByteBuffer slab;
+    /** Number of slots ever taken, the slots from here to the end of the slab are free */
+    private int slotsUsed;
+    /** Stack of the free slots below slotsUsed */
+    private int[] freeSlots = new int[16];
+    private int freeCount;
+
+    /**
+     * A node of the tree, holding an int key and the slot of its record.
+     */
+    public static class RecordNode extends AbstractWAVLTree.Node<RecordNode> {
+        private final int key;
+        private final int slot;
+
+        private RecordNode(int key, int slot) {
+            this.key = key;
+            this.slot = slot;
+        }
+
+        /** @return     the key of the node */
+        public int getKey() { return key; }
+    }
+
+    /**
+     * Creates an empty tree with records of recordWidth bytes and room for 16 records.
+     *
+     * @param recordWidth   the number of bytes in a record, at least 1
+     */
+    public RecordWAVLTree(int recordWidth) {
+        this(recordWidth, 16);
+    }
+
+    /**
+     * Creates an empty tree with records of recordWidth bytes and room for the provided
+     * number of records before the slab has to grow.
+     *
+     * @param recordWidth       the number of bytes in a record, at least 1
+     * @param initialCapacity   the number of records the slab holds initially, at least 1
+     * @throws IllegalArgumentException     if the width or the capacity is not positive, or
+     *                                      the initial slab would exceed Integer.MAX_VALUE bytes
+     */
+    public RecordWAVLTree(int recordWidth, int initialCapacity) {
+        if (recordWidth < 1)
+            throw new IllegalArgumentException("record width must be positive: " + recordWidth);
+        if (initialCapacity < 1)
+            throw new IllegalArgumentException("capacity must be positive: " + initialCapacity);
+        long bytes = (long) recordWidth * initialCapacity;
+        if (bytes > Integer.MAX_VALUE)
+            throw new IllegalArgumentException(initialCapacity + " records of " + recordWidth
+                    + " bytes exceed the Integer.MAX_VALUE bytes of a slab");
+        this.recordWidth = recordWidth;
+        this.slab = ByteBuffer.allocateDirect((int) bytes);
+    }
+
+    /**
+     * Returns the number of bytes in a record.
+     *
+     * @return      the record width
+     */
+    public int getRecordWidth() {
+        return recordWidth;
+    }
+
+    /**
+     * Takes a free slot, from the free list if possible, and grows the slab if it is full.
+     * The slab doubles, or grows to Integer.MAX_VALUE bytes if doubling would exceed them.
+     *
+     * @throws IllegalStateException    if the slab holds Integer.MAX_VALUE bytes of records
+     *                                  and has no room for another one
+     */
+    private int allocateSlot() {
+        if (freeCount > 0)
+            return freeSlots[--freeCount];
+        long needed = (long) (slotsUsed + 1) * recordWidth;
+        if (needed > slab.capacity()) {
+            if (needed > Integer.MAX_VALUE)
+                throw new IllegalStateException("slab full: " + slotsUsed + " records of " + recordWidth
+                        + " bytes, another would exceed Integer.MAX_VALUE bytes");
+            ByteBuffer larger = ByteBuffer.allocateDirect((int) Math.min(2L * slab.capacity(), Integer.MAX_VALUE));
+            slab.clear();
+            larger.put(slab);
+            slab = larger;
+        }
+        return slotsUsed++;
+    }
+
+    private void freeSlot(int slot) {
+        if (freeCount == freeSlots.length)
+            freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+        freeSlots[freeCount++] = slot;
+    }
+
+    /**
+     * Returns the node with key k, or the node below which k would be inserted if it is not
+     * in the tree. The tree must not be empty.
+     */
+    private RecordNode findInsertionPlace(int k) {
+        RecordNode node = root;
+        while (true) {
+            RecordNode next = k < node.key ? node.left : k > node.key ? node.right : null;
+            if (next == null)
+                return node;
+            node = next;
+        }
+    }
+
+    /**
+     * Returns the node with key k, or null if k isn't in the tree.
+     */
+    private RecordNode findNode(int k) {
+        RecordNode node = root;
+        while (node != null && node.key != k) {
+            node = k < node.key ? node.left : node.right;
+        }
+        return node;
+    }
+
+    /**
+     * Returns the position in the slab of the given field of the record of key k, or -1 if
+     * k isn't in the tree.
+     */
+    private int fieldPosition(int k, int offset, int fieldWidth) {
+        if (offset < 0 || offset + fieldWidth > recordWidth)
+            throw new IndexOutOfBoundsException("field at " + offset + " of a " + recordWidth + "-byte record");
+        RecordNode node = findNode(k);
+        return node == null ? -1 : recordPosition(node) + offset;
+    }
+
+    /**
+     * Returns the position in the slab of the record of a node. The product is computed in
+     * long, and as the record lies within the slab, its position and those of its fields fit
+     * an int.
+     */
+    private int recordPosition(RecordNode node) {
+        return (int) ((long) node.slot * recordWidth);
+    }
+
+    /**
+     * Inserts key k to the tree, with a record copied from the first recordWidth bytes of the
+     * provided array. This method runs in O(logn) time, besides the occasional growth of the
+     * slab.
+     *
+     * @param k         the key inserted
+     * @param record    the record associated with the key, at least recordWidth bytes long
+     * @return          the number of rebalancing operations performed, or -1 if key k already
+     *                  exists in the tree
+     */
+    public int insert(int k, byte[] record) {
+        if (record.length < recordWidth)
+            throw new IllegalArgumentException("record of " + record.length + " bytes, expected " + recordWidth);
+        RecordNode parent = root == null ? null : findInsertionPlace(k);
+        if (parent != null && parent.key == k)
+            return -1;
+
+        RecordNode node = new RecordNode(k, allocateSlot());
+        ByteBuffer view = slab.duplicate();
+        view.position(recordPosition(node));
+        view.put(record, 0, recordWidth);
+        if (parent == null) {
+            insertRoot(node);
+            return 0;
+        }
+        return insertChild(parent, node, k < parent.key);
+    }
+
+    /**
+     * Removes key k from the tree and returns its record's slot to the free list. This method
+     * runs in O(logn) time.
+     *
+     * @param k     key to be removed from the tree, if it exists in it
+     * @return      the number of rebalancing operations performed, or -1 if k was not found
+     */
+    public int delete(int k) {
+        RecordNode node = findNode(k);
+        if (node == null)
+            return -1;
+        int rebalances = remove(node);
+        freeSlot(node.slot);
+        return rebalances;
+    }
+
+    /**
+     * Returns true if key k is in the tree. This method runs in O(logn) time.
+     *
+     * @param k     the key being searched
+     * @return      true if k is in the tree
+     */
+    public boolean contains(int k) {
+        return findNode(k) != null;
+    }
+
+    /**
+     * Copies the record of key k to the first recordWidth bytes of dest. This method runs in
+     * O(logn) time and does not allocate.
+     *
+     * @param k         the key being searched
+     * @param dest      the array the record is copied to, at least recordWidth bytes long
+     * @return          true if k was found
+     */
+    public boolean readRecord(int k, byte[] dest) {
+        RecordNode node = findNode(k);
+        if (node == null)
+            return false;
+        int base = recordPosition(node);
+        for (int j = 0; j < recordWidth; j++) {
+            dest[j] = slab.get(base + j);
+        }
+        return true;
+    }
+
+    /**
+     * Reads the int field at the given byte offset of the record of key k. This method runs
+     * in O(logn) time.
+     *
+     * @param k         the key being searched
+     * @param offset    the offset of the field within the record
+     * @param missing   the value returned if k isn't in the tree
+     * @return          the value of the field, or missing
+     */
+    public int getInt(int k, int offset, int missing) {
+        int position = fieldPosition(k, offset, 4);
+        return position < 0 ? missing : slab.getInt(position);
+    }
+
+    /**
+     * Reads the long field at the given byte offset of the record of key k, as getInt.
+     *
+     * @param k         the key being searched
+     * @param offset    the offset of the field within the record
+     * @param missing   the value returned if k isn't in the tree
+     * @return          the value of the field, or missing
+     */
+    public long getLong(int k, int offset, long missing) {
+        int position = fieldPosition(k, offset, 8);
+        return position < 0 ? missing : slab.getLong(position);
+    }
+
+    /**
+     * Reads the double field at the given byte offset of the record of key k, as getInt.
+     *
+     * @param k         the key being searched
+     * @param offset    the offset of the field within the record
+     * @param missing   the value returned if k isn't in the tree
+     * @return          the value of the field, or missing
+     */
+    public double getDouble(int k, int offset, double missing) {
+        int position = fieldPosition(k, offset, 8);
+        return position < 0 ? missing : slab.getDouble(position);
+    }
+
+    /**
+     * Writes the int field at the given byte offset of the record of key k in place.
+     *
+     * @param k         the key whose record is written
+     * @param offset    the offset of the field within the record
+     * @param v         the new value of the field
+     * @return          true if k was found
+     */
+    public boolean putInt(int k, int offset, int v) {
+        int position = fieldPosition(k, offset, 4);
+        if (position >= 0)
+            slab.putInt(position, v);
+        return position >= 0;
+    }
+
+    /**
+     * Writes the long field at the given byte offset of the record of key k in place.
+     *
+     * @param k         the key whose record is written
+     * @param offset    the offset of the field within the record
+     * @param v         the new value of the field
+     * @return          true if k was found
+     */
+    public boolean putLong(int k, int offset, long v) {
+        int position = fieldPosition(k, offset, 8);
+        if (position >= 0)
+            slab.putLong(position, v);
+        return position >= 0;
+    }
+
+    /**
+     * Writes the double field at the given byte offset of the record of key k in place.
+     *
+     * @param k         the key whose record is written
+     * @param offset    the offset of the field within the record
+     * @param v         the new value of the field
+     * @return          true if k was found
+     */
+    public boolean putDouble(int k, int offset, double v) {
+        int position = fieldPosition(k, offset, 8);
+        if (position >= 0)
+            slab.putDouble(position, v);
+        return position >= 0;
+    }
+
+    /**
+     * Returns a sorted array of the tree's keys. This function runs in O(n) time.
+     *
+     * @return      array of the tree's keys in ascending order
+     */
+    public int[] keysToArray() {
+        int[] keys = new int[size()];
+        int j = 0;
+        for (RecordNode node = firstNode(); node != null; node = successorNode(node)) {
+            keys[j++] = node.key;
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,339 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ *
+ * WAVLChangeLog
+ *
+ * A change-data-capture log of the mutations of a WAVLTree, for keeping replicas of the tree
+ * in other processes up to date without reloading it. A tree given a log through
+ * WAVLTree.setChangeLog appends a binary record for every change of its contents, and the
+ * records are numbered by consecutive sequence numbers, starting at 0.<br>
+ *
+ * There are four kinds of records, which a replica applies with the method of the same
+ * effect: INSERT adds an entry or, in a multiset, one more occurrence of its key, DELETE
+ * removes one occurrence of a key of a multiset, REMOVE removes an entry with all its
+ * occurrences, and PUT replaces the value of an entry. Deletions of every kind on the
+ * primary, including expirations, evictions and lazy deletions, are logged as they take
+ * effect, so a replica in the default configuration, or in multiset mode if the primary is a
+ * multiset, ends up with the same entries.<br>
+ *
+ * The records are kept in a ring buffer of a fixed number of bytes. When a new record does not
+ * fit, the oldest records are dropped, and a reader that has not read them yet can no longer
+ * continue: it is told so, and must reload its replica. A record takes 5 bytes, plus 4 bytes
+ * and the UTF-8 bytes of the value for INSERT and PUT.<br>
+ *
+ * Readers copy the records to an OutputStream in frames, each made of the sequence number of
+ * its first record, the number of records, the number of bytes of the records and the
+ * records themselves, which can be sent over a pipe or a local socket. On the replica side,
+ * applyFrame reads a frame from an InputStream and applies its records in one batch. The log
+ * is synchronized, so one thread may write frames while another modifies the tree.
+ *
+ */
+public class WAVLChangeLog {
+    /** Record type adding an entry, or an occurrence of its key in a multiset */
+    public static final byte INSERT = 1;
+    /** Record type removing one occurrence of a key in a multiset */
+    public static final byte DELETE = 2;
+    /** Record type removing an entry with all its occurrences */
+    public static final byte REMOVE = 3;
+    /** Record type replacing the value of an entry */
+    public static final byte PUT = 4;
+
+    /** Bytes of a frame header: the sequence number of its first record, the count and length */
+    private static final int FRAME_HEADER = 16;
+    /** Records between two entries of the sequence to offset index, a power of 2 */
+    private static final int CHECKPOINT_INTERVAL = 32;
+
+    private final byte[] buffer;
+    private final int mask;
+    /** Stream offsets of the oldest record kept and of the end of the newest, which grow forever */
+    private long head;
+    private long tail;
+    /** Sequence numbers of the record at head and of the next record appended */
+    private long firstSequence;
+    private long nextSequence;
+    /**
+     * Sequence to offset index: the stream offset of every record whose sequence number is a
+     * multiple of CHECKPOINT_INTERVAL, in a ring of slots by sequence number, so that a frame
+     * can start at any record kept after scanning fewer than CHECKPOINT_INTERVAL records
+     */
+    private final long[] checkpoints;
+
+    /**
+     * Creates an empty log keeping up to capacity bytes of records, rounded up to a power
+     * of 2.
+     *
+     * @param capacity      the number of bytes of the ring buffer, between 16 and 2^30
+     */
+    public WAVLChangeLog(int capacity) {
+        if (capacity < 16 || capacity > 1 << 30)
+            throw new IllegalArgumentException("capacity must be between 16 and 2^30: " + capacity);
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+        this.buffer = new byte[size];
+        this.mask = size - 1;
+        /* A record takes at least 5 bytes, so the ring holds fewer than size / 4 records, and a
+        slot is only reused once the checkpoint it held is no longer kept */
+        this.checkpoints = new long[Math.max(1, size / (4 * CHECKPOINT_INTERVAL))];
+    }
+
+    /**
+     * Returns the sequence number the next record will get, which is the number of records
+     * ever appended.
+     *
+     * @return      the next sequence number
+     */
+    public synchronized long nextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * Returns the sequence number of the oldest record still kept. Readers behind it have
+     * missed records.
+     *
+     * @return      the sequence number of the oldest record kept, or nextSequence if none
+     */
+    public synchronized long firstSequence() {
+        return firstSequence;
+    }
+
+    /**
+     * Appends a record. Called by the tree for each change of its contents.
+     *
+     * @param type      the type of the record
+     * @param key       the key changed
+     * @param value     the value of an INSERT or PUT record, ignored otherwise
+     * @throws IllegalArgumentException     if the record is larger than the ring buffer
+     */
+    synchronized void append(byte type, int key, String value) {
+        byte[] bytes = null;
+        int length = 5;
+        if (type == INSERT || type == PUT) {
+            bytes = value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+            length += 4 + (bytes == null ? 0 : bytes.length);
+        }
+        if (length > buffer.length)
+            throw new IllegalArgumentException("record of " + length + " bytes in a log of " + buffer.length);
+
+        while (tail + length - head > buffer.length) {
+            head += recordLength(head);
+            firstSequence++;
+        }
+
+        if ((nextSequence & (CHECKPOINT_INTERVAL - 1)) == 0)
+            checkpoints[checkpointSlot(nextSequence)] = tail;
+        putByte(tail, type);
+        putInt(tail + 1, key);
+        if (length > 5) {
+            putInt(tail + 5, bytes == null ? -1 : bytes.length);
+            if (bytes != null) {
+                for (int j = 0; j < bytes.length; j++)
+                    putByte(tail + 9 + j, bytes[j]);
+            }
+        }
+        tail += length;
+        nextSequence++;
+    }
+
+    /**
+     * Writes the records from sequence number from onwards, up to maxRecords of them, to out
+     * as a single frame, or nothing if there are no such records. The frame can be applied
+     * to a replica by applyFrame.<br>
+     *
+     * The frame starts at record from in O(1) time, whatever the number of readers and their
+     * positions: the log indexes the offset of every CHECKPOINT_INTERVAL-th record, and scans
+     * the few records from the last indexed one before from. The frame is copied out of the ring buffer under the lock of the log, and written
+     * to out and flushed after releasing it, so a slow stream does not block the tree's
+     * appends or other readers.
+     *
+     * @param from          the sequence number of the first record to write
+     * @param out           the stream the frame is written to
+     * @param maxRecords    the maximal number of records in the frame, at least 1
+     * @return              the sequence number following the last record written
+     * @throws IllegalStateException    if some of the records requested were dropped, or
+     *                                  from is beyond the last record
+     * @throws IOException              if the stream fails
+     */
+    public long writeFrame(long from, OutputStream out, int maxRecords) throws IOException {
+        byte[] frame = copyFrame(from, maxRecords);
+        if (frame == null)
+            return from;
+        out.write(frame);
+        out.flush();
+        return from + getInt(frame, 8);
+    }
+
+    /**
+     * Copies the frame writeFrame writes into a new array: its header, followed by the
+     * records from sequence number from onwards, up to maxRecords of them.
+     *
+     * @return      the frame, or null if there are no such records
+     */
+    private synchronized byte[] copyFrame(long from, int maxRecords) {
+        if (from < firstSequence)
+            throw new IllegalStateException("records " + from + " to " + (firstSequence - 1) + " were dropped");
+        if (from > nextSequence)
+            throw new IllegalStateException("no record " + from + ", the next record is " + nextSequence);
+        if (from == nextSequence)
+            return null;
+
+        long start = offsetOf(from);
+        long end = start;
+        int count = 0;
+        while (count < maxRecords && end < tail) {
+            end += recordLength(end);
+            count++;
+        }
+
+        int length = (int) (end - start);
+        byte[] frame = new byte[FRAME_HEADER + length];
+        setInt(frame, 0, (int) (from >>> 32));
+        setInt(frame, 4, (int) from);
+        setInt(frame, 8, count);
+        setInt(frame, 12, length);
+        int first = (int) (start & mask);
+        int last = (int) (end & mask);
+        if (first < last) {
+            System.arraycopy(buffer, first, frame, FRAME_HEADER, length);
+        } else { // the records wrap around the end of the buffer
+            System.arraycopy(buffer, first, frame, FRAME_HEADER, buffer.length - first);
+            System.arraycopy(buffer, 0, frame, FRAME_HEADER + buffer.length - first, last);
+        }
+        return frame;
+    }
+
+    /**
+     * Reads one frame written by writeFrame from in, and applies its records to a replica
+     * tree, in order: INSERT by insert, DELETE by delete, REMOVE by deleteAll and PUT by put.
+     *
+     * @param in            the stream the frame is read from
+     * @param replica       the tree the records are applied to
+     * @param expected      the sequence number of the next record the replica needs
+     * @return              the sequence number following the last record applied
+     * @throws IllegalStateException    if the frame does not start at expected, and the replica
+     *                                  would miss or repeat records
+     * @throws IOException              if the stream fails or ends within a frame, or the
+     *                                  frame is malformed
+     */
+    public static long applyFrame(InputStream in, WAVLTree replica, long expected) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        long from = data.readLong();
+        int count = data.readInt();
+        int length = data.readInt();
+        if (from != expected)
+            throw new IllegalStateException("frame starts at record " + from + ", expected " + expected);
+        if (count < 0 || length < 0)
+            throw new IOException("malformed frame header: " + count + " records, " + length + " bytes");
+
+        int read = 0;
+        for (int j = 0; j < count; j++) {
+            byte type = data.readByte();
+            int key = data.readInt();
+            read += 5;
+            switch (type) {
+                case INSERT:
+                case PUT: {
+                    int size = data.readInt();
+                    String value = null;
+                    if (size >= 0) {
+                        byte[] bytes = new byte[size];
+                        data.readFully(bytes);
+                        value = new String(bytes, StandardCharsets.UTF_8);
+                    }
+                    read += 4 + Math.max(0, size);
+                    if (type == INSERT)
+                        replica.insert(key, value);
+                    else
+                        replica.put(key, value);
+                    break;
+                }
+                case DELETE:
+                    replica.delete(key);
+                    break;
+                case REMOVE:
+                    replica.deleteAll(key);
+                    break;
+                default:
+                    throw new IOException("unknown record type " + type + " in record " + (from + j));
+            }
+        }
+        if (read != length)
+            throw new IOException("frame of " + length + " bytes held " + read + " bytes of records");
+        return from + count;
+    }
+
+    /**
+     * Returns the stream offset of the record with the given sequence number, which is kept,
+     * by scanning from the last checkpoint before it, or from the oldest record if that
+     * checkpoint was dropped. Fewer than CHECKPOINT_INTERVAL records are scanned.
+     */
+    private long offsetOf(long sequence) {
+        long s = sequence & -CHECKPOINT_INTERVAL;
+        long offset;
+        if (s >= firstSequence) {
+            offset = checkpoints[checkpointSlot(s)];
+        } else {
+            s = firstSequence;
+            offset = head;
+        }
+        for (; s < sequence; s++)
+            offset += recordLength(offset);
+        return offset;
+    }
+
+    /**
+     * Returns the slot of the sequence to offset index of a sequence number which is a
+     * multiple of CHECKPOINT_INTERVAL.
+     */
+    private int checkpointSlot(long sequence) {
+        return (int) (sequence / CHECKPOINT_INTERVAL) & (checkpoints.length - 1);
+    }
+
+    /**
+     * Returns the number of bytes of the record at the given stream offset.
+     */
+    private int recordLength(long offset) {
+        byte type = buffer[(int) (offset & mask)];
+        if (type != INSERT && type != PUT)
+            return 5;
+        int size = getInt(offset + 5);
+        return 9 + Math.max(0, size);
+    }
+
+    private void putByte(long offset, byte b) {
+        buffer[(int) (offset & mask)] = b;
+    }
+
+    private void putInt(long offset, int v) {
+        putByte(offset, (byte) (v >>> 24));
+        putByte(offset + 1, (byte) (v >>> 16));
+        putByte(offset + 2, (byte) (v >>> 8));
+        putByte(offset + 3, (byte) v);
+    }
+
+    /** Writes an int to an array in big-endian order, as DataOutputStream does */
+    private static void setInt(byte[] bytes, int index, int v) {
+        bytes[index] = (byte) (v >>> 24);
+        bytes[index + 1] = (byte) (v >>> 16);
+        bytes[index + 2] = (byte) (v >>> 8);
+        bytes[index + 3] = (byte) v;
+    }
+
+    /** Reads an int written by setInt */
+    private static int getInt(byte[] bytes, int index) {
+        return (bytes[index] & 0xff) << 24 | (bytes[index + 1] & 0xff) << 16 |
+                (bytes[index + 2] & 0xff) << 8 | bytes[index + 3] & 0xff;
+    }
+
+    private int getInt(long offset) {
+        int v = 0;
+        for (int j = 0; j < 4; j++)
+            v = v << 8 | buffer[(int) ((offset + j) & mask)] & 0xff;
+        return v;
+    }
+}
@@ -0,0 +1,286 @@
+/**
+ *
+ * WAVLIndex
+ *
+ * An immutable, read-optimized snapshot of the keys and values of a tree, produced by
+ * WAVLTree.freezeToIndex.<br>
+ *
+ * The keys are stored in a single int array in Eytzinger (breadth-first) order: the root of
+ * an implicit perfectly balanced search tree is at index 1, and the children of index i are
+ * at 2i and 2i+1. A search is a loop over one array, without pointers to follow. Since the
+ * children of a node are adjacent and the top levels of the tree share a few cache lines, the
+ * memory accesses are far more predictable than those of a walk through node objects, and the
+ * comparison at each level only selects the next index, so the loop has no unpredictable
+ * branches. After the descent, the position of the lower bound is recovered from the index by
+ * dropping the trailing right turns.<br>
+ *
+ * Values are stored in the same order, and each slot keeps its position in the sorted order,
+ * so that rank and select are O(1) after the descent.<br>
+ *
+ * An index of a multiset keeps each distinct key once, together with the number of
+ * occurrences of the keys before it, so that size, rank, select and keyAt count every
+ * occurrence of a key as in WAVLTree. Select then finds the key of a position by a binary
+ * search over these counts.
+ *
+ */
+public final class WAVLIndex {
+    private final int n;
+    /** keys[1..n] in Eytzinger order, keys[0] is unused */
+    private final int[] keys;
+    private final String[] values;
+    /** Position in the sorted order of the key at each slot, 0-based */
+    private final int[] positionOf;
+    /** Slot of the key at each position of the sorted order */
+    private final int[] slotOf;
+    /** Number of occurrences of the keys before each position of the sorted order, with the
+     *  total at position n, or null if every key occurs once */
+    private final int[] occurrencesBefore;
+
+    /**
+     * Creates an index from arrays of keys in strictly increasing order and their values.
+     *
+     * @param sortedKeys    the keys, in strictly increasing order
+     * @param sortedValues  the value associated with each key
+     * @throws IllegalArgumentException     if the keys are not strictly increasing, or the
+     *                                      arrays have different lengths
+     */
+    public WAVLIndex(int[] sortedKeys, String[] sortedValues) {
+        this(sortedKeys, sortedValues, null);
+    }
+
+    /**
+     * Creates an index of a multiset from arrays of distinct keys in strictly increasing
+     * order, their values and the number of occurrences of each key.
+     *
+     * @param sortedKeys    the keys, in strictly increasing order
+     * @param sortedValues  the value associated with each key
+     * @param counts        the number of occurrences of each key, or null if every key
+     *                      occurs once
+     * @throws IllegalArgumentException     if the keys are not strictly increasing, a count
+     *                                      is not positive, the total count exceeds
+     *                                      Integer.MAX_VALUE, or the arrays have different
+     *                                      lengths
+     */
+    public WAVLIndex(int[] sortedKeys, String[] sortedValues, int[] counts) {
+        if (sortedKeys.length != sortedValues.length || (counts != null && counts.length != sortedKeys.length))
+            throw new IllegalArgumentException("keys, values and counts differ in length");
+        for (int i = 1; i < sortedKeys.length; i++) {
+            if (sortedKeys[i - 1] >= sortedKeys[i])
+                throw new IllegalArgumentException("keys are not strictly increasing at " + i);
+        }
+
+        this.n = sortedKeys.length;
+        this.keys = new int[n + 1];
+        this.values = new String[n + 1];
+        this.positionOf = new int[n + 1];
+        this.slotOf = new int[n];
+        fill(sortedKeys, sortedValues, 0, 1);
+
+        if (counts == null) {
+            this.occurrencesBefore = null;
+        } else {
+            this.occurrencesBefore = new int[n + 1];
+            long total = 0;
+            for (int i = 0; i < n; i++) {
+                if (counts[i] < 1)
+                    throw new IllegalArgumentException("count " + counts[i] + " of key " + sortedKeys[i]);
+                occurrencesBefore[i] = (int) total;
+                total += counts[i];
+                if (total > Integer.MAX_VALUE)
+                    throw new IllegalArgumentException("more than Integer.MAX_VALUE occurrences");
+            }
+            occurrencesBefore[n] = (int) total;
+        }
+    }
+
+    /**
+     * Fills the slots of the subtree rooted at the given slot in an in-order walk, taking
+     * the sorted entries from position next onwards. The recursion depth is log(n).
+     *
+     * @return      the position of the next sorted entry to place
+     */
+    private int fill(int[] sortedKeys, String[] sortedValues, int next, int slot) {
+        if (slot > n)
+            return next;
+        next = fill(sortedKeys, sortedValues, next, 2 * slot);
+        keys[slot] = sortedKeys[next];
+        values[slot] = sortedValues[next];
+        positionOf[slot] = next;
+        slotOf[next] = slot;
+        return fill(sortedKeys, sortedValues, next + 1, 2 * slot + 1);
+    }
+
+    /**
+     * Returns the slot of the smallest key greater than or equal to k, or 0 if all keys are
+     * smaller.
+     */
+    private int lowerBoundSlot(int k) {
+        int i = 1;
+        while (i <= n) {
+            i = 2 * i + (keys[i] < k ? 1 : 0);
+        }
+        /* The descent turned right at every key smaller than k. The last left turn was at the
+         * lower bound, so the right turns after it are dropped together with that turn. */
+        return i >>> (Integer.numberOfTrailingZeros(~i) + 1);
+    }
+
+    /**
+     * Returns the slot of the smallest key greater than k, or 0 if there is none.
+     */
+    private int upperBoundSlot(int k) {
+        int i = 1;
+        while (i <= n) {
+            i = 2 * i + (keys[i] <= k ? 1 : 0);
+        }
+        return i >>> (Integer.numberOfTrailingZeros(~i) + 1);
+    }
+
+    /**
+     * Returns the number of occurrences of the keys before the given position of the sorted
+     * order.
+     */
+    private int occurrences(int position) {
+        return occurrencesBefore == null ? position : occurrencesBefore[position];
+    }
+
+    /**
+     * Returns the position in the sorted order of the key of the i'th smallest occurrence,
+     * for i between 1 and the size of the index. This function runs in O(logn) time, or in
+     * O(1) time if every key occurs once.
+     */
+    private int positionOfOccurrence(int i) {
+        if (occurrencesBefore == null)
+            return i - 1;
+        int lo = 0;
+        int hi = n - 1;
+        while (lo < hi) { // the last position with fewer than i occurrences before it
+            int mid = (lo + hi + 1) >>> 1;
+            if (occurrencesBefore[mid] < i)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return lo;
+    }
+
+    /**
+     * Returns the number of keys in the index, counting every occurrence of a key.
+     *
+     * @return      the number of keys
+     */
+    public int size() {
+        return occurrences(n);
+    }
+
+    /**
+     * Returns the number of occurrences of key k in the index, which is at most 1 unless the
+     * index was frozen from a multiset. This method runs in O(logn) time.
+     *
+     * @param k     the key being counted
+     * @return      the number of occurrences of k
+     */
+    public int count(int k) {
+        int slot = lowerBoundSlot(k);
+        if (slot == 0 || keys[slot] != k)
+            return 0;
+        int position = positionOf[slot];
+        return occurrences(position + 1) - occurrences(position);
+    }
+
+    /**
+     * Searches the index for key k and returns its value, or null if k isn't in it.
+     * This method runs in O(logn) time.
+     *
+     * @param k     the key being searched
+     * @return      value associated with key k, or null
+     */
+    public String search(int k) {
+        int slot = lowerBoundSlot(k);
+        return slot != 0 && keys[slot] == k ? values[slot] : null;
+    }
+
+    /**
+     * Returns the value associated with the greatest key less than or equal to k, or null if
+     * there is no such key. This method runs in O(logn) time.
+     *
+     * @param k     a key, not necessarily in the index
+     * @return      the value of the floor of k, or null
+     */
+    public String floor(int k) {
+        int position = positionAfter(k) - 1;
+        return position < 0 ? null : values[slotOf[position]];
+    }
+
+    /**
+     * Returns the value associated with the smallest key greater than or equal to k, or null
+     * if there is no such key. This method runs in O(logn) time.
+     *
+     * @param k     a key, not necessarily in the index
+     * @return      the value of the ceiling of k, or null
+     */
+    public String ceiling(int k) {
+        int slot = lowerBoundSlot(k);
+        return slot == 0 ? null : values[slot];
+    }
+
+    /**
+     * Returns the number of keys in the index which are smaller than k, counting every
+     * occurrence of a key. This method runs in O(logn) time.
+     *
+     * @param k     a key, not necessarily in the index
+     * @return      the number of keys smaller than k
+     */
+    public int rank(int k) {
+        int slot = lowerBoundSlot(k);
+        return occurrences(slot == 0 ? n : positionOf[slot]);
+    }
+
+    /**
+     * Returns the number of distinct keys in the index which are smaller than or equal to k.
+     */
+    private int positionAfter(int k) {
+        int slot = upperBoundSlot(k);
+        return slot == 0 ? n : positionOf[slot];
+    }
+
+    /**
+     * Returns the value of the i'th smallest key in the index, or null if i is not between
+     * 1 and the size of the index, as in WAVLTree.select. This method runs in O(1) time,
+     * or in O(logn) time for an index of a multiset.
+     *
+     * @param i     the position of the key in the sorted order, starting at 1
+     * @return      the value associated with the i'th smallest key
+     */
+    public String select(int i) {
+        return i < 1 || i > size() ? null : values[slotOf[positionOfOccurrence(i)]];
+    }
+
+    /**
+     * Returns the i'th smallest key in the index. This method runs in O(1) time, or in
+     * O(logn) time for an index of a multiset.
+     *
+     * @param i     the position of the key in the sorted order, starting at 1
+     * @return      the i'th smallest key
+     * @throws IndexOutOfBoundsException    if i is not between 1 and the size of the index
+     */
+    public int keyAt(int i) {
+        if (i < 1 || i > size())
+            throw new IndexOutOfBoundsException("position " + i + " of " + size());
+        return keys[slotOf[positionOfOccurrence(i)]];
+    }
+
+    /**
+     * Returns a sorted array of the index's keys, repeating each key as many times as it
+     * occurs.
+     *
+     * @return      array of the keys in ascending order
+     */
+    public int[] keysToArray() {
+        int[] sorted = new int[size()];
+        for (int i = 0; i < n; i++) {
+            for (int j = occurrences(i); j < occurrences(i + 1); j++)
+                sorted[j] = keys[slotOf[i]];
+        }
+        return sorted;
+    }
+}
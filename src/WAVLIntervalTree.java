@@ -0,0 +1,255 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ *
+ * WAVLIntervalTree
+ *
+ * An interval tree built on the WAVL core of AbstractWAVLTree. Each node holds a closed
+ * interval [low, high] of ints and a value, and nodes are ordered by low endpoint and then by
+ * high endpoint, so that an interval can only appear in the tree once.<br>
+ *
+ * Every node is augmented with the maximal high endpoint in its subtree. The augmentation is
+ * recomputed by AbstractWAVLTree.update along insertion and deletion paths and in every
+ * rotation, so it is maintained in O(logn) time per change. It allows an overlap query to
+ * skip every subtree whose intervals all end before the query starts.<br>
+ *
+ * The rotations and rebalancing are those of AbstractWAVLTree, the core WAVLTree and the
+ * other variants are built on, so the interval tree supports the same rank policies.
+ *
+ */
+public class WAVLIntervalTree extends AbstractWAVLTree<WAVLIntervalTree.Interval> {
+
+    /**
+     * A node of the tree: an interval, its value and the maximal high endpoint in its subtree.
+     */
+    public static class Interval extends AbstractWAVLTree.Node<Interval> {
+        private final int low;
+        private final int high;
+        private final String value;
+        private int maxHigh;
+
+        private Interval(int low, int high, String value) {
+            this.low = low;
+            this.high = high;
+            this.value = value;
+            this.maxHigh = high;
+        }
+
+        /** @return     the low endpoint of the interval */
+        public int getLow() { return low; }
+
+        /** @return     the high endpoint of the interval */
+        public int getHigh() { return high; }
+
+        /** @return     the value associated with the interval */
+        public String getValue() { return value; }
+
+        /** @return     the maximal high endpoint of the intervals in this node's subtree */
+        public int getMaxHigh() { return maxHigh; }
+
+        @Override
+        public String toString() {
+            return "[" + low + ", " + high + "]";
+        }
+    }
+
+    @Override
+    protected void update(Interval node) {
+        super.update(node);
+        int max = node.high;
+        if (node.left != null && node.left.maxHigh > max)
+            max = node.left.maxHigh;
+        if (node.right != null && node.right.maxHigh > max)
+            max = node.right.maxHigh;
+        node.maxHigh = max;
+    }
+
+    /**
+     * Compares the interval [low, high] with the interval of a node, by low endpoint and then
+     * by high endpoint.
+     */
+    private static int compare(int low, int high, Interval node) {
+        if (low != node.low)
+            return low < node.low ? -1 : 1;
+        return high < node.high ? -1 : high == node.high ? 0 : 1;
+    }
+
+    /**
+     * Returns the node holding the interval [low, high], or the node below which it would be
+     * inserted if it is not in the tree. The tree must not be empty.
+     */
+    private Interval findInsertionPlace(int low, int high) {
+        Interval node = root;
+        while (true) {
+            int cmp = compare(low, high, node);
+            Interval next = cmp < 0 ? node.left : cmp > 0 ? node.right : null;
+            if (next == null)
+                return node;
+            node = next;
+        }
+    }
+
+    /**
+     * Inserts the interval [low, high] with value i to the tree.<br>
+     *
+     * This method runs in O(logn) time.
+     *
+     * @param low       the low endpoint of the interval
+     * @param high      the high endpoint of the interval, at least low
+     * @param i         the info associated with the interval
+     * @return          the number of rebalancing operations performed, or -1 if the interval
+     *                  is already in the tree
+     * @throws IllegalArgumentException     if high is smaller than low
+     */
+    public int insert(int low, int high, String i) {
+        if (high < low)
+            throw new IllegalArgumentException("empty interval [" + low + ", " + high + "]");
+        if (root == null) {
+            insertRoot(new Interval(low, high, i));
+            return 0;
+        }
+
+        Interval parent = findInsertionPlace(low, high);
+        int cmp = compare(low, high, parent);
+        if (cmp == 0)
+            return -1;
+        return insertChild(parent, new Interval(low, high, i), cmp < 0);
+    }
+
+    /**
+     * Removes the interval [low, high] from the tree.<br>
+     *
+     * This method runs in O(logn) time.
+     *
+     * @param low       the low endpoint of the interval
+     * @param high      the high endpoint of the interval
+     * @return          the number of rebalancing operations performed, or -1 if the interval
+     *                  is not in the tree
+     */
+    public int delete(int low, int high) {
+        Interval node = root == null ? null : findInsertionPlace(low, high);
+        if (node == null || compare(low, high, node) != 0)
+            return -1;
+        return remove(node);
+    }
+
+    /**
+     * Returns the value associated with the interval [low, high], or null if it is not in the
+     * tree. This method runs in O(logn) time.
+     *
+     * @param low       the low endpoint of the interval
+     * @param high      the high endpoint of the interval
+     * @return          the value of the interval, or null
+     */
+    public String search(int low, int high) {
+        Interval node = root == null ? null : findInsertionPlace(low, high);
+        return node == null || compare(low, high, node) != 0 ? null : node.value;
+    }
+
+    /**
+     * Returns a cursor over the intervals overlapping [a, b], that is, intervals [low, high]
+     * with low &lt;= b and high &gt;= a, in ascending order of their low endpoints.<br>
+     *
+     * The cursor performs an in-order walk which is pruned on both sides: a subtree is skipped
+     * when its maximal high endpoint is smaller than a, and the walk ends at the first interval
+     * starting after b. The results are produced lazily, so a caller may stop early. Visiting
+     * k results costs O(logn + k*log(n/k)) time, and the cursor holds a stack of O(logn)
+     * nodes. The tree must not be modified while the cursor is in use.
+     *
+     * @param a     the low endpoint of the query interval
+     * @param b     the high endpoint of the query interval
+     * @return      an iterator over the overlapping intervals
+     */
+    public Iterator<Interval> overlapping(int a, int b) {
+        return new OverlapCursor(a, b);
+    }
+
+    /**
+     * Returns a cursor over the intervals containing the point p, as overlapping(p, p).
+     *
+     * @param p     the query point
+     * @return      an iterator over the intervals containing p
+     */
+    public Iterator<Interval> stabbing(int p) {
+        return overlapping(p, p);
+    }
+
+    /**
+     * Returns the number of intervals overlapping [a, b]. This method runs in the time it
+     * takes to walk the results with overlapping.
+     *
+     * @param a     the low endpoint of the query interval
+     * @param b     the high endpoint of the query interval
+     * @return      the number of overlapping intervals
+     */
+    public int countOverlapping(int a, int b) {
+        int count = 0;
+        for (Iterator<Interval> it = overlapping(a, b); it.hasNext(); it.next()) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * The streaming cursor of overlapping. It keeps the pending nodes of the pruned in-order
+     * walk on a stack: every node on it has a maximal high endpoint of at least a, and their
+     * left subtrees have already been pushed.
+     */
+    private class OverlapCursor implements Iterator<Interval> {
+        private final int a;
+        private final int b;
+        private Interval[] stack = new Interval[root == null ? 1 : root.rank + 2];
+        private int top = -1;
+        private Interval next;
+
+        private OverlapCursor(int a, int b) {
+            this.a = a;
+            this.b = b;
+            pushLeftPath(root);
+            advance();
+        }
+
+        /** Pushes node and its chain of left descendants, stopping at subtrees ending before a */
+        private void pushLeftPath(Interval node) {
+            while (node != null && node.maxHigh >= a) {
+                if (top + 1 == stack.length)
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                stack[++top] = node;
+                node = node.left;
+            }
+        }
+
+        /** Finds the next overlapping interval, or sets next to null if there is none */
+        private void advance() {
+            next = null;
+            while (top >= 0) {
+                Interval node = stack[top--];
+                if (node.low > b) { // every later interval starts after b as well
+                    top = -1;
+                    return;
+                }
+                pushLeftPath(node.right);
+                if (node.high >= a) {
+                    next = node;
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Interval next() {
+            if (next == null)
+                throw new NoSuchElementException();
+            Interval result = next;
+            advance();
+            return result;
+        }
+    }
+}
@@ -0,0 +1,320 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ *
+ * WAVLQueryService
+ *
+ * An embeddable executor of queries over a WAVLTree shared by many concurrent callers.
+ * Instead of locking the tree, callers submit search, range and select requests, and updates,
+ * and receive CompletableFutures. No caller ever blocks on the tree, so the number of callers
+ * is not bounded by the number of threads that may wait on a lock.<br>
+ *
+ * Requests are queued, and a single dispatcher task, run on the provided executor, drains the
+ * queue in batches of up to maxBatch requests. The tree is only accessed by the dispatcher.
+ * Within a batch, the reads between two updates are sorted by key and answered in a single
+ * walk: each lookup climbs from the node where the previous one ended only as far as needed
+ * and descends from there, as in WAVLTree's finger search, so nearby keys share most of their
+ * descent. Updates are applied in the order they were submitted, and each read sees every
+ * update submitted before it.<br>
+ *
+ * Futures are completed on the dispatcher, so dependent actions should use the async variants
+ * of CompletableFuture's methods if they are not short. The tree must not be accessed other
+ * than through the service while it is in use.
+ *
+ */
+public class WAVLQueryService {
+    private static final int SEARCH = 0;
+    private static final int RANGE = 1;
+    private static final int SELECT = 2;
+    private static final int UPDATE = 3;
+
+    private final WAVLTree tree;
+    private final Executor executor;
+    private final int maxBatch;
+    private final ConcurrentLinkedQueue<Request> queue = new ConcurrentLinkedQueue<>();
+    /** Whether a dispatcher task is scheduled or running */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong requestCount = new AtomicLong();
+
+    /** Node where the last lookup of the current walk ended, only used by the dispatcher */
+    private WAVLTree.WAVLNode cursor;
+
+    /**
+     * A queued request: its kind, its arguments and the future of its result.
+     */
+    private static final class Request {
+        private final int kind;
+        private final int a;
+        private final int b;
+        private final Consumer<WAVLTree> update;
+        private final CompletableFuture<Object> future = new CompletableFuture<>();
+
+        private Request(int kind, int a, int b, Consumer<WAVLTree> update) {
+            this.kind = kind;
+            this.a = a;
+            this.b = b;
+            this.update = update;
+        }
+    }
+
+    /**
+     * Creates a service over the provided tree, which runs its dispatcher on executor.
+     *
+     * @param tree          the tree queried, which is owned by the service from now on
+     * @param executor      the executor running the dispatcher, such as a thread pool
+     * @param maxBatch      the maximal number of requests handled by one dispatcher run,
+     *                      at least 1
+     */
+    public WAVLQueryService(WAVLTree tree, Executor executor, int maxBatch) {
+        if (maxBatch < 1)
+            throw new IllegalArgumentException("batch size must be positive: " + maxBatch);
+        this.tree = tree;
+        this.executor = executor;
+        this.maxBatch = maxBatch;
+    }
+
+    /**
+     * Requests the value of key k, as WAVLTree.search, without counting a use of the entry.
+     *
+     * @param k     the key being searched
+     * @return      a future of the value associated with k, or of null if k is not in the tree
+     */
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<String> search(int k) {
+        return (CompletableFuture<String>) (CompletableFuture<?>) submit(new Request(SEARCH, k, 0, null));
+    }
+
+    /**
+     * Requests the keys between lo and hi, inclusive.
+     *
+     * @param lo    the smallest key in the range
+     * @param hi    the largest key in the range
+     * @return      a future of the keys in the range, in ascending order
+     */
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<int[]> range(int lo, int hi) {
+        return (CompletableFuture<int[]>) (CompletableFuture<?>) submit(new Request(RANGE, lo, hi, null));
+    }
+
+    /**
+     * Requests the value of the i'th smallest key, as WAVLTree.select. The answer is found
+     * by a descent guided by the subtree sizes, in O(logn) time.
+     *
+     * @param i     the position of the key in the sorted order, starting at 1
+     * @return      a future of the value associated with the i'th smallest key, or of null if
+     *              i is not between 1 and the size of the tree
+     */
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<String> select(int i) {
+        return (CompletableFuture<String>) (CompletableFuture<?>) submit(new Request(SELECT, i, 0, null));
+    }
+
+    /**
+     * Requests an update of the tree, such as insertions or deletions, which is run by the
+     * dispatcher after all previously submitted requests and before all later ones. The
+     * future fails with the exception thrown by the update, if any.
+     *
+     * @param update    the action applied to the tree
+     * @return          a future completed when the update has been applied
+     */
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<Void> update(Consumer<WAVLTree> update) {
+        return (CompletableFuture<Void>) (CompletableFuture<?>) submit(new Request(UPDATE, 0, 0, update));
+    }
+
+    /**
+     * Returns the number of dispatcher runs so far. Together with getRequestCount, it tells
+     * how many requests were coalesced into each batch on average.
+     *
+     * @return      the number of batches handled
+     */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    /**
+     * Returns the number of requests handled so far.
+     *
+     * @return      the number of requests handled
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    private CompletableFuture<Object> submit(Request request) {
+        queue.add(request);
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::dispatch);
+            } catch (RuntimeException e) { // the request stays queued for the next dispatcher
+                scheduled.set(false);
+                throw e;
+            }
+        }
+        return request.future;
+    }
+
+    /**
+     * Handles one batch of requests. If more requests are queued afterwards, another run is
+     * scheduled on the executor rather than looping, so that the dispatcher does not hold a
+     * thread of the executor indefinitely. Otherwise the dispatcher is released, and checks
+     * again for requests queued in the meantime, whose submitters saw it still scheduled.
+     */
+    private void dispatch() {
+        List<Request> batch = new ArrayList<>();
+        for (Request r; batch.size() < maxBatch && (r = queue.poll()) != null; ) {
+            batch.add(r);
+        }
+        handle(batch);
+        batchCount.incrementAndGet();
+        requestCount.addAndGet(batch.size());
+
+        if (queue.isEmpty()) {
+            scheduled.set(false);
+            if (queue.isEmpty() || !scheduled.compareAndSet(false, true))
+                return;
+        }
+        executor.execute(this::dispatch);
+    }
+
+    /**
+     * Answers the reads of a batch in sorted order between its updates, which are applied in
+     * order.
+     */
+    private void handle(List<Request> batch) {
+        int start = 0;
+        for (int j = 0; j <= batch.size(); j++) {
+            if (j < batch.size() && batch.get(j).kind != UPDATE)
+                continue;
+            handleReads(new ArrayList<>(batch.subList(start, j)));
+            if (j < batch.size()) {
+                Request r = batch.get(j);
+                try {
+                    r.update.accept(tree);
+                    r.future.complete(null);
+                } catch (RuntimeException e) {
+                    r.future.completeExceptionally(e);
+                }
+            }
+            start = j + 1;
+        }
+    }
+
+    private void handleReads(List<Request> reads) {
+        if (reads.isEmpty())
+            return;
+        /* Selects are ordered after the searches and ranges, which are ordered by key */
+        Collections.sort(reads, (x, y) -> x.kind == SELECT || y.kind == SELECT
+                ? (x.kind != y.kind ? Integer.compare(x.kind, y.kind) : Integer.compare(x.a, y.a))
+                : Integer.compare(x.a, y.a));
+
+        cursor = null; // nodes may have been removed or recycled by the last update
+        for (Request r : reads) {
+            try {
+                r.future.complete(answer(r));
+            } catch (RuntimeException e) {
+                r.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private Object answer(Request r) {
+        switch (r.kind) {
+            case SEARCH: {
+                WAVLTree.WAVLNode node = ceiling(r.a);
+                return node != null && node.getKey() == r.a ? node.getValue() : null;
+            }
+            case RANGE: {
+                int[] keys = new int[16];
+                int count = 0;
+                for (WAVLTree.WAVLNode node = ceiling(r.a); node != null && node.getKey() <= r.b;
+                     node = successor(node)) {
+                    if (node.isDeleted())
+                        continue;
+                    if (count == keys.length)
+                        keys = Arrays.copyOf(keys, count * 2);
+                    keys[count++] = node.getKey();
+                }
+                return Arrays.copyOf(keys, count);
+            }
+            default:
+                return tree.select(r.a);
+        }
+    }
+
+    /**
+     * Returns the live node with the smallest key greater than or equal to k, or null if
+     * there is none, and leaves the cursor at the node where the descent ended.<br>
+     *
+     * The search climbs from the cursor to the lowest ancestor whose subtree must contain k
+     * if it is in the tree, as WAVLTree's finger search does, and descends from it. If no key
+     * of that subtree is greater than or equal to k, the ceiling is the ancestor bounding it
+     * from above. For a sorted sequence of keys, this costs O(logd) per key in the typical
+     * case, where d is the distance from the previous key.
+     */
+    private WAVLTree.WAVLNode ceiling(int k) {
+        WAVLTree.WAVLNode x = cursor == null ? tree.getRoot() : cursor;
+        if (x == null)
+            return null;
+        while (x.getParent() != null && k != x.getKey()) {
+            WAVLTree.WAVLNode p = x.getParent();
+            if (k > x.getKey() ? (x == p.getLeft() && k < p.getKey()) : (x == p.getRight() && k > p.getKey()))
+                break;
+            x = p;
+        }
+
+        WAVLTree.WAVLNode top = x;
+        WAVLTree.WAVLNode best = null;
+        while (x != null) {
+            cursor = x;
+            if (x.getKey() == k) {
+                best = x;
+                break;
+            }
+            if (x.getKey() > k) {
+                best = x;
+                x = x.getLeft();
+            } else {
+                x = x.getRight();
+            }
+        }
+
+        if (best == null) { // every key in top's subtree is smaller than k
+            while (top.getParent() != null && top == top.getParent().getRight()) {
+                top = top.getParent();
+            }
+            best = top.getParent();
+        }
+        while (best != null && best.isDeleted()) {
+            best = successor(best);
+        }
+        return best;
+    }
+
+    /**
+     * Returns the node following the provided node in an in-order walk, or null.
+     */
+    private static WAVLTree.WAVLNode successor(WAVLTree.WAVLNode node) {
+        if (node.getRight() != null) {
+            node = node.getRight();
+            while (node.getLeft() != null) {
+                node = node.getLeft();
+            }
+            return node;
+        }
+        while (node.getParent() != null && node == node.getParent().getRight()) {
+            node = node.getParent();
+        }
+        return node.getParent();
+    }
+}
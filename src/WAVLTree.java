@@ -1,4 +1,7 @@
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiFunction;
 
 /**
  *
@@ -6,137 +9,1392 @@ import java.util.*;
  *
  * An implementation of a WAVL Tree (Haupler, Sen and Tarajan '15).
  * In this implementation, the tree structure is doubly linked, and it does not contain
- * a representation of the "External leaf" object, whose rank is -1.
+ * a representation of the "External leaf" object, whose rank is -1.<br>
+ *
+ * The rotations and the rebalancing under each rank policy are those of AbstractWAVLTree,
+ * shared with the other variants. Tombstones, multiset counts and the augmentation reach
+ * them through the weight and update hooks, which keep the subtree sizes and aggregates up
+ * to date in every structural change.
  *
  */
 
-public class WAVLTree implements Iterable {
-    private WAVLNode root;
+public class WAVLTree extends AbstractWAVLTree<WAVLTree.WAVLNode> implements Iterable {
+    /** Free list of detached nodes, linked through their right field, and its bounds */
+    private WAVLNode freeNodes;
+    private int freeCount;
+    private final int nodePoolCapacity;
+
+    /** Finger search: whether it is enabled, and the node most recently accessed */
+    private boolean fingerSearch;
+    private WAVLNode finger;
+    /** Node of the entry added, revived or counted again by the last insertion */
+    private WAVLNode lastInserted;
+
+    /** Direct-mapped cache of recent search hits, or null if disabled */
+    private int[] cachedKeys;
+    private WAVLNode[] cachedNodes;
+
+    /** Monoid aggregated over every subtree, or null if the tree is not augmented */
+    private Augmentation<Object> augmentation;
+
+    /** Lazy deletion: whether it is enabled, and the ratio of tombstones which triggers a rebuild */
+    private boolean lazyDelete;
+    private double rebuildRatio;
+    /** Number of tombstones, and a stack of the keys of tombstones awaiting compaction */
+    private int tombstones;
+    private int[] pendingKeys = new int[16];
+    private int pendingCount;
+
+    /** Deadlines of the entries which expire, or null if no entry has had one */
+    private ExpiryQueue expiries;
+
+    /** Bounded cache: the capacity, or 0 if the tree is unbounded, and the eviction policy */
+    private int capacity;
+    private EvictionPolicy evictionPolicy;
+    /** Use lists of the live entries, ordered by their number of uses, from the least used */
+    private UseList leastUsed;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    /** Whether a key may be inserted more than once, each node counting its occurrences */
+    private boolean multiset;
+
+    /** Whether insertions rebalance on the way down instead of after attaching the leaf */
+    private boolean topDownInsert;
+    /** Whether deletions by key rebalance on the way down instead of after removing the node */
+    private boolean topDownDelete;
+
+    /** Log the changes of the contents are appended to, or null */
+    private WAVLChangeLog changeLog;
+
+    /**
+     * The order in which a tree bounded by a capacity evicts its entries.
+     */
+    public enum EvictionPolicy {
+        /** Evicts the least recently used entry */
+        LRU,
+        /** Evicts the least frequently used entry, and among those the least recently used */
+        LFU
+    }
+
+    /**
+     * A monoid whose values are maintained for every subtree of the tree, alongside the
+     * subtree sizes, so that it can be aggregated over any range of keys in O(logn) time.
+     * Examples are sums or extrema of a numeric payload, or counts per category.<br>
+     *
+     * combine must be associative, and identity must be its neutral element. combine need not
+     * be commutative: its arguments are always in the order of their keys.
+     *
+     * @param <A>   the type of the aggregated values
+     */
+    public interface Augmentation<A> {
+        /** @return     the aggregate of an empty set of entries */
+        A identity();
+
+        /**
+         * @param key       the key of an entry
+         * @param value     the value of the entry
+         * @return          the aggregate of the single entry
+         */
+        A lift(int key, String value);
+
+        /**
+         * @param left      the aggregate of some entries
+         * @param right     the aggregate of entries whose keys follow those of left
+         * @return          the aggregate of both sets of entries
+         */
+        A combine(A left, A right);
+    }
+
+    /**
+     * Creates an empty tree which does not recycle deleted nodes.
+     */
+    public WAVLTree() {
+        this(0);
+    }
+
+    /**
+     * Creates an empty tree which keeps up to nodePoolCapacity deleted node objects on a free
+     * list and reuses them for subsequent insertions, instead of allocating new ones.<br>
+     *
+     * In workloads where insertions and deletions are paired, such as sliding windows, the
+     * steady state then does not allocate any node objects.
+     *
+     * @param nodePoolCapacity      the maximal number of deleted nodes kept for reuse
+     */
+    public WAVLTree(int nodePoolCapacity) {
+        this.nodePoolCapacity = nodePoolCapacity;
+    }
+
+    /**
+     * Enables or disables finger search. When enabled, the tree remembers the node most
+     * recently accessed by search, insert or delete, and the next search or insertion starts
+     * from it instead of from the root: it climbs from the finger only until it reaches a
+     * node whose subtree must contain the key, and then descends. A lookup of a key at
+     * distance d from the previous one in the sorted order then costs O(logd) instead of
+     * O(logn) in the typical case, which suits workloads with strong locality.
+     *
+     * @param enabled       true to enable finger search, false to search from the root
+     */
+    public void setFingerSearch(boolean enabled) {
+        this.fingerSearch = enabled;
+        this.finger = null;
+    }
+
+    /**
+     * Enables or disables lazy deletion. When enabled, delete only marks the node of the key
+     * as a tombstone and updates the subtree sizes on its path, in O(logn) time and without
+     * any restructuring, so that deletion bursts do not pay for rebalancing on the caller's
+     * thread. Tombstones are invisible to every query, and inserting a key of a tombstone
+     * revives its node.<br>
+     *
+     * Tombstones are physically removed in batches by compactTombstones, which may be called
+     * whenever the caller has spare time. If the tombstones nevertheless exceed rebuildRatio
+     * of all nodes, the next lazy deletion rebuilds the tree from its live nodes in O(n) time.
+     * Disabling lazy deletion removes all tombstones.
+     *
+     * @param enabled           true to delete lazily, false to delete immediately
+     * @param rebuildRatio      the fraction of tombstones among all nodes, between 0 and 1,
+     *                          above which the tree is rebuilt
+     * @throws IllegalArgumentException     if rebuildRatio is not between 0 and 1
+     */
+    public void setLazyDelete(boolean enabled, double rebuildRatio) {
+        if (!(rebuildRatio >= 0 && rebuildRatio <= 1))
+            throw new IllegalArgumentException("rebuild ratio must be between 0 and 1: " + rebuildRatio);
+        this.lazyDelete = enabled;
+        this.rebuildRatio = rebuildRatio;
+        if (!enabled && pendingCount > 0)
+            rebuild();
+    }
+
+    /**
+     * Returns the number of tombstones in the tree, which are not counted by size.
+     *
+     * @return      the number of nodes deleted lazily and not yet removed
+     */
+    public int getTombstoneCount() {
+        return tombstones;
+    }
+
+    /**
+     * Sets the rank rule the tree maintains, see RankPolicy. The policy can only be changed
+     * while the tree is empty.
+     *
+     * @param policy    the rank policy
+     * @throws IllegalStateException    if the tree has nodes, or top-down insertion or deletion
+     *                                  is enabled with a policy other than WAVL
+     */
+    @Override
+    public void setRankPolicy(RankPolicy policy) {
+        if ((topDownInsert || topDownDelete) && policy != RankPolicy.WAVL)
+            throw new IllegalStateException("top-down rebalancing requires the WAVL rank policy");
+        super.setRankPolicy(policy);
+    }
+
+    /**
+     * Enables or disables top-down insertion. When enabled, insert and insertHandle fix the
+     * rank rules on the way down from the root, in a single pass, instead of attaching the new
+     * leaf first and rebalancing up the path afterwards: every node from which a promotion
+     * could propagate upwards is promoted, or rotated, before the descent passes it. Once the
+     * leaf is attached, rebalancing never goes above the last node changed, so an insertion
+     * only ever needs to hold the nodes near the bottom of its path, as hand-over-hand
+     * locking requires.<br>
+     *
+     * The resulting tree is a valid WAVL tree, though not necessarily the same one bottom-up
+     * insertion produces. The descent also finds an existing key, so a rejected insertion may
+     * leave the promotions and rotations made above the key. The put family of methods
+     * rebalances bottom-up in either mode, and deletions do unless setTopDownDelete is
+     * enabled. Top-down insertion creates (2,2) nodes, so it is only available under the WAVL
+     * rank policy.
+     *
+     * @param enabled       true to rebalance insertions top-down, false to rebalance bottom-up
+     * @throws IllegalStateException    if enabled under a rank policy other than WAVL
+     */
+    public void setTopDownInsert(boolean enabled) {
+        if (enabled && rankPolicy != RankPolicy.WAVL)
+            throw new IllegalStateException("top-down insertion requires the WAVL rank policy");
+        this.topDownInsert = enabled;
+    }
+
+    /**
+     * Enables or disables top-down deletion. When enabled, delete fixes the rank rules on the
+     * way down from the root, in a single pass, instead of removing the node first and
+     * rebalancing up the path afterwards: every node the descent enters is made safe, so
+     * that losing a rank would only change its parent's rank difference, or rotate at its
+     * parent once, by demoting the node above it, and its sibling, before the descent
+     * passes. Once the node is removed, rebalancing never goes above its parent and
+     * grandparent.<br>
+     *
+     * The resulting tree is a valid WAVL tree, though not necessarily the same one bottom-up
+     * deletion produces, and a deletion of a missing key may leave the demotions and
+     * rotations made on its path. Top-down deletion applies to delete while lazy deletion is
+     * disabled. deleteAll, deleteByHandle and evictions rebalance bottom-up in either mode.
+     * Top-down deletion relies on (2,2) nodes, so it is only available under the WAVL rank
+     * policy.
+     *
+     * @param enabled       true to rebalance deletions top-down, false to rebalance bottom-up
+     * @throws IllegalStateException    if enabled under a rank policy other than WAVL
+     */
+    public void setTopDownDelete(boolean enabled) {
+        if (enabled && rankPolicy != RankPolicy.WAVL)
+            throw new IllegalStateException("top-down deletion requires the WAVL rank policy");
+        this.topDownDelete = enabled;
+    }
+
+    /**
+     * Enables or disables multiset mode. In a multiset, inserting a key that is already in
+     * the tree increments the occurrence count of its node, keeping the value it was first
+     * inserted with, and deleting it decrements the count, so duplicates take no extra nodes
+     * and cost O(logn) time with no structural change. The subtree sizes, and with them size,
+     * select, rank, the iterator and the aggregates, count every occurrence.<br>
+     *
+     * The mode can only be changed while the tree is empty, and a multiset cannot be bounded
+     * by a capacity.
+     *
+     * @param enabled       true to count duplicate keys, false to reject them
+     * @throws IllegalStateException    if the tree has nodes, or is bounded by a capacity
+     */
+    public void setMultiset(boolean enabled) {
+        if (root != null || capacity > 0)
+            throw new IllegalStateException("multiset mode can only be set on an empty, unbounded tree");
+        if (enabled != multiset) {
+            /* The recycled nodes are of the other mode's class */
+            freeNodes = null;
+            freeCount = 0;
+        }
+        this.multiset = enabled;
+    }
+
+    /**
+     * Sets the change log every change of the tree's contents is appended to from now on, as
+     * described in WAVLChangeLog, or stops logging if log is null. Rebalancing, rebuilds and
+     * the compaction of tombstones change no contents, and are not logged.<br>
+     *
+     * A replica must start from the contents of the tree at the time the log is set, such as
+     * an empty tree, and apply the records from the log's current nextSequence.
+     *
+     * @param log       the change log, or null
+     */
+    public void setChangeLog(WAVLChangeLog log) {
+        this.changeLog = log;
+    }
+
+    /**
+     * Appends a record to the change log, if there is one.
+     */
+    private void logChange(byte type, int k, String i) {
+        if (changeLog != null)
+            changeLog.append(type, k, i);
+    }
+
+    /**
+     * Bounds the number of entries in the tree, which then acts as an ordered cache: an
+     * insertion beyond the capacity evicts an entry chosen by the eviction policy. Searches
+     * and insertions count as uses of an entry, and searches are counted as hits or misses.
+     * The order of use is kept in intrusive lists, one per number of uses under LFU, whose
+     * links are the states of the nodes, so an eviction takes O(1) time besides the deletion
+     * of the entry. The links are only allocated while the tree is bounded.<br>
+     *
+     * Setting a capacity forgets the previous order of use: all current entries are considered
+     * used once, in the order of their keys, and the tree is trimmed to the capacity. This
+     * function runs in O(n) time.
+     *
+     * @param capacity      the maximal number of entries, or 0 to remove the bound
+     * @param policy        the eviction policy, ignored if capacity is 0
+     * @throws IllegalArgumentException     if capacity is negative, or policy is null while
+     *                                      capacity is positive
+     * @throws IllegalStateException        if the tree is a multiset
+     */
+    public void setCapacity(int capacity, EvictionPolicy policy) {
+        if (capacity < 0 || (capacity > 0 && policy == null))
+            throw new IllegalArgumentException("invalid capacity " + capacity + " with policy " + policy);
+        if (multiset && capacity > 0)
+            throw new IllegalStateException("a multiset cannot be bounded by a capacity");
+
+        for (WAVLIterator iter = new WAVLIterator(); iter.hasNext(); ) {
+            WAVLNode node = iter.next();
+            if (!(node.state instanceof UseLink))
+                continue;
+            if (capacity > 0)
+                ((UseLink) node.state).clearLinks();
+            else
+                node.state = node.state.isClear() ? null : new NodeState(node.state);
+        }
+        leastUsed = null;
+        this.capacity = capacity;
+        this.evictionPolicy = policy;
+        if (capacity == 0)
+            return;
+
+        UseList list = new UseList(1);
+        for (WAVLIterator iter = new WAVLIterator(); iter.hasNext(); ) {
+            list.append(iter.next());
+        }
+        leastUsed = list;
+        while (size() > capacity) {
+            evict(null);
+        }
+    }
+
+    /**
+     * Returns the number of searches which found their key since the tree was created.
+     * Only searches made while the tree is bounded by a capacity are counted.
+     *
+     * @return      the number of cache hits
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of searches which did not find their key, counted as getHitCount.
+     *
+     * @return      the number of cache misses
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns the number of entries evicted to keep the tree within its capacity.
+     *
+     * @return      the number of evictions
+     */
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Links a new or revived entry into the use lists as used once, if the tree is bounded,
+     * and evicts an entry other than it if the tree exceeds its capacity.
+     *
+     * @param node      the node of the entry inserted
+     * @return          the number of rebalancing operations performed by the eviction
+     */
+    private int admit(WAVLNode node) {
+        if (capacity == 0)
+            return 0;
+        if (leastUsed == null || leastUsed.uses != 1) {
+            UseList list = new UseList(1);
+            list.next = leastUsed;
+            if (leastUsed != null)
+                leastUsed.prev = list;
+            leastUsed = list;
+        }
+        leastUsed.append(node);
+        return size() > capacity ? evict(node) : 0;
+    }
+
+    /**
+     * Records a use of a live entry: under LRU it becomes the most recently used entry, and
+     * under LFU it moves to the list of entries used once more, as the most recent there.
+     * This function runs in O(1) time.
+     */
+    private void touch(WAVLNode node) {
+        UseList list = ((UseLink) node.state).list;
+        UseList target = list;
+        if (evictionPolicy == EvictionPolicy.LFU) {
+            target = list.next;
+            if (target == null || target.uses != list.uses + 1) {
+                target = new UseList(list.uses + 1);
+                target.prev = list;
+                target.next = list.next;
+                if (list.next != null)
+                    list.next.prev = target;
+                list.next = target;
+            }
+        } else if (list.newest == node) {
+            return;
+        }
+        list.remove(node);
+        target.append(node);
+        dropIfEmpty(list);
+    }
+
+    /**
+     * Removes an entry from the use lists, if it is in one. This function runs in O(1) time.
+     */
+    private void forgetUses(WAVLNode node) {
+        UseList list = node.state instanceof UseLink ? ((UseLink) node.state).list : null;
+        if (list != null) {
+            list.remove(node);
+            dropIfEmpty(list);
+        }
+    }
+
+    private void dropIfEmpty(UseList list) {
+        if (list.oldest != null)
+            return;
+        if (list.prev != null)
+            list.prev.next = list.next;
+        else
+            leastUsed = list.next;
+        if (list.next != null)
+            list.next.prev = list.prev;
+    }
+
+    /**
+     * Deletes the entry chosen by the eviction policy, which is the oldest entry of the least
+     * used list, skipping the entry being admitted.
+     *
+     * @param admitted      the node of the entry being inserted, or null
+     * @return              the number of rebalancing operations performed
+     */
+    private int evict(WAVLNode admitted) {
+        WAVLNode victim = leastUsed.oldest;
+        if (victim == admitted)
+            victim = victim == leastUsed.newest ? leastUsed.next.oldest : ((UseLink) victim.state).newer;
+        evictionCount++;
+        return removeEntry(victim);
+    }
+
+    /**
+     * A list of the live entries with the same number of uses, from the least recently used,
+     * linked through the use links of their nodes. Under LRU there is a single list, and
+     * under LFU the lists form a chain in increasing order of uses.
+     */
+    private final class UseList {
+        private final int uses;
+        private WAVLNode oldest;
+        private WAVLNode newest;
+        private UseList prev;
+        private UseList next;
+
+        private UseList(int uses) {
+            this.uses = uses;
+        }
+
+        /**
+         * Links a node which is not in any list as the most recent one in this list, giving
+         * it use links if its state does not have them yet
+         */
+        private void append(WAVLNode node) {
+            if (!(node.state instanceof UseLink))
+                node.state = new UseLink(node.state);
+            UseLink link = (UseLink) node.state;
+            link.list = this;
+            link.older = newest;
+            link.newer = null;
+            if (newest != null)
+                ((UseLink) newest.state).newer = node;
+            else
+                oldest = node;
+            newest = node;
+        }
+
+        /** Unlinks a node of this list */
+        private void remove(WAVLNode node) {
+            UseLink link = (UseLink) node.state;
+            if (link.older != null)
+                ((UseLink) link.older.state).newer = link.newer;
+            else
+                oldest = link.newer;
+            if (link.newer != null)
+                ((UseLink) link.newer.state).older = link.older;
+            else
+                newest = link.older;
+            link.clearLinks();
+        }
+    }
+
+    /**
+     * Inserts key k with value i to the tree as insert does, and schedules the new entry to
+     * expire at the provided deadline. The deadline is in the caller's clock units, such as
+     * milliseconds, and expired entries are only removed by expire.<br>
+     *
+     * This method runs in O(logn) time.
+     *
+     * @param k             the key of the new node added to the tree
+     * @param i             the info of the new node added to the tree
+     * @param deadline      the time from which the entry is expired
+     * @return              the number of rebalancing operations performed, or -1 if a node
+     *                      with key k already exists in the tree, in which case its deadline
+     *                      is not changed. In a multiset, the deadline of a duplicate is not
+     *                      changed either, and it expires with all occurrences of its key.
+     */
+    public int insert(int k, String i, long deadline) {
+        int result = insertEntry(k, i);
+        if (result == -1)
+            return -1;
+        WAVLNode node = lastInserted;
+        if (node.getCount() > 1)
+            return result;
+        schedule(node, deadline);
+        return result + admit(node);
+    }
+
+    /**
+     * Sets the deadline of key k, replacing its previous deadline if it had one. This method
+     * runs in O(logn) time.
+     *
+     * @param k             a key in the tree
+     * @param deadline      the time from which the entry is expired
+     * @return              true if k was found
+     */
+    public boolean setExpiry(int k, long deadline) {
+        WAVLNode node = findNode(k, root);
+        if (node == null || node.isDeleted())
+            return false;
+        schedule(node, deadline);
+        return true;
+    }
+
+    /**
+     * Returns the earliest deadline of an entry in the tree, or Long.MAX_VALUE if no entry
+     * has a deadline. This method runs in O(logn) time.
+     *
+     * @return      the next time at which expire has work to do
+     */
+    public long nextExpiry() {
+        Deadline first = expiries == null ? null : expiries.first();
+        return first == null ? Long.MAX_VALUE : first.deadline;
+    }
+
+    /**
+     * Removes up to maxBatch entries whose deadline is at most now, earliest deadline first,
+     * as delete would: physically, or as tombstones if lazy deletion is enabled.<br>
+     *
+     * The expired entries are taken from the front of the expiration index, so this method
+     * runs in O(logn) time per entry removed, regardless of the number of entries that have
+     * not expired. Calling it regularly with a small batch bounds the time spent per call.
+     *
+     * @param now           the current time, in the units of the deadlines
+     * @param maxBatch      the maximal number of entries removed
+     * @return              the number of entries removed
+     */
+    public int expire(long now, int maxBatch) {
+        int removed = 0;
+        while (removed < maxBatch && expiries != null) {
+            Deadline first = expiries.first();
+            if (first == null || first.deadline > now)
+                break;
+            WAVLNode node = first.entry;
+            unschedule(node);
+            removeEntry(node);
+            removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * Sets the deadline of an entry in the expiration index, replacing its previous one.
+     */
+    private void schedule(WAVLNode node, long deadline) {
+        unschedule(node);
+        if (expiries == null)
+            expiries = new ExpiryQueue();
+        expiries.add(new Deadline(deadline, node));
+    }
+
+    /**
+     * Removes the deadline of an entry from the expiration index, if it has one.
+     */
+    private void unschedule(WAVLNode node) {
+        if (expiries != null)
+            expiries.cancel(node);
+    }
+
+    /**
+     * The deadline of an entry, as a node of the expiration index. It points to the node
+     * holding the entry, which keeps its entry until it is deleted.
+     */
+    private static final class Deadline extends AbstractWAVLTree.Node<Deadline> {
+        private final long deadline;
+        private final WAVLNode entry;
+
+        private Deadline(long deadline, WAVLNode entry) {
+            this.deadline = deadline;
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * The expiration index: the deadlines of the entries, ordered by deadline and then by
+     * key, in a WAVL tree of their own built on AbstractWAVLTree. The earliest deadline is
+     * its first node, and a deadline is added or removed in O(logn) time. The deadline of an
+     * entry is found from its node through a map kept by the index, so the nodes of the
+     * main tree do not hold a deadline field of their own.
+     */
+    private static final class ExpiryQueue extends AbstractWAVLTree<Deadline> {
+        /** The deadline of every scheduled entry, by the entry's node */
+        private final Map<WAVLNode, Deadline> deadlines = new IdentityHashMap<>();
+
+        private static int compare(Deadline a, Deadline b) {
+            if (a.deadline != b.deadline)
+                return a.deadline < b.deadline ? -1 : 1;
+            return Integer.compare(a.entry.key, b.entry.key);
+        }
+
+        private void add(Deadline d) {
+            deadlines.put(d.entry, d);
+            if (root == null) {
+                insertRoot(d);
+                return;
+            }
+            Deadline node = root;
+            while (true) {
+                boolean left = compare(d, node) < 0;
+                Deadline next = left ? node.left : node.right;
+                if (next == null) {
+                    insertChild(node, d, left);
+                    return;
+                }
+                node = next;
+            }
+        }
+
+        private Deadline first() {
+            return firstNode();
+        }
+
+        /** Removes the deadline of an entry, if it has one */
+        private void cancel(WAVLNode entry) {
+            Deadline d = deadlines.remove(entry);
+            if (d != null)
+                remove(d);
+        }
+    }
+
+    /**
+     * Sets the augmentation maintained for every subtree of the tree, replacing the previous
+     * one, and computes it for all current nodes. Afterwards, aggregate answers range queries
+     * in O(logn) time, and every insertion, deletion and rotation keeps the aggregates up to
+     * date along with the subtree sizes.<br>
+     *
+     * This function runs in O(n) time.
+     *
+     * @param augmentation      the monoid to maintain, or null to remove the augmentation
+     * @param <A>               the type of the aggregated values
+     */
+    @SuppressWarnings("unchecked")
+    public <A> void setAugmentation(Augmentation<A> augmentation) {
+        this.augmentation = (Augmentation<Object>) augmentation;
+        recomputeAggregates(root);
+    }
+
+    /**
+     * Recomputes the aggregates of all nodes in a subtree in post-order. The recursion depth
+     * is bounded by the height of the tree.
+     */
+    private void recomputeAggregates(WAVLNode node) {
+        if (node == null)
+            return;
+        recomputeAggregates(node.left);
+        recomputeAggregates(node.right);
+        if (augmentation != null)
+            stateOf(node).aggregate = aggregateOf(node);
+        else if (node.state != null)
+            node.state.aggregate = null;
+    }
+
+    /**
+     * Returns the state of a node's optional modes, allocating it the first time one of them
+     * needs it. This function runs in O(1) time.
+     */
+    private static NodeState stateOf(WAVLNode node) {
+        if (node.state == null)
+            node.state = new NodeState();
+        return node.state;
+    }
+
+    /**
+     * Returns the weight of a node in the subtree sizes, which is the number of occurrences of
+     * its key, or 0 for a tombstone.
+     */
+    @Override
+    protected int weight(WAVLNode node) {
+        return node.ownSize();
+    }
+
+    /**
+     * Recomputes the subtree size of a node, along with its aggregate if the tree is
+     * augmented, so that every structural change of the core keeps both up to date.
+     */
+    @Override
+    protected void update(WAVLNode node) {
+        super.update(node);
+        if (augmentation != null)
+            stateOf(node).aggregate = aggregateOf(node);
+    }
+
+    /**
+     * Computes the aggregate of a node's subtree from its own entry and its children's
+     * aggregates. This function runs in O(1) time.
+     */
+    private Object aggregateOf(WAVLNode node) {
+        Object result = liftOf(node);
+        if (node.left != null)
+            result = augmentation.combine(node.left.state.aggregate, result);
+        if (node.right != null)
+            result = augmentation.combine(result, node.right.state.aggregate);
+        return result;
+    }
+
+    /**
+     * Returns the aggregate of a node's own entry, which is the identity for a tombstone. An
+     * entry occurring several times in a multiset is combined with itself once per occurrence,
+     * by repeated doubling in O(log(count)) time.
+     */
+    private Object liftOf(WAVLNode node) {
+        if (node.isDeleted())
+            return augmentation.identity();
+        Object single = augmentation.lift(node.key, node.value);
+        if (node.getCount() == 1)
+            return single;
+        Object result = augmentation.identity();
+        for (int c = node.getCount(); c > 0; c >>>= 1) {
+            if ((c & 1) != 0)
+                result = augmentation.combine(result, single);
+            single = augmentation.combine(single, single);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the aggregate of the entries whose keys are between lo and hi, inclusive, under
+     * the augmentation set on the tree.<br>
+     *
+     * The search descends from the root to the highest node within the range. Below it, the
+     * path to the lower bound contributes each node within the range together with its whole
+     * right subtree, and the path to the upper bound contributes each node within the range
+     * together with its whole left subtree, so only O(h) aggregates are combined.<br>
+     *
+     * This function runs in O(h) = O(logn) time.
+     *
+     * @param lo    the smallest key in the range
+     * @param hi    the largest key in the range
+     * @param <A>   the type of the aggregated values
+     * @return      the aggregate of the entries in the range, or the identity if it is empty
+     * @throws IllegalStateException    if no augmentation is set
+     */
+    @SuppressWarnings("unchecked")
+    public <A> A aggregate(int lo, int hi) {
+        if (augmentation == null)
+            throw new IllegalStateException("tree is not augmented");
+
+        WAVLNode split = root;
+        while (split != null && (split.key < lo || split.key > hi)) {
+            split = split.key < lo ? split.right : split.left;
+        }
+        if (split == null)
+            return (A) augmentation.identity();
+
+        Object leftPart = augmentation.identity();
+        for (WAVLNode x = split.left; x != null; ) {
+            if (x.key >= lo) {
+                Object part = liftOf(x);
+                if (x.right != null)
+                    part = augmentation.combine(part, x.right.state.aggregate);
+                leftPart = augmentation.combine(part, leftPart);
+                x = x.left;
+            } else {
+                x = x.right;
+            }
+        }
+
+        Object rightPart = augmentation.identity();
+        for (WAVLNode x = split.right; x != null; ) {
+            if (x.key <= hi) {
+                Object part = liftOf(x);
+                if (x.left != null)
+                    part = augmentation.combine(x.left.state.aggregate, part);
+                rightPart = augmentation.combine(rightPart, part);
+                x = x.right;
+            } else {
+                x = x.left;
+            }
+        }
+
+        Object middle = liftOf(split);
+        return (A) augmentation.combine(augmentation.combine(leftPart, middle), rightPart);
+    }
+
+    /**
+     * Sets the capacity of the cache of recent search hits. The cache is direct-mapped: each
+     * key hashes to a single slot holding the last node found for a key hashing there, so a
+     * repeated search of a key returns without a descent. Entries are invalidated when
+     * deletions remove their keys.
+     *
+     * @param capacity      the number of slots, rounded up to a power of 2, or 0 to disable
+     *                      the cache
+     */
+    public void setSearchCacheCapacity(int capacity) {
+        if (capacity <= 0) {
+            cachedKeys = null;
+            cachedNodes = null;
+            return;
+        }
+        int slots = Integer.highestOneBit(capacity);
+        if (slots < capacity)
+            slots <<= 1;
+        cachedKeys = new int[slots];
+        cachedNodes = new WAVLNode[slots];
+    }
+
+    /**
+     * Returns true if the tree does not have any nodes in it, false otherwise.<br>
+     *
+     * The function runs in O(1) time as it only checks the subtree size of the root, which
+     * does not count tombstones.
+     *
+     * @return          true if tree is empty, otherwise false
+     *
+     */
+    @Override
+    public boolean empty() {
+        return size() == 0;
+    }
+
+    /**
+     * Searches the tree for key k and returns its value, or null if k isn't in
+     * the tree.<br>
+     *
+     * Used as a wrapper function that passes k and the tree root to findNode,
+     * another, more general search function, findNode, to search each subtree along the path
+     * from the root to the required key.<br>
+     *
+     * If the tree is bounded by a capacity, the search is counted as a hit or a miss, and a
+     * hit counts as a use of the entry found.<br>
+     *
+     * This method runs in O(h) = O(logn) time as it traverses a simple path
+     * from the root to the deepest leaf in the worst case.
+     *
+     * @param k         the key being searched
+     * @return          value associated with key k, or null if k is not
+     *                  in the tree.
+     */
+    public String search(int k) {
+      WAVLNode found = (cachedNodes != null || fingerSearch) ? lookup(k) : findNode(k, root);
+      if (found == null || found.isDeleted()) {
+          if (capacity > 0)
+              missCount++;
+          return null;
+      }
+      if (capacity > 0) {
+          hitCount++;
+          touch(found);
+      }
+      return found.value;
+  }
+
+    /**
+     * Finds the node with key k using the search cache and the finger, if they are enabled,
+     * and records the result in both. Returns null if k is not in the tree.
+     *
+     * @param k         the key being searched
+     * @return          node with key k, or null if k is not in the tree
+     */
+    private WAVLNode lookup(int k) {
+        int slot = 0;
+        if (cachedNodes != null) {
+            slot = cacheSlot(k);
+            WAVLNode cached = cachedNodes[slot];
+            if (cached != null && cachedKeys[slot] == k) {
+                finger = cached;
+                return cached;
+            }
+        }
+        if (root == null)
+            return null;
+
+        WAVLNode nearest = findInsertionPlace(k, searchStart(k));
+        finger = nearest;
+        if (nearest.key != k)
+            return null;
+
+        if (cachedNodes != null) {
+            cachedKeys[slot] = k;
+            cachedNodes[slot] = nearest;
+        }
+        return nearest;
+    }
+
+    /**
+     * Returns the node from which a search for key k should descend: the root, or if finger
+     * search is enabled, the lowest ancestor of the finger (or the finger itself) whose subtree
+     * must contain k.<br>
+     *
+     * When k is greater than the key of the current node x, the keys in x's subtree are bounded
+     * from above by the key of the lowest ancestor of which x is in the left subtree. If x is a
+     * left child, that ancestor is its parent, and k belongs in x's subtree if it is smaller
+     * than the parent's key; otherwise the climb continues from the parent. The case of k
+     * smaller than the key of x is symmetric.<br>
+     *
+     * This function runs in O(logd) time, where d is the distance between k and the key of
+     * the finger in the sorted order, in the typical case.
+     *
+     * @param k         the key being searched
+     * @return          the node to start the descent from
+     */
+    private WAVLNode searchStart(int k) {
+        if (!fingerSearch || finger == null)
+            return root;
+
+        WAVLNode x = finger;
+        while (x.parent != null && k != x.key) {
+            WAVLNode p = x.parent;
+            if (k > x.key ? (x == p.left && k < p.key) : (x == p.right && k > p.key))
+                break;
+            x = p;
+        }
+        return x;
+    }
+
+    /**
+     * Returns the slot of the search cache for key k, mixing the key's bits with a Fibonacci
+     * hash.
+     */
+    private int cacheSlot(int k) {
+        return (k * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(cachedNodes.length)) &
+                (cachedNodes.length - 1);
+    }
+
+    /**
+     * Removes key k from the search cache, if it is cached.
+     */
+    private void forgetCached(int k) {
+        if (cachedNodes == null)
+            return;
+        int slot = cacheSlot(k);
+        if (cachedKeys[slot] == k)
+            cachedNodes[slot] = null;
+    }
+
+    /**
+     * Search function with an additional node parameter. Returns a node with the
+     * required key, or null if there is no such key in the tree. <br>
+     *
+     * This method utilizes the BST property of the WAVL tree to move recursively
+     * from a root node to one of its subtrees, according to k and the key held at
+     * the node.<br>
+     *
+     * This method runs in O(h) = O(logn) time as it traverses a simple path
+     * from the root to the deepest leaf in the worst case.
+     *
+     * @param k         the key being searched
+     * @param node      node at the root of the subtree in which k is searched
+     * @return          node with key k, or null if k is not in the tree.
+     */
+    private WAVLNode findNode(int k, WAVLNode node) {
+      if (node == null)
+          return null;
+      else if (k == node.key)
+          return node;
+      else if (k > node.key && node.right != null)
+          return findNode(k, node.right);
+      else if (k < node.key && node.left != null)
+          return findNode(k, node.left);
+      return null;
+  }
+
+    /**
+     * Inserts new node, with provided key and value, to the tree. <br>
+     *
+     * If a node with key k already exists in the tree, -1 will be returned. Otherwise,
+     * the function returns the number of rank changes, rotations and double rotations
+     * required in order to maintain the WAVL tree invariants, that may have been violated
+     * during insertion. If key k belongs to a tombstone, its node is revived with value i,
+     * which requires no rebalancing. If the tree is bounded by a capacity and the new entry
+     * exceeds it, an entry is evicted, and its rebalancing operations are counted too. In a
+     * multiset, inserting an existing key increments its count instead, keeping its value,
+     * and 0 is returned.<br>
+     *
+     * This method runs in O(h) = O(logn) time in the worst case. The runtime complexity
+     * will be determined by the time it takes to find the insertion place, the time
+     * complexity of the rebalancing process, and the time it takes to update the subtree
+     * sizes of the nodes that have been affected by the stuctural changes in the tree.
+     * All of these processes will involve all nodes along the path from the deepest leaf
+     * in the tree to the root in the worst case so they run in O(h) = O(logn), hence the
+     * time complexity of insertion will be O(logn) as well.
+     *
+     * @param k     the key of the new node added to the tree
+     * @param i     the info of the new node added to the tree
+     * @return      the number of rebalancing operations performed during the rebalancing
+     *              process, or -1 if a node with key k already exists in the tree
+     */
+    public int insert(int k, String i) {
+        int result = insertEntry(k, i);
+        return result == -1 ? -1 : result + admit(lastInserted);
+    }
+
+    /**
+     * Inserts a new entry as insert does, without evicting, and leaves the finger at the node
+     * of key k, whether or not it was already in the tree. Unless the insertion is rejected,
+     * lastInserted is set to the node of the entry, for the callers which go on with it.
+     *
+     * @param k     the key of the new node added to the tree
+     * @param i     the info of the new node added to the tree
+     * @return      the number of rebalancing operations performed, or -1 if a node with
+     *              key k already exists in the tree
+     */
+    private int insertEntry(int k, String i) {
+       if (topDownInsert && root != null)
+           return insertTopDown(k, i);
+
+       /* Step 1: Check if key k is already in the tree, or where to insert it if it
+       isn't, using the locate method. */
+       WAVLNode place = locate(k);
+       if (place != null && place.key == k && !place.isDeleted()) {
+           if (!multiset)
+               return -1;
+
+           /* Another occurrence of the key in a multiset */
+           ((MultisetNode) place).count++;
+           updatePath(place);
+           lastInserted = place;
+           logChange(WAVLChangeLog.INSERT, k, i);
+           return 0;
+       }
+
+       /* Step 2: Add the new entry, and rebalance */
+       return addEntry(place, k, i);
+   }
+
+    /**
+     * Inserts key k with value i to a non-empty tree as insertEntry does, rebalancing on the
+     * way down, in a single descent from the root. <br>
+     *
+     * A node is absorbing if a promotion of its child on the search path cannot propagate
+     * above it: this is the case if it is not a (1,1) node, since the child is then either a
+     * 2-child, which becomes a 1-child, or the 1-child of a (1,2) node, which is fixed by a
+     * single or double rotation at the node. The descent keeps an absorbing node c, or none
+     * above the root, and its child n on the path, and makes the next absorbing node below:
+     *      - If n is not (1,1), it is absorbing itself.
+     *      - If n is a (1,1) 2-child of c, or the root, it is promoted, making it a (2,2)
+     *        node, and a 1-child.
+     *      - If n is a (1,1) 1-child of c, its child m on the path is looked at. If m is
+     *        absorbing, the descent continues from it. Otherwise m is a (1,1) 1-child too:
+     *        m is promoted, which makes n a (0,1) node, n is promoted, which makes it a
+     *        0-child of c, whose other child is a 2-child, and c is rotated, once if m is on
+     *        the same side of n as n is of c and twice otherwise, as in bottom-up insertion.
+     *        This leaves the next node on the path as a 2-child, so its parent is absorbing.
+     * <br>
+     * When the leaf is attached, its rebalancing stops at the last absorbing node, at most
+     * two levels above it. <br>
+     *
+     * The subtree sizes are kept up to date on the way down: every node entered counts the
+     * new entry in advance. A rotation on the way down recomputes the nodes it moves from
+     * their children, which n's child on the path is not yet one of, so the nodes it leaves
+     * on the path are counted in afterwards. An existing key is found by the same descent: a
+     * tombstone is revived and a multiset counts the key once more, both of which add the
+     * entry the path already counts, and a rejected insertion takes the count back on its
+     * way up. The promotions and rotations made before the key was found are kept, since
+     * they leave a valid tree.<br>
+     *
+     * Aggregates of an arbitrary monoid cannot be computed before the new entry is in place,
+     * so an augmented tree recomputes those on the path, once, after attaching the leaf.<br>
+     *
+     * This method runs in O(h) = O(logn) time: a descent with O(1) restructuring per level
+     * passed, and O(1) rebalancing at the bottom.
+     *
+     * @param k     the key of the new node added to the tree
+     * @param i     the info of the new node added to the tree
+     * @return      the number of rebalancing operations performed, or -1 if a node with
+     *              key k already exists in the tree
+     */
+    private int insertTopDown(int k, String i) {
+        int counter = 0;
+        WAVLNode c = null;
+        WAVLNode n = root;
+        n.size++;
+        while (true) {
+            if (k == n.key)
+                return reinsert(n, i);
+            WAVLNode m = k < n.key ? n.left : n.right;
+            if (m == null)
+                return counter + attachLeaf(n, k, i);
+
+            if (!isOneOne(n)) {
+                c = n;
+                n = m;
+                n.size++;
+            } else if (c == null || c.rank - n.rank == 2) {
+                n.rank++;
+                counter++;
+                c = n;
+                n = m;
+                n.size++;
+            } else {
+                WAVLNode next = k < m.key ? m.left : m.right;
+                if (k == m.key || next == null || !isOneOne(m)) {
+                    /* m is entered, and is the node of k, the parent of the leaf or absorbing */
+                    m.size++;
+                    if (k == m.key)
+                        return reinsert(m, i);
+                    if (next == null)
+                        return counter + attachLeaf(m, k, i);
+                    c = m;
+                    n = next;
+                    n.size++;
+                    continue;
+                }
+
+                m.rank++;
+                n.rank++;
+                counter += 2;
+                WAVLNode top;
+                boolean nIsLeft = c.left == n;
+                if ((n.left == m) == nIsLeft) {
+                    counter += nIsLeft ? rotateRight(c, true) : rotateLeft(c, true);
+                    top = n;
+                } else {
+                    counter += nIsLeft ? doubleRotateRight(c, true) : doubleRotateLeft(c, true);
+                    top = m;
+                }
+                for (WAVLNode x = next.parent; x != top.parent; x = x.parent)
+                    x.size++;
+                c = next.parent;
+                n = next;
+                n.size++;
+            }
+        }
+    }
+
+    /**
+     * Attaches a new leaf for key k under the provided node, which has no child on its side,
+     * and rebalances bottom-up from it. Used by top-down insertion, whose descent has counted
+     * the entry in the subtree sizes of the path, and where the rebalancing is bounded by the
+     * last absorbing node.
+     */
+    private int attachLeaf(WAVLNode parent, int k, String i) {
+        WAVLNode newNode = obtainNode(k, i);
+        finger = newNode;
+        lastInserted = newNode;
+        logChange(WAVLChangeLog.INSERT, k, i);
+        linkLeaf(parent, newNode, k < parent.key);
+        if (augmentation != null)
+            updatePath(parent);
+        return insertionRebalance(parent);
+    }
+
+    /**
+     * Handles an insertion of a key found in the tree by top-down insertion, whose descent
+     * has counted one more entry in the subtree sizes of the path down to the node: a
+     * tombstone is revived and a live key is counted once more in a multiset, which adds that
+     * entry, and otherwise the insertion is rejected and the sizes are restored.
+     */
+    private int reinsert(WAVLNode node, String i) {
+        finger = node;
+        if (!node.isDeleted() && !multiset) {
+            for (WAVLNode x = node; x != null; x = x.parent)
+                x.size--;
+            return -1;
+        }
+
+        if (node.isDeleted()) {
+            node.state.deleted = false;
+            node.value = i;
+            if (multiset)
+                ((MultisetNode) node).count = 1;
+            tombstones--;
+        } else {
+            ((MultisetNode) node).count++;
+        }
+        if (augmentation != null)
+            updatePath(node);
+        lastInserted = node;
+        logChange(WAVLChangeLog.INSERT, node.key, i);
+        return 0;
+    }
 
     /**
-     * Returns the WAVL node which is currently set to be the root of the tree, or null
-     * if tree is empty.
+     * Returns the node of key k, live or a tombstone, or if k is not in the tree the node
+     * under which it would be inserted, or null if the tree is empty, and leaves the finger
+     * at it. The search starts from the finger if finger search is enabled.<br>
+     *
+     * This function runs in O(h) = O(logn) time.
      *
-     * @return      the node object at the root of the tree or null if tree is empty
+     * @param k     the key being searched
+     * @return      the node of k or its insertion place, or null
      */
-    public WAVLNode getRoot()
-    {
-        return this.root;
+    private WAVLNode locate(int k) {
+        if (root == null)
+            return null;
+        finger = findInsertionPlace(k, searchStart(k));
+        return finger;
     }
 
     /**
-     * Returns the current number of nodes in the tree.
+     * Adds an entry for key k, which is not live in the tree, at the place found by locate:
+     * as the root of an empty tree, by reviving the tombstone of k, or as a new child of the
+     * place, followed by rebalancing. The finger and lastInserted are left at the node of the
+     * entry.<br>
+     *
+     * This method runs in O(h) = O(logn) time, without another descent.
      *
-     * @return      the number of nodes in the tree
+     * @param place     the result of locate(k)
+     * @param k         the key of the entry
+     * @param i         the info of the entry
+     * @return          the number of rebalancing operations performed
      */
-    public int size() {
-        if (root == null) {
+    private int addEntry(WAVLNode place, int k, String i) {
+        logChange(WAVLChangeLog.INSERT, k, i);
+        if (place == null) {
+            insertRoot(obtainNode(k, i));
+            finger = root;
+            lastInserted = root;
             return 0;
         }
 
-        return root.getSubtreeSize();
+        if (place.key == k) {
+            /* The key's node is a tombstone, so it is revived in place */
+            place.state.deleted = false;
+            place.value = i;
+            if (multiset)
+                ((MultisetNode) place).count = 1;
+            tombstones--;
+            updatePath(place);
+            lastInserted = place;
+            return 0;
+        }
+
+        WAVLNode newNode = obtainNode(k, i);
+        finger = newNode;
+        lastInserted = newNode;
+        return insertChild(place, newNode, k < place.key);
     }
+
     /**
-     * Returns true if the tree does not have any nodes in it, false otherwise.<br>
-     *
-     * The function runs in O(1) time as it only checks whether a pointer is null or not.
-     *
-     * @return          true if tree is empty, otherwise false
-     *
+     * Replaces the value of a live entry, and updates the aggregates on its path to the root
+     * if the tree is augmented. No node is added or removed, so nothing is rebalanced.
      */
-    public boolean empty() {
-        return (root == null);
+    private void replaceValue(WAVLNode node, String i) {
+        node.value = i;
+        logChange(WAVLChangeLog.PUT, node.key, i);
+        if (augmentation != null)
+            updatePath(node);
     }
 
     /**
-     * Searches the tree for key k and returns its value, or null if k isn't in
-     * the tree.<br>
-     *
-     * Used as a wrapper function that passes k and the tree root to findNode,
-     * another, more general search function, findNode, to search each subtree along the path
-     * from the root to the required key.<br>
+     * Associates value i with key k, inserting k if it is not in the tree and replacing its
+     * value otherwise, as Map.put does. In a multiset, the count of an existing key is not
+     * changed. Replacing a value counts as a use of the entry if the tree is bounded by a
+     * capacity, and keeps its deadline.<br>
      *
-     * This method runs in O(h) = O(logn) time as it traverses a simple path
-     * from the root to the deepest leaf in the worst case.
+     * Unlike a search followed by a deletion and an insertion, this method descends from the
+     * root only once, and only rebalances when a node is added. It runs in O(h) = O(logn) time.
      *
-     * @param k         the key being searched
-     * @return          value associated with key k, or null if k is not
-     *                  in the tree.
+     * @param k     the key
+     * @param i     the value associated with the key
+     * @return      the previous value of k, or null if k was not in the tree
      */
-    public String search(int k) {
-      WAVLNode found = findNode(k, root);
-      if (found != null)
-          return found.value;
-      return null;
-  }
+    public String put(int k, String i) {
+        WAVLNode place = locate(k);
+        if (place != null && place.key == k && !place.isDeleted()) {
+            String previous = place.value;
+            replaceValue(place, i);
+            if (capacity > 0)
+                touch(place);
+            return previous;
+        }
+        addEntry(place, k, i);
+        admit(lastInserted);
+        return null;
+    }
 
     /**
-     * Search function with an additional node parameter. Returns a node with the
-     * required key, or null if there is no such key in the tree. <br>
+     * Inserts key k with value i if k is not in the tree, as Map.putIfAbsent does. This method
+     * descends from the root once, and runs in O(h) = O(logn) time.
      *
-     * This method utilizes the BST property of the WAVL tree to move recursively
-     * from a root node to one of its subtrees, according to k and the key held at
-     * the node.<br>
+     * @param k     the key
+     * @param i     the value associated with the key if it is inserted
+     * @return      the current value of k, or null if it was inserted
+     */
+    public String putIfAbsent(int k, String i) {
+        WAVLNode place = locate(k);
+        if (place != null && place.key == k && !place.isDeleted())
+            return place.value;
+        addEntry(place, k, i);
+        admit(lastInserted);
+        return null;
+    }
+
+    /**
+     * Replaces the value of key k, if it is in the tree, by the value the function computes
+     * from the key and its current value, as Map.computeIfPresent does. If the function
+     * returns null, the entry is deleted, with all its occurrences in a multiset.<br>
      *
-     * This method runs in O(h) = O(logn) time as it traverses a simple path
-     * from the root to the deepest leaf in the worst case.
+     * The function must not modify the tree. This method descends from the root once, and
+     * runs in O(h) = O(logn) time besides the function.
      *
-     * @param k         the key being searched
-     * @param node      node at the root of the subtree in which k is searched
-     * @return          node with key k, or null if k is not in the tree.
+     * @param k         the key
+     * @param remapping the function computing the new value from the key and current value
+     * @return          the new value of k, or null if it is not in the tree
      */
-    private WAVLNode findNode(int k, WAVLNode node) {
-      if (node == null)
-          return null;
-      else if (k == node.key)
-          return node;
-      else if (k > node.key && node.right != null)
-          return findNode(k, node.right);
-      else if (k < node.key && node.left != null)
-          return findNode(k, node.left);
-      return null;
-  }
+    public String computeIfPresent(int k, BiFunction<Integer, String, String> remapping) {
+        WAVLNode place = locate(k);
+        if (place == null || place.key != k || place.isDeleted())
+            return null;
+        return remap(place, remapping.apply(k, place.value));
+    }
 
     /**
-     * Inserts new node, with provided key and value, to the tree. <br>
-     *
-     * If a node with key k already exists in the tree, -1 will be returned. Otherwise,
-     * the function returns the number of rank changes, rotations and double rotations
-     * required in order to maintain the WAVL tree invariants, that may have been violated
-     * during insertion.<br>
+     * Computes a new value for key k from the key and its current value, or null if k is not
+     * in the tree, as Map.compute does. If the function returns null, the entry is deleted if
+     * it exists; otherwise k is inserted or its value replaced.<br>
      *
-     * This method runs in O(h) = O(logn) time in the worst case. The runtime complexity
-     * will be determined by the time it takes to find the insertion place, the time
-     * complexity of the rebalancing process, and the time it takes to update the subtree
-     * sizes of the nodes that have been affected by the stuctural changes in the tree.
-     * All of these processes will involve all nodes along the path from the deepest leaf
-     * in the tree to the root in the worst case so they run in O(h) = O(logn), hence the
-     * time complexity of insertion will be O(logn) as well.
+     * The function must not modify the tree. This method descends from the root once, and
+     * runs in O(h) = O(logn) time besides the function.
      *
-     * @param k     the key of the new node added to the tree
-     * @param i     the info of the new node added to the tree
-     * @return      the number of rebalancing operations performed during the rebalancing
-     *              process, or -1 if a node with key k already exists in the tree
+     * @param k         the key
+     * @param remapping the function computing the new value from the key and current value
+     * @return          the new value of k, or null if it is not in the tree afterwards
      */
-    public int insert(int k, String i) {
-       /* Step 1: Check if tree is empty. If it is, insert new node as root and finish */
-       if (root == null) {
-           root = new WAVLNode(k, i);
-           return 0;
-       }
-
-       /* Step 2: Check if key k is already in the tree, or where to insert it if it
-       isn't, using the findInsertionPlace method. */
-       WAVLNode parentNode = findInsertionPlace(k, root);
-       if (parentNode.key == k)
-           return -1;
+    public String compute(int k, BiFunction<Integer, String, String> remapping) {
+        WAVLNode place = locate(k);
+        if (place != null && place.key == k && !place.isDeleted())
+            return remap(place, remapping.apply(k, place.value));
+
+        String value = remapping.apply(k, null);
+        if (value != null) {
+            addEntry(place, k, value);
+            admit(lastInserted);
+        }
+        return value;
+    }
 
-       /* Step 3: Place new node in appropriate place.*/
-       WAVLNode newNode = new WAVLNode(k, i, parentNode);
+    /**
+     * Inserts key k with value i if k is not in the tree, and otherwise replaces its value by
+     * the function of its current value and i, as Map.merge does. If the function returns
+     * null, the entry is deleted. This makes counters a single operation, such as
+     * merge(k, "1", (a, b) -> String.valueOf(Integer.parseInt(a) + 1)).<br>
+     *
+     * The function must not modify the tree. This method descends from the root once, and
+     * runs in O(h) = O(logn) time besides the function.
+     *
+     * @param k         the key
+     * @param i         the value inserted, and the second argument of the function
+     * @param remapping the function computing the new value from the current value and i
+     * @return          the new value of k, or null if it was deleted
+     */
+    public String merge(int k, String i, BiFunction<String, String, String> remapping) {
+        WAVLNode place = locate(k);
+        if (place != null && place.key == k && !place.isDeleted())
+            return remap(place, remapping.apply(place.value, i));
+        addEntry(place, k, i);
+        admit(lastInserted);
+        return i;
+    }
 
-       /* Step 4: Rebalance */
-       return insertionRebalance(parentNode);
-   }
+    /**
+     * Stores the value computed for a live entry: replaces its value, as a use of the entry,
+     * or deletes the entry if the value is null.
+     *
+     * @param node      the node of the entry
+     * @param value     the new value, or null
+     * @return          the new value
+     */
+    private String remap(WAVLNode node, String value) {
+        if (value == null) {
+            removeEntry(node);
+            return null;
+        }
+        replaceValue(node, value);
+        if (capacity > 0)
+            touch(node);
+        return value;
+    }
 
     /**
      * Finds the appropriate parent node for a new node with key k to be inserted,
@@ -182,583 +1440,579 @@ public class WAVLTree implements Iterable {
    }
 
     /**
-     * Characterizes the type of node by the rank differences with its children.<br>
+     * Removes node with provided key from the tree. <br>
+     *
+     * If a node with key k does not exist in the tree, -1 will be returned. Otherwise,
+     * the function returns the number of rank changes, rotations and double-rotations
+     * required in order to maintain the WAVL tree invariants, that may have been violated
+     * during deletion.<br>
      *
-     * If the node is a unary node of a leaf, then the missing child is referred to as an external
-     * node with rank -1. The function returns a size 2 array containing the rank differences,
-     * left to right. This allows to determine the course of action during the rebalancing process.<br>
+     * Note that all deletion cases are reduced to the deletion of a leaf: a binary node
+     * or a unary node deleted, trades places in the tree with its successor / predecessor
+     * (as they are available), and is then removed from the tree. If it's then a unary
+     * node again, it trades places with its leaf child, and is deleted as a leaf. Nodes are
+     * relinked rather than having their entries copied, so every other node keeps its entry,
+     * and handles to it stay valid. <br>
+     *
+     * This method runs in O(h) = O(logn) time in the worst case. The runtime complexity
+     * will be determined by the time it takes to find the node to delete, the time
+     * complexity of the rebalancing process. Both of these processes run in O(logn) time
+     * so the deletion process runs in O(logn) as well.
      *
-     * This function runs in O(1) time as it only requires access to pointers, and the creation
-     * of a fixed sized array.
+     * If lazy deletion is enabled, the node is only marked as a tombstone, and 0 is
+     * returned. In a multiset, a single occurrence of k is removed: if k occurs more than once,
+     * its count is decremented, with no structural change, and 0 is returned.
      *
-     * @param node      the node of which the rank differences are returned
-     * @return          a size 2 array: array[0] - rank difference between the node
-     *                  and its left child; array[1] - rank difference between the node
-     *                  and its right child
+     * @param k     key of node to be removed from the tree, if it exists in it
+     * @return      the number of rebalancing operations performed during the rebalancing
+     *              process, or -1 if node with key k was not found in the tree
      */
-    private int[] vertexType(WAVLNode node) {
-       int[] rankDiffs = new int[2];
-
-       if (node.left != null)
-           rankDiffs[0] = node.rank - node.left.rank;
-       else
-           rankDiffs[0] = node.rank - (-1);
+   public int delete(int k) {
+       /* Step 1: Check if node with key k we wish to remove is in the tree, and find it
+       * if it is */
+       if (topDownDelete && !lazyDelete && root != null)
+           return deleteTopDown(k);
 
-       if (node.right != null)
-           rankDiffs[1] = node.rank - node.right.rank;
-        else
-           rankDiffs[1] = node.rank - (-1);
+       WAVLNode node = (cachedNodes != null || fingerSearch) ? lookup(k) : findNode(k, root);
+       if (node == null || node.isDeleted())
+           return -1;
 
-       return rankDiffs;
-    }
+       if (node.getCount() > 1) {
+           ((MultisetNode) node).count--;
+           updatePath(node);
+           logChange(WAVLChangeLog.DELETE, k, null);
+           return 0;
+       }
+       return removeEntry(node);
+   }
 
     /**
-     * Receives a size 2 array of rank differences produced by the vertexType function,
-     * and checks if the vertex type is valid according to the WAVL rules. <br>
-     *
-     * Returns a boolean value - true if the vertex type is one of the following: {(1,1),
-     * (1,2), (2,1), (2,2)}, and false otherwise, implying rebalancing is required. <br>
+     * Removes key k from a non-empty tree as delete does, without lazy deletion, rebalancing
+     * on the way down in a single descent from the root.<br>
+     *
+     * A node is safe if losing a rank cannot propagate above its parent: it is the root, a
+     * 1-child, which becomes a 2-child, or a 2-child whose sibling is a 1-child other than a
+     * (2,2) node, so that its parent is fixed by a single or double rotation. The descent
+     * only enters safe nodes. From a node n, its child m on the path is safe unless it is a
+     * 2-child whose sibling s is a 2-child or a (2,2) 1-child, and then n is demoted, with s
+     * in the latter case, which makes m a 1-child and keeps s valid. n is safe, so its
+     * demotion is absorbed by its parent, or by a rotation at its parent which leaves n and
+     * its subtree in place. The descent continues past the node of k down to its successor
+     * if the node is binary. The node removed is then a safe leaf or unary node, and the
+     * bottom-up rebalancing after its removal ends at its parent or grandparent.<br>
+     *
+     * The subtree sizes are kept up to date on the way down: every node entered counts the
+     * removed entry out in advance, and the rotations on the way down recompute the nodes
+     * they move from children which already do. When a binary node trades places with its
+     * successor, the nodes between them lose the successor's entries instead, so they are
+     * corrected if the two nodes' counts differ. If k is not found, or is a tombstone, the
+     * count is taken back on the way up. Aggregates of an arbitrary monoid cannot be updated
+     * by difference, so an augmented tree recomputes those on the path, once, after the
+     * removal.<br>
+     *
+     * This method runs in O(h) = O(logn) time: a descent with O(1) restructuring per level
+     * passed, and O(1) rebalancing at the bottom.
      *
-     * This function runs in O(1) time as it iterates on a fixed sized array.
-     *
-     * @param vType     a size 2 array of rank differences between a certain node in the tree
-     *                  and its two children
-     * @return          true if vertex type is in accordance with the WAVL invariants, false
-     *                  otherwise
+     * @param k     key of node to be removed from the tree, if it exists in it
+     * @return      the number of rebalancing operations performed, or -1 if k was not found
      */
-    private boolean isValidType(int[] vType) {
-        for (int rankDiff : vType) {
-            if (rankDiff != 1) {
-                if (rankDiff != 2)
-                    return false;
+    private int deleteTopDown(int k) {
+        int counter = 0;
+        WAVLNode n = root;
+        n.size--;
+        while (k != n.key) {
+            WAVLNode m = k < n.key ? n.left : n.right;
+            if (m == null)
+                break;
+            counter += makeSafe(n, m);
+            n = m;
+            n.size--;
+        }
+        WAVLNode node = n;
+        if (node.key != k || node.isDeleted()) {
+            for (WAVLNode x = node; x != null; x = x.parent)
+                x.size++;
+            return -1;
+        }
+
+        if (node.getCount() > 1) {
+            ((MultisetNode) node).count--;
+            if (augmentation != null)
+                updatePath(node);
+            finger = node;
+            logChange(WAVLChangeLog.DELETE, k, null);
+            return 0;
+        }
+        logChange(WAVLChangeLog.REMOVE, k, null);
+        forgetCached(k);
+        unschedule(node);
+        forgetUses(node);
+
+        if (node.left != null && node.right != null) {
+            /* The descent goes on to the successor, which the node trades places with. The
+            nodes between them lose the successor's entries rather than the node's. */
+            for (WAVLNode m = node.right; m != null; m = m.left) {
+                counter += makeSafe(n, m);
+                n = m;
+                n.size--;
             }
+            int moved = weight(n) - weight(node);
+            for (WAVLNode x = n.parent; moved != 0 && x != node; x = x.parent)
+                x.size -= moved;
+            swapPositions(node, n);
         }
 
-        return true;
+        WAVLNode parent = node.parent;
+        replaceChild(parent, node, node.left != null ? node.left : node.right);
+        node.left = node.right = node.parent = null;
+        node.rank = 0;
+        if (augmentation != null)
+            updatePath(parent);
+        counter += deletionRebalance(parent);
+
+        finger = parent;
+        recycleNode(node);
+        return counter;
     }
 
     /**
-     * Rebalances WAVL tree after insertion. <br>
-     *
-     * Receives a tree node where a violation of the WAVL tree invariants may have occurred
-     * as a result of an insertion, and corrects it by performing a series of rebalancing actions
-     * up the path from the given node to the root of the tree.<br>
+     * Makes the child m of a safe node n safe before top-down deletion enters it, as
+     * described in deleteTopDown: if m is a 2-child whose sibling is a 2-child, or a (2,2)
+     * 1-child, n is demoted, with the sibling in the latter case, and if n becomes a 3-child,
+     * its parent is rotated as in bottom-up deletion.<br>
      *
-     * The function runs in O(h) = O(logn) time, as its runtime complexity is determined
-     * by the number of promotions O(logn) promotions in the worst case), a the subtree size update
-     * process, which takes place as a result of the structural changes in the tree.
-     * The subtree size update traverses a path from the deepest leaf in the tree to the root
-     * in the worst case, hence it runs in O(logn) time.
+     * This function runs in O(1) time.
      *
-     * @param node      WAVL node object where there is a violation of the WAVL tree invariants
-     * @return          number of promotions, rotations and double rotations performed
-     *                  during the rebalancing process
+     * @param n     a safe node entered by the descent
+     * @param m     the child of n the descent enters next
+     * @return      the number of demotions, rotations and double rotations performed
      */
-    private int insertionRebalance(WAVLNode node) {
-        int counter = 0;
-        WAVLNode curr = node;
-        int[] currVType = vertexType(node);
-
-        while (curr != null && !isValidType(currVType)) { // curr != null: Haven't reached the root yet
-
-            if (currVType[0] + currVType[1] == 1) { // (0,1), (1,0) Promotion cases
-                counter++;
-                curr.rank++;
-                curr = curr.parent;
-                if (curr != null)
-                    currVType = vertexType(curr);
-                continue;
-            }
-            // Rotation cases
-
-            if (currVType[0] == 0) { // Rolling up from the left
-                assert (currVType[1] == 2); // (0,2)
-
-                int[] childVType = vertexType(curr.left);
-
-                if (childVType[0] == 1 && childVType[1] == 2) { // child is (1,2)
-                    counter += rotateRight(curr, true);
-                } else {
-                    assert (childVType[0] == 2 && childVType[1] == 1); // child is (2,1)
-                    counter += doubleRotateRight(curr, true);
-                }
-
-            } else if (currVType[1] == 0) { // Rolling up from the right
-                assert (currVType[0] == 2); // (2,0)
+    private int makeSafe(WAVLNode n, WAVLNode m) {
+        if (n.rank - m.rank == 1)
+            return 0;
+        WAVLNode s = n.left == m ? n.right : n.left;
+        boolean siblingTwoTwo = s.rank - rankOf(s.left) == 2 && s.rank - rankOf(s.right) == 2;
+        if (n.rank - s.rank == 1 && !siblingTwoTwo)
+            return 0;
 
-                int[] childVType = vertexType(curr.right);
+        int counter = 1;
+        if (n.rank - s.rank == 1) {
+            s.rank--;
+            counter++;
+        }
+        n.rank--;
 
-                if (childVType[0] == 2 && childVType[1] == 1) { //child is (2,1)
-                    counter += rotateLeft(curr, true);
-                } else {
-                    assert (childVType[0] == 1 && childVType[1] == 2); // child is (1,2)
-                    counter += doubleRotateLeft(curr, true);
-                }
-            }
+        WAVLNode g = n.parent;
+        if (g == null || g.rank - n.rank != 3)
             return counter;
-        }
+        boolean nIsLeft = g.left == n;
+        WAVLNode t = nIsLeft ? g.right : g.left;
+        if (t.rank - rankOf(nIsLeft ? t.right : t.left) == 1)
+            counter += nIsLeft ? rotateLeft(g, false) : rotateRight(g, false);
+        else
+            counter += nIsLeft ? doubleRotateLeft(g, false) : doubleRotateRight(g, false);
         return counter;
     }
 
-
     /**
-     * Performs a single rotation to the right of the subtree of which the node
-     * provided is the root. <br>
-     *
-     * Illustration below is in accordance with variable names:
+     * Removes every occurrence of key k from a multiset, as delete removes a key occurring
+     * once. In a tree which is not a multiset, this is the same as delete.<br>
      *
-     *        p                    p
-     *        |                    |
-     *        z                    x
-     *      /  \  Rotate right   /  \
-     *     x   y                a   z
-     *    / \                      / \
-     *   a  b                     b  y
+     * This method runs in O(h) = O(logn) time.
      *
-     * During insertion, node z is demoted during this rotation. All other nodes retain their ranks. <br>
-     *
-     * During deletion, node x is promoted, and z is demoted once or twice, depending
-     * on z's children. If z becomes a leaf after the rotation and is only demoted once,
-     * its rank difference with the external leaf y becomes 2, causing a violation of
-     * the invariants, as leaves are only allowed to be (1,1) vertices.
-     * To solve this, z is demoted once again. All other nodes retain their ranks.<br>
-     *
-     * The function runs in O(h) = O(logn) time, as its runtime complexity is determined
-     * by the subtree size update process, which takes place as a result of the structural
-     * changes in the tree. The rotation process itself runs in O(1) time as it only involves
-     * a fixed number of pointers and fields. The subtree size update traverses a path from the
-     * deepest leaf in the tree to the root in the worst case, hence it runs in O(logn) time.
-     *
-     * @param z         the node at the root of the subtree rotated
-     * @param insert    true if the rotation takes place during insertion, false if it does
-     *                  during deletion
-     * @return          the number of rebalancing step made during this process -
-     *                  1 rotation + the number of promotions and demotions made
+     * @param k     key to be removed from the tree, if it exists in it
+     * @return      the number of rebalancing operations performed, or -1 if k was not found
      */
-    @SuppressWarnings("Duplicates")
-    private int rotateRight(WAVLNode z, boolean insert) {
-        int counter = 1;
-
-        WAVLNode x = z.left;
-        WAVLNode b = x.right;
-
-        z.replaceWith(x);
-
-        x.setRightChild(z);
-        z.setLeftChild(b);
-
-        if (insert) {
-            z.rank--;
-            counter++;
-        }
-        else {
-            z.rank--;
-            x.rank++;
-            counter += 2;
-            if (z.isLeaf()) {
-                z.rank--;
-                counter++;
-            }
-        }
-        return counter;
+    public int deleteAll(int k) {
+        WAVLNode node = (cachedNodes != null || fingerSearch) ? lookup(k) : findNode(k, root);
+        if (node == null || node.isDeleted())
+            return -1;
+        return removeEntry(node);
     }
 
     /**
-     * Performs a single rotation to the left of the subtree of which the node
-     * provided is the root. <br>
-     *
-     * Illustration below is in accordance with variable names:
-     *
-     *     p                     p
-     *     |                     |
-     *     z                     y
-     *   /  \   Rotate left    /  \
-     *  x   y                 z   b
-     *     / \               / \
-     *    a  b              x  a
+     * Removes the entry of a live node, with all its occurrences: as a tombstone if lazy
+     * deletion is enabled, and physically otherwise.
      *
-     * During insertion, node z is demoted during this rotation. All other nodes retain their ranks<br>
-     *
-     * During deletion, node y is promoted, and z is demoted once or twice, depending
-     * on z's children. If z becomes a leaf after the rotation and is only demoted once,
-     * its rank difference with the external leaf x becomes 2, causing a violation of
-     * the invariants, as leaves are only allowed to be (1,1) vertices.
-     * To solve this, z is demoted once again. All other nodes retain their ranks.<br>
-     *
-     * The function runs in O(h) = O(logn) time, as its runtime complexity is determined
-     * by the subtree size update process, which takes place as a result of the structural
-     * changes in the tree. The rotation process itself runs in O(1) time as it only involves
-     * a fixed number of pointers and fields. The subtree size update traverses a path from the
-     * deepest leaf in the tree to the root in the worst case, hence it runs in O(logn) time.
-     *
-     * @param z         the node at the root of the subtree rotated
-     * @param insert    true if the rotation takes place during insertion, false if it does
-     *                  during deletion
-     * @return          the number of rebalancing step made during this process -
-     *                  1 rotation + the number of promotions and demotions made
+     * @param node      the node of the entry removed
+     * @return          the number of rebalancing operations performed
      */
-    @SuppressWarnings("Duplicates")
-    private int rotateLeft(WAVLNode z, boolean insert) {
-        int counter = 1;
-
-        WAVLNode y = z.right;
-        WAVLNode a = y.left;
-
-        z.replaceWith(y);
-
-        y.setLeftChild(z);
-        z.setRightChild(a);
-
-
-        if (insert) {
-            z.rank--;
-            counter++;
-        }
-        else {
-            z.rank--;
-            y.rank++;
-            counter += 2;
-            if (z.isLeaf()) {
-                z.rank--;
-                counter++;
-            }
+    private int removeEntry(WAVLNode node) {
+        logChange(WAVLChangeLog.REMOVE, node.key, null);
+        if (lazyDelete) {
+            markDeleted(node);
+            return 0;
         }
-        return counter;
+        return removeNode(node);
     }
 
     /**
-     * Performs a double rotation to the right of the subtree of which the node
-     * provided is the root. <br>
-     *
-     * Illustration below is in accordance with variable names:
-     *
-     *      p                            p
-     *      |                            |
-     *      z                            b
-     *     / \                         /   \
-     *    x  y  Double rotate right   x    z
-     *   / \                         / \  / \
-     *  a  b                        a  c d  y
-     *    / \
-     *   c  d
-     *
-     * During insertion, nodes y and z are demoted, and node a is promoted during this
-     * rotation. All other nodes retain their ranks.<br>
-     *
-     * During deletion, the rank of node b increases by 2, that of node z decreases by 2,
-     * and that of x decreases by 1. All other nodes retains their ranks. <br>
-     *
-     * The function runs in O(h) = O(logn) time, as its runtime complexity is determined
-     * by the subtree size update process, which takes place as a result of the structural
-     * changes in the tree. The rotation process itself runs in O(1) time as it only involves
-     * a fixed number of pointers and fields. The subtree size update traverses a path from the
-     * deepest leaf in the tree to the root in the worst case, hence it runs in O(logn) time.
+     * Inserts key k with value i as insert does, and returns the node of the new entry as a
+     * handle to it. A handle stays valid, and keeps its key, until its entry is deleted:
+     * rebalancing, the deletion of other keys and rebuilds relink nodes instead of moving
+     * entries between them. It then lets the entry be updated, deleted or stepped from
+     * without searching for its key again.<br>
      *
-     * @param z         the node at the root of the subtree rotated
-     * @param insert    true if the rotation takes place during insertion, false if it does
-     *                  during deletion
-     * @return          the number of rebalancing step made during this process -
-     *                  1 rotation + the number of promotions and demotions made
+     * This method runs in O(h) = O(logn) time.
      *
+     * @param k     the key of the new node added to the tree
+     * @param i     the info of the new node added to the tree
+     * @return      the handle of the entry of k, or null if k already exists in the tree and
+     *              the tree is not a multiset, as insert returns -1
      */
+    public WAVLNode insertHandle(int k, String i) {
+        if (insertEntry(k, i) == -1)
+            return null;
+        WAVLNode node = lastInserted;
+        admit(node);
+        return node;
+    }
 
-    private int doubleRotateRight(WAVLNode z, boolean insert) {
-        int counter = 1;
-
-        WAVLNode x = z.left;
-        WAVLNode b = x.right;
-        WAVLNode c = b.left;
-        WAVLNode d = b.right;
-
-        z.replaceWith(b);
-
-        b.setLeftChild(x);
-        b.setRightChild(z);
-        x.setRightChild(c);
-        z.setLeftChild(d);
+    /**
+     * Returns the handle of key k, the node of its entry, or null if k isn't in the tree.
+     * This method runs in O(h) = O(logn) time, and does not count as a use of the entry.
+     *
+     * @param k     the key being searched
+     * @return      the handle of k, or null
+     */
+    public WAVLNode handleOf(int k) {
+        WAVLNode node = findNode(k, root);
+        return node == null || node.isDeleted() ? null : node;
+    }
 
-        if (insert) {
-            x.rank--;
-            z.rank--;
-            b.rank++;
-            counter += 3;
-        } else {
-            b.rank += 2;
-            z.rank -= 2;
-            x.rank--;
-            counter += 3;
+    /**
+     * Deletes the entry of a handle as delete(handle.getKey()) would, without searching for
+     * it. The handle is invalid afterwards, unless a multiset still holds other occurrences of
+     * its key or lazy deletion left it as a tombstone, which a later insertion of its key
+     * revives.<br>
+     *
+     * This method runs in O(h) = O(logn) time, for the rebalancing and the subtree sizes on
+     * the path to the root.
+     *
+     * @param handle    the handle of a live entry of this tree
+     * @return          the number of rebalancing operations performed, or -1 if the entry was
+     *                  already deleted lazily
+     * @throws IllegalArgumentException     if the handle belongs to another tree
+     */
+    public int deleteByHandle(WAVLNode handle) {
+        checkHandle(handle);
+        if (handle.isDeleted())
+            return -1;
+        if (handle.getCount() > 1) {
+            ((MultisetNode) handle).count--;
+            updatePath(handle);
+            logChange(WAVLChangeLog.DELETE, handle.key, null);
+            return 0;
         }
-        return counter;
+        return removeEntry(handle);
     }
 
     /**
-     * Performs a double rotation to the right of the subtree of which the node
-     * provided is the root. <br>
-     *
-     * Illustration below is in accordance with variable names:
-     *
-     *    p                            p
-     *    |                            |
-     *    z                            a
-     *   / \                         /   \
-     *  x  y   Double rotate left   z    y
-     *    / \                      / \  / \
-     *   a  b                     x  c d  b
-     *  / \
-     * c  d
-     *
-     * During insertion, nodes y and z are demoted, and node a is promoted during this
-     * rotation. All other nodes retain their ranks.<br>
+     * Replaces the value of the entry of a handle, without searching for it. Replacing the
+     * value counts as a use of the entry if the tree is bounded by a capacity.<br>
      *
-     * During deletion, the rank of node a increases by 2, that of node z decreases by 2,
-     * and that of y decreases by 1. All other nodes retains their ranks. <br>
+     * This method runs in O(1) time, or O(h) = O(logn) time if the tree is augmented, to
+     * update the aggregates on the path to the root.
      *
-     * The function runs in O(h) = O(logn) time, as its runtime complexity is determined
-     * by the subtree size update process, which takes place as a result of the structural
-     * changes in the tree. The rotation process itself runs in O(1) time as it only involves
-     * a fixed number of pointers and fields. The subtree size update traverses a path from the
-     * deepest leaf in the tree to the root in the worst case, hence it runs in O(logn) time.
+     * @param handle    the handle of an entry of this tree
+     * @param i         the new value of the entry
+     * @return          false if the entry was deleted lazily, and nothing was replaced
+     * @throws IllegalArgumentException     if the handle belongs to another tree
+     */
+    public boolean updateValue(WAVLNode handle, String i) {
+        checkHandle(handle);
+        if (handle.isDeleted())
+            return false;
+        replaceValue(handle, i);
+        if (capacity > 0)
+            touch(handle);
+        return true;
+    }
+
+    /**
+     * Returns the handle of the entry following the handle's in the order of the keys, or null
+     * if it has the largest key. Tombstones are skipped.<br>
      *
-     * @param z         the node at the root of the subtree rotated
-     * @param insert    true if the rotation takes place during insertion, false if it does
-     *                  during deletion
-     * @return          the number of rebalancing step made during this process -
-     *                  1 rotation + the number of promotions and demotions made
+     * This function runs in O(h) = O(logn) time in the worst case, and in O(1) amortized time
+     * per step when walking the tree.
      *
+     * @param handle    the handle of an entry of this tree, or of a tombstone
+     * @return          the handle of the next live entry, or null
+     * @throws IllegalArgumentException     if the handle belongs to another tree
      */
-    private int doubleRotateLeft(WAVLNode z, boolean insert) {
-        int counter = 1;
-
-        WAVLNode y = z.right;
-        WAVLNode a = y.left;
-        WAVLNode c = a.left;
-        WAVLNode d = a.right;
-
-        z.replaceWith(a);
-
-        a.setLeftChild(z);
-        a.setRightChild(y);
-        z.setRightChild(c);
-        y.setLeftChild(d);
-
-        if (insert) {
-            y.rank--;
-            z.rank--;
-            a.rank++;
-        } else {
-            a.rank += 2;
-            z.rank -= 2;
-            y.rank--;
-            counter += 3;
+    public WAVLNode successor(WAVLNode handle) {
+        checkHandle(handle);
+        WAVLNode node = successorNode(handle);
+        while (node != null && node.isDeleted()) {
+            node = successorNode(node);
         }
-        return counter;
+        return node;
     }
 
     /**
-     * Removes node with provided key from the tree. <br>
-     *
-     * If a node with key k does not exist in the tree, -1 will be returned. Otherwise,
-     * the function returns the number of rank changes, rotations and double-rotations
-     * required in order to maintain the WAVL tree invariants, that may have been violated
-     * during deletion.<br>
-     *
-     * Note that all deletion cases are reduced to the deletion of a leaf: a binary node
-     * or a unary node deleted, takes the key and value of its successor / predecessor
-     * (as they are available), and the latter is then removed from the tree. If it's a unary
-     * node as well, it takes the key and value of its leaf child, and the leaf child is
-     * deleted. <br>
+     * Returns the handle of the entry preceding the handle's in the order of the keys, or
+     * null if it has the smallest key, as successor.
      *
-     * This method runs in O(h) = O(logn) time in the worst case. The runtime complexity
-     * will be determined by the time it takes to find the node to delete, the time
-     * complexity of the rebalancing process. Both of these processes run in O(logn) time
-     * so the deletion process runs in O(logn) as well.
-     *
-     * @param k     key of node to be removed from the tree, if it exists in it
-     * @return      the number of rebalancing operations performed during the rebalancing
-     *              process, or -1 if node with key k was not found in the tree
+     * @param handle    the handle of an entry of this tree, or of a tombstone
+     * @return          the handle of the previous live entry, or null
+     * @throws IllegalArgumentException     if the handle belongs to another tree
      */
-   public int delete(int k) {
-       /* Step 1: Check if node with key k we wish to remove is in the tree, and find it
-       * if it is */
-       WAVLNode node = findNode(k, root);
-       if (node == null)
-           return -1;
+    public WAVLNode predecessor(WAVLNode handle) {
+        checkHandle(handle);
+        WAVLNode node = predecessorNode(handle);
+        while (node != null && node.isDeleted()) {
+            node = predecessorNode(node);
+        }
+        return node;
+    }
 
-       /* Step 2: Delete node */
-       WAVLNode offender; // Node where WAVL invariant violation may have occurred
+    /**
+     * Checks that a handle is a node of this tree. A handle whose entry was deleted cannot be
+     * told apart from a live one once its node is detached or reused, so using it is an error
+     * the check does not catch.
+     */
+    private void checkHandle(WAVLNode handle) {
+        if (handle.tree() != this)
+            throw new IllegalArgumentException("handle of key " + handle.key + " belongs to another tree");
+    }
 
-            /* Case a: Deleting a leaf */
-       if (node.isLeaf()) { // leaf
-           offender = deleteLeaf(node);
-       }
-            /* Case b: Deleting a unary node with right child or a binary node */
-       else if (node.right != null) {
-           /* Key and value of deleted node are replaced by the successor's, retaining all
-           other info */
-           WAVLNode successor = nodeWithMinKey(node.right);
-
-           /*      - b.1. Can happen in case of deleting a unary node with right child who
-                    is necessarily a leaf, or in case of deleting a binary node whose
-                    successor is a leaf */
-           if (successor.isLeaf()) {
-               offender = deleteLeaf(successor);
-               node.key = successor.key;
-               node.value = successor.value;
-           }
-
-           /*      - b.2. Can happen in case of deleting a binary node, whose successor is
-                     unary node with right child, who is necessarily a leaf */
-           else {
-               node.key = successor.key;
-               node.value = new String(successor.value);
-               successor.key = successor.right.key;
-               successor.value = successor.right.value;
-               offender = deleteLeaf(successor.right);
-           }
-       }
-            /* Case c: Deleting a unary node with left child, who is necessarily a leaf*/
-       else {
-           int newKey = node.left.key;
-           String newVal = node.left.value;
-           offender = deleteLeaf(node.left);
-           node.key = newKey;
-           node.value = newVal;
-       }
+    /**
+     * Marks a live node as a tombstone, and rebuilds the tree if the tombstones exceed the
+     * rebuild ratio. The key is pushed on the stack of keys awaiting compaction, unless it is
+     * already there from an earlier deletion.<br>
+     *
+     * This method runs in O(h) = O(logn) time, as it updates the subtree sizes on the path
+     * to the root, unless the tree is rebuilt.
+     *
+     * @param node      the node of the key deleted
+     */
+    private void markDeleted(WAVLNode node) {
+        unschedule(node);
+        forgetUses(node);
+        NodeState state = stateOf(node);
+        state.deleted = true;
+        tombstones++;
+        updatePath(node);
+
+        if (!state.pending) {
+            state.pending = true;
+            if (pendingCount == pendingKeys.length)
+                pendingKeys = Arrays.copyOf(pendingKeys, pendingCount * 2);
+            pendingKeys[pendingCount++] = node.key;
+        }
 
-       /* Step 3: Rebalance */
-       return deletionRebalance(offender);
-   }
+        if (tombstones > rebuildRatio * (size() + tombstones))
+            rebuild();
+    }
 
     /**
-     * Rebalances WAVL tree after insertion. <br>
+     * Physically removes up to maxBatch tombstones from the tree, each by a regular deletion
+     * with its rebalancing. Meant to be called between requests, so that the cost of the
+     * lazy deletions is paid off in bounded batches.<br>
      *
-     * Receives a tree node where a violation of the WAVL tree invariants may have occurred
-     * as a result of a deletion, and corrects it by performing a series of rebalancing operations
-     * up the path from the given node to the root of the tree.<br>
+     * This method runs in O(maxBatch * logn) time.
      *
-     * The function runs in O(h) = O(logn) time, as its runtime complexity is determined
-     * by the number of promotions (O(logn) promotions in the worst case), a the subtree size update
-     * process, which takes place as a result of the structural changes in the tree.
-     * The subtree size update traverses a path from the deepest leaf in the tree to the root
-     * in the worst case, hence it runs in O(logn) time.
+     * @param maxBatch      the maximal number of tombstones removed
+     * @return              the number of tombstones removed
+     */
+    public int compactTombstones(int maxBatch) {
+        int removed = 0;
+        while (removed < maxBatch && pendingCount > 0) {
+            WAVLNode node = findNode(pendingKeys[--pendingCount], root);
+            node.state.pending = false; // keys are unique on the stack, and stay in the tree until popped
+            if (node.isDeleted()) {
+                removeNode(node);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Rebuilds the tree from its live nodes, dropping all tombstones, as a perfectly balanced
+     * tree whose ranks are the heights of the nodes, see rebuildFrom.<br>
      *
-     * @param node      WAVL node object where there is a violation of the WAVL tree invariants
-     * @return          number of promotions, rotations and double rotations performed
-     *                  during the rebalancing process
+     * This method runs in O(n) time.
      */
-   private int deletionRebalance(WAVLNode node) {
-       int counter = 0;
-       WAVLNode curr = node;
+    @Override
+    protected void rebuild() {
+        WAVLNode[] live = new WAVLNode[size()]; // at least the number of live nodes
+        WAVLNode[] dead = new WAVLNode[tombstones];
+        int j = 0;
+        int d = 0;
+        for (WAVLNode curr = nodeWithMinKey(root); curr != null; curr = successorNode(curr)) {
+            if (curr.isDeleted()) {
+                dead[d++] = curr;
+            } else {
+                if (curr.state != null)
+                    curr.state.pending = false;
+                live[j++] = curr;
+            }
+        }
 
-       if (curr == null) { // Empty tree
-           return 0;
-       }
+        /* The tombstones are only detached after the walk, which follows their links */
+        for (WAVLNode node : dead) {
+            forgetCached(node.key);
+            recycleNode(node);
+        }
+        rebuildFrom(live, j);
+        tombstones = 0;
+        pendingCount = 0;
+        finger = null;
+        lastInserted = null;
+    }
 
-       int[] currVType = vertexType(node);
+    /** Ranges of at most this many nodes are built by a single task of buildParallel */
+    private static final int PARALLEL_BUILD_THRESHOLD = 1 << 13;
 
-       // Check if offender is a leaf with non zero rank
-       if (curr.isLeaf() && curr.rank != 0){
-           curr.rank = 0;
-           counter++;
-           curr = curr.parent;
-           if (curr != null)
-               currVType = vertexType(curr);
-       }
+    /**
+     * Builds a perfectly balanced subtree as buildBalanced does, building the two halves of
+     * large ranges in parallel. The halves are disjoint, so the tasks share no nodes but the
+     * root of the range, which is completed after both halves are joined.
+     */
+    private final class BuildTask extends RecursiveTask<WAVLNode> {
+        private static final long serialVersionUID = 1L;
+        private final WAVLNode[] nodes;
+        private final int from;
+        private final int to;
+        private final WAVLNode parent;
+
+        private BuildTask(WAVLNode[] nodes, int from, int to, WAVLNode parent) {
+            this.nodes = nodes;
+            this.from = from;
+            this.to = to;
+            this.parent = parent;
+        }
 
-       while (curr != null && !isValidType(currVType)) {
-           counter++;
-
-           if (currVType[0] + currVType[1] == 5) { // (3,2), (2,3) Demotion Cases
-               curr.rank--;
-               curr = curr.parent;
-               if (curr != null)
-                    currVType = vertexType(curr);
-               continue;
-           }
-
-           if (currVType[0] == 3) { // Rolling up from the right
-
-               int[] childVType = vertexType(curr.right);
-
-               if (currVType[1] == 1 && childVType[0] + childVType[1] == 4) { // child is (2,2) - Double demote
-                   curr.rank--;
-                   curr.right.rank--;
-                   counter += 2; // Two demotions
-                   curr = curr.parent;
-                   if (curr != null)
-                        currVType = vertexType(curr);
-               }
-               else if (childVType[1] == 1){ // child is (1,1) or (2,1)
-                   counter += rotateLeft(curr, false);
-                   return counter;
-
-               }
-
-               else {
-                   assert (childVType[0] == 1 && childVType[1] == 2);
-                   counter += doubleRotateLeft(curr, false);
-                   return counter;
-               }
-
-           } else if (currVType[1] == 3) { // Rolling up from the left
-
-               int[] childVType = vertexType(curr.left);
-
-               if (currVType[0] == 1 && childVType[0] + childVType[1] == 4) { // child is (2,2) - Double demote
-                   curr.rank--;
-                   curr.left.rank--;
-                   counter += 2;
-                   curr = curr.parent;
-                   if (curr != null)
-                        currVType = vertexType(curr);
-               }
-
-               else if (childVType[0] == 1) { // child is (1,1) or (1,2)
-                   counter += rotateRight(curr, false);
-                   return counter;
-               }
-
-               else {
-                   assert (childVType[0] == 2 && childVType[1] == 1);
-                   counter += doubleRotateRight(curr, false);
-                   return counter;
-               }
-           }
-       }
-       return counter;
-   }
+        @Override
+        protected WAVLNode compute() {
+            if (to - from <= PARALLEL_BUILD_THRESHOLD)
+                return buildBalanced(nodes, from, to, parent);
+            int mid = (from + to) >>> 1;
+            WAVLNode node = nodes[mid];
+            node.parent = parent;
+            BuildTask left = new BuildTask(nodes, from, mid, node);
+            left.fork();
+            node.right = new BuildTask(nodes, mid + 1, to, node).compute();
+            node.left = left.join();
+            return completeBuilt(node);
+        }
+    }
 
+    /**
+     * Creates a tree holding the provided keys and values, in any order, using all available
+     * cores. If a key appears more than once, the tree keeps its first value, as inserting the
+     * pairs one by one would.<br>
+     *
+     * The pairs are sorted with Arrays.parallelSort, as longs packing each key above its
+     * index, so equal keys are ordered by their position and the first of each is kept. The
+     * nodes are then created in parallel, and linked into a perfectly balanced tree by
+     * fork-join tasks, each building one half of its range, as rebuild does. The ranks are the
+     * heights of the nodes, so the result is a valid WAVL tree without any rebalancing, and
+     * the tree is returned in the default configuration.<br>
+     *
+     * The build takes O(n) work, as each node is linked and completed once, and O(n / p + logn)
+     * time on p cores. The sort adds O(nlogn) work, and removing the duplicates a sequential
+     * O(n) pass.
+     *
+     * @param keys      the keys of the tree, in any order
+     * @param values    the values of the keys, values[j] being the value of keys[j]
+     * @return          a new tree holding the pairs
+     * @throws IllegalArgumentException     if the arrays have different lengths
+     */
+    public static WAVLTree buildParallel(int[] keys, String[] values) {
+        if (keys.length != values.length)
+            throw new IllegalArgumentException(keys.length + " keys but " + values.length + " values");
+        long[] packed = new long[keys.length];
+        Arrays.parallelSetAll(packed, j -> (long) keys[j] << 32 | j);
+        Arrays.parallelSort(packed);
+
+        int distinct = 0;
+        for (int j = 0; j < packed.length; j++) {
+            if (distinct == 0 || packed[j] >> 32 != packed[distinct - 1] >> 32)
+                packed[distinct++] = packed[j];
+        }
 
+        WAVLTree tree = new WAVLTree();
+        WAVLNode[] nodes = new WAVLNode[distinct];
+        Arrays.parallelSetAll(nodes, j -> tree.new WAVLNode((int) (packed[j] >> 32), values[(int) packed[j]]));
+        tree.root = ForkJoinPool.commonPool().invoke(tree.new BuildTask(nodes, 0, distinct, null));
+        return tree;
+    }
 
     /**
-     * Deletes a leaf node by placing a null value in its parent's appropriate child field,
-     * and a null value in its parent field. Returns the deleted node's parent. <br>
+     * Removes a node from the tree, as described in delete, and rebalances the tree under
+     * its rank policy. The entry's cache slot, deadline and use list are dropped, and the
+     * node object is recycled.
      *
-     * That way, it becomes an isolated node object. With no reference left to it, the object
-     * is eventually removed by the garbage collector.
+     * @param node      the node to be removed, live or a tombstone
+     * @return          the number of rebalancing operations performed
+     */
+    private int removeNode(WAVLNode node) {
+        forgetCached(node.key);
+        unschedule(node);
+        forgetUses(node);
+        if (node.isDeleted())
+            tombstones--;
+
+        /* The node's parent stays in the tree, so the finger moves there */
+        finger = node.parent;
+        int counter = remove(node);
+        recycleNode(node);
+        return counter;
+    }
+
+    /**
+     * Returns a node object with the provided key and value, which is not linked to any
+     * other node. The node is taken from the free list of recycled nodes if it is not empty,
+     * and allocated otherwise.<br>
      *
-     * This method runs in O(1) time, as it only involves resetting a fixed number of pointers.
+     * This method runs in O(1) time.
      *
-     * @param node      leaf to be removed from the tree
-     * @return          its parent node, or null in case the node deleted was the root
-     *                  of a size 1 tree
+     * @param k     the key of the node
+     * @param i     the info of the node
+     * @return      a detached node with key k and value i
      */
-    private WAVLNode deleteLeaf(WAVLNode node) {
-
-        WAVLNode parent = node.parent;
-
-        if (parent != null) {
-            if (node.key >= parent.key) { // remove right child
-                parent.right = null;
-            } else {
-                parent.left = null;
-            }
-            node.parent = null;
-        } else if (this.root == node) {
-            this.root = null;
+    private WAVLNode obtainNode(int k, String i) {
+        WAVLNode node = freeNodes;
+        if (node == null) {
+            node = multiset ? new MultisetNode(k, i) : new WAVLNode(k, i);
+        } else {
+            freeNodes = node.right;
+            freeCount--;
+            node.key = k;
+            node.value = i;
+            node.right = null;
         }
+        if (augmentation != null)
+            stateOf(node).aggregate = augmentation.lift(k, i);
+        return node;
+    }
 
-        return parent;
+    /**
+     * Places a node detached from the tree on the free list, if the node pool is not full.
+     * The value reference is cleared so that the pool does not keep values alive.<br>
+     *
+     * This method runs in O(1) time.
+     *
+     * @param node      a node that has been removed from the tree
+     */
+    private void recycleNode(WAVLNode node) {
+        if (freeCount >= nodePoolCapacity)
+            return;
+
+        node.value = null;
+        if (node.state != null)
+            node.state.clear();
+        if (node instanceof MultisetNode)
+            ((MultisetNode) node).count = 1;
+        node.left = null;
+        node.parent = null;
+        node.rank = 0;
+        node.size = 1;
+        node.right = freeNodes;
+        freeNodes = node;
+        freeCount++;
     }
 
 
@@ -771,15 +2025,20 @@ public class WAVLTree implements Iterable {
      * of the subtree whose root is the node passed to the function.<br>
      *
      * This function runs in O(h) = O(logn) time as it traverses a path from the root
-     * to the deepest leaf in the worst case.
+     * to the deepest leaf in the worst case, plus a Successor (Predecessor) call for each
+     * tombstone skipped.
      *
      * @return      the value associated with the minimal key in the tree
      */
    public String min() {
-       if (root == null) {
+       if (empty()) {
            return null;
        }
-       return nodeWithMinKey(root).value;
+       WAVLNode curr = nodeWithMinKey(root);
+       while (curr.isDeleted()) {
+           curr = successorNode(curr);
+       }
+       return curr.value;
    }
 
     /**
@@ -815,18 +2074,22 @@ public class WAVLTree implements Iterable {
      * to the right, then returns the node at the end of it.<br>
      *
      * This function runs in O(h) = O(logn) time as it traverses a path from the root
-     * to the deepest leaf in the worst case.
+     * to the deepest leaf in the worst case, plus a Successor (Predecessor) call for each
+     * tombstone skipped.
      *
      * @return      the value associated with the maximal key in the tree
      */
    public String max() {
-       if (root == null)
+       if (empty())
            return null;
 
        WAVLNode curr = root;
        while (curr.right != null) {
            curr = curr.right;
        }
+       while (curr.isDeleted()) {
+           curr = predecessorNode(curr);
+       }
        return curr.value;
    }
 
@@ -846,6 +2109,8 @@ public class WAVLTree implements Iterable {
      * The iterator object maintains two fields: a node curr, the node most recently returned
      * by next(), and a counter, which counts the number of calls to next() and allows to
      * determine whether the traversal is complete, and consequently if hasNext() is true or false.
+     * In a multiset, each node is returned once per occurrence of its key, which the field
+     * repeats counts.
      *
      */
 
@@ -854,6 +2119,8 @@ public class WAVLTree implements Iterable {
         private int counter = 0;
         /** Last node returned by the iterator */
         private WAVLNode curr;
+        /** Number of times curr has been returned */
+        private int repeats;
 
         private WAVLIterator() {
             this.curr = null;
@@ -870,46 +2137,25 @@ public class WAVLTree implements Iterable {
         }
 
         /**
-         * Returns the next node in an in-order traversal of the tree.<br>
-         *
-         * This function implements the Successor algorithm of the BST.<br>
+         * Returns the next node in an in-order traversal of the tree, skipping tombstones.<br>
          *
          * The function runs in O(h) = O(logn) time, as it traverses a path from/to the
-         * root to/from the deepest leaf in the worst case.
+         * root to/from the deepest leaf in the worst case, for each node passed.
          *
          * @return      the successor of the current node
          */
 
         @Override
         public WAVLNode next() {
-            /* If this is the first next call, set curr to be the minimal node in the tree */
-            if (curr == null && counter == 0) {
-                curr = nodeWithMinKey(root);
-            }
-
-            else {
-                assert (curr != null);
-            /* Case 1: The current node's successor is in its subtree. In that case, it's
-             * going to be at the node with the smallest key in curr's right subtree. */
-
-                if (curr.right != null) {
-                    curr = nodeWithMinKey(curr.right);
-                }
-
-            /* Case 2: The current node's successor is not in its subtree. In that case,
-            * it's going to be the lowest ancestor of curr, whose left child is also an
-            * ancestor of curr. */
-
-                else {
-                    WAVLNode parent = curr.parent;
-                    while (parent != null && curr == parent.right) {
-                        curr = parent;
-                        parent = parent.parent;
-                    }
-                    curr = parent;
-                }
+            if (curr == null || repeats == curr.getCount()) {
+                do {
+                    /* If this is the first next call, set curr to be the minimal node in the tree */
+                    curr = (curr == null && counter == 0) ? nodeWithMinKey(root) : successorNode(curr);
+                } while (curr.isDeleted());
+                repeats = 0;
             }
 
+            repeats++;
             counter++;
             return curr;
         }
@@ -965,31 +2211,385 @@ public class WAVLTree implements Iterable {
 
 
     /**
-     * Returns the info of the i'th greatest key in the tree, or null if i = 0 or if there
-     * are less than i keys in the tree. <br>
+     * Returns the info of the i'th smallest key in the tree, or null if i is not between 1
+     * and the size of the tree. In a multiset, every occurrence of a key counts as a position
+     * of its own.<br>
      *
-     * Uses the WAVLIterator and finds the required node by performing i calls to next. <br>
+     * The required node is found by a descent from the root guided by the subtree sizes: if
+     * i is at most the size of the left subtree, the node is there, if it falls within the
+     * occurrences of the current node, it is the current node, and otherwise it is in the
+     * right subtree, at i minus the positions passed.<br>
      *
-     * The function runs in O(nlogn) in time as in the worst case, as it performs n consecutive
-     * Successor calls with worst case runtime complexity of O(logn) each. However, in HW2 we proved
-     * that a tighter complexity bound would be O(n+h) = O(n+logn) = O(n).<br>
+     * The function runs in O(h) = O(logn) time, as it traverses a path from the root to the
+     * deepest leaf in the worst case.
      *
-     * @param i         the number of key to be found on the i'th step of an in-order
-     *                  walk of the tree
-     * @return          the value associated with the i'th greatest key in the tree
+     * @param i         the position of the key in the sorted order, starting at 1
+     * @return          the value associated with the i'th smallest key in the tree
      */
-
     public String select(int i) {
-        if (root == null || i > root.getSubtreeSize() || i == 0)
+        if (i < 1 || i > size())
             return null;
 
-        WAVLNode curr = null;
-        WAVLIterator iter = new WAVLIterator();
-        for (int j = 0; j < i; j++) {
-            curr = iter.next();
+        WAVLNode curr = root;
+        while (true) {
+            int leftSize = curr.left == null ? 0 : curr.left.size;
+            if (i <= leftSize) {
+                curr = curr.left;
+            } else if (i <= leftSize + curr.ownSize()) {
+                return curr.value;
+            } else {
+                i -= leftSize + curr.ownSize();
+                curr = curr.right;
+            }
         }
-        return curr == null ? null : curr.value;
-   }
+    }
+
+    /**
+     * Returns the number of keys in the tree which are smaller than k, counting every
+     * occurrence in a multiset. This is the position before which k is or would be in the
+     * sorted order, so select(rank(k) + 1) is the value of k if it is in the tree.<br>
+     *
+     * The function runs in O(h) = O(logn) time, as it descends towards k and adds the size
+     * of every subtree it passes on the left.
+     *
+     * @param k         a key, not necessarily in the tree
+     * @return          the number of keys smaller than k
+     */
+    public int rank(int k) {
+        int rank = 0;
+        WAVLNode curr = root;
+        while (curr != null) {
+            if (k <= curr.key) {
+                curr = curr.left;
+            } else {
+                rank += (curr.left == null ? 0 : curr.left.size) + curr.ownSize();
+                curr = curr.right;
+            }
+        }
+        return rank;
+    }
+
+    /**
+     * Returns the number of occurrences of key k in the tree, which is at most 1 unless the
+     * tree is a multiset. This function runs in O(h) = O(logn) time.
+     *
+     * @param k         the key being counted
+     * @return          the number of occurrences of k
+     */
+    public int count(int k) {
+        WAVLNode node = findNode(k, root);
+        return node == null ? 0 : node.ownSize();
+    }
+
+    /**
+     * Returns an immutable, read-optimized index of the tree's keys and values, which
+     * supports search, floor, ceiling, rank and select. The index is a snapshot: later changes
+     * to the tree are not reflected in it.<br>
+     *
+     * The index of a multiset keeps each key once with its number of occurrences, so that its
+     * size, rank and select count occurrences as the tree does. Tombstones are left out.<br>
+     *
+     * The function runs in O(n) time, as it performs an in-order walk of the nodes of the tree
+     * and then lays the keys out in the index.
+     *
+     * @return      a WAVLIndex of the current keys and values of the tree
+     */
+    public WAVLIndex freezeToIndex() {
+        int[] keys = new int[size()];
+        String[] values = new String[keys.length];
+        int[] counts = multiset ? new int[keys.length] : null;
+        int distinct = 0;
+
+        for (WAVLNode node = nodeWithMinKey(root); node != null; node = successorNode(node)) {
+            if (node.isDeleted())
+                continue;
+            keys[distinct] = node.key;
+            values[distinct] = node.value;
+            if (counts != null)
+                counts[distinct] = node.getCount();
+            distinct++;
+        }
+        if (counts != null && distinct < keys.length) { // only a multiset has fewer nodes than entries
+            keys = Arrays.copyOf(keys, distinct);
+            values = Arrays.copyOf(values, distinct);
+            counts = Arrays.copyOf(counts, distinct);
+        }
+        return new WAVLIndex(keys, values, counts);
+    }
+
+    /**
+     * Computes shape statistics of the tree: its height and maximal rank, a histogram of
+     * the vertex types, the average and 99th percentile node depth and the number of nodes
+     * of each rank.<br>
+     *
+     * The histograms describe the live nodes, one for each key in the tree. Tombstones are
+     * reported by their number only, although they count towards the height of the tree.<br>
+     *
+     * The tree is traversed in a single iterative pre-order pass, using an explicit stack
+     * instead of recursion, so that it is safe to call on very large trees. Since every rank
+     * difference is at least 1, the height of the tree is bounded by the rank of the root,
+     * and the stack never holds more than h+1 nodes.<br>
+     *
+     * The function runs in O(n) time.
+     *
+     * @return      a TreeStats object describing the shape of the tree
+     */
+    public TreeStats stats() {
+        TreeStats stats = new TreeStats(size(), tombstones, false);
+        if (root == null)
+            return stats;
+
+        WAVLNode[] nodes = new WAVLNode[root.rank + 2];
+        int[] depths = new int[root.rank + 2];
+        int top = 0;
+        nodes[0] = root;
+        depths[0] = 0;
+
+        while (top >= 0) {
+            WAVLNode curr = nodes[top];
+            int depth = depths[top];
+            top--;
+
+            if (curr.isDeleted())
+                stats.height = Math.max(stats.height, depth);
+            else
+                stats.record(curr, depth, 1);
+
+            /* Stack may only outgrow the root's rank if the rank invariants are broken, which
+             * is exactly what the statistics are meant to detect, so we grow it instead of failing */
+            if (top + 2 >= nodes.length) {
+                nodes = Arrays.copyOf(nodes, nodes.length * 2);
+                depths = Arrays.copyOf(depths, depths.length * 2);
+            }
+            if (curr.right != null) {
+                nodes[++top] = curr.right;
+                depths[top] = depth + 1;
+            }
+            if (curr.left != null) {
+                nodes[++top] = curr.left;
+                depths[top] = depth + 1;
+            }
+        }
+        stats.maxRank = root.rank;
+
+        stats.finish(1);
+        return stats;
+    }
+
+    /**
+     * Estimates the shape statistics of the tree by sampling, visiting at most nodeBudget
+     * nodes.<br>
+     *
+     * Each sample picks a uniformly random position i in the in-order walk of the tree and
+     * descends from the root to the i'th node using the subtree sizes, recording the node
+     * reached. Samples are drawn until the next descent could exceed the budget. In a multiset a
+     * node is reached in proportion to the number of occurrences of its key, so it is recorded
+     * with the inverse of that number as its weight, and each node is counted once in
+     * expectation. The histograms thus describe the same live nodes as those of stats(), scaled
+     * up from the sample by the number of entries per sample, while the
+     * numbers of entries and tombstones are exact. The height reported is the deepest node
+     * sampled, and the maximal rank is the exact rank of the root. If the budget allows
+     * visiting every node, tombstones included, an exact pass is made instead.<br>
+     *
+     * The function runs in O(nodeBudget) time.
+     *
+     * @param nodeBudget    the maximal number of nodes visited
+     * @param seed          seed of the random positions sampled, for reproducible results
+     * @return              a TreeStats object estimating the shape of the tree
+     */
+    public TreeStats stats(long nodeBudget, long seed) {
+        int n = size();
+        if (root == null || nodeBudget >= (long) n + tombstones) // at least the number of nodes
+            return stats();
+
+        TreeStats stats = new TreeStats(n, tombstones, true);
+        Random random = new Random(seed);
+        long visited = 0;
+        long samples = 0;
+
+        /* A descent visits at most h+1 <= rank(root)+1 nodes, and there is none if every node
+         * is a tombstone */
+        while (n > 0 && visited + root.rank + 1 <= nodeBudget) {
+            int i = random.nextInt(n) + 1;
+            WAVLNode curr = root;
+            int depth = 0;
+            while (true) {
+                visited++;
+                int leftSize = curr.left == null ? 0 : curr.left.size;
+                int own = curr.ownSize();
+                if (i > leftSize && i <= leftSize + own)
+                    break;
+                if (i <= leftSize) {
+                    curr = curr.left;
+                } else {
+                    i -= leftSize + own;
+                    curr = curr.right;
+                }
+                depth++;
+            }
+            stats.record(curr, depth, 1.0 / curr.getCount());
+            samples++;
+        }
+        stats.maxRank = root.rank;
+
+        stats.finish(samples == 0 ? 1 : (double) n / samples);
+        return stats;
+    }
+
+    /**
+     * Shape statistics of a WAVL tree, produced by WAVLTree.stats. <br>
+     *
+     * Vertex types are counted without regard to orientation, so (1,2) and (2,1) nodes are
+     * both counted as (1,2) nodes. Nodes whose type is not allowed by the WAVL rules, including
+     * leaves with a non-zero rank, are counted as invalid.<br>
+     *
+     * The histograms and the node count describe the live nodes of the tree, which hold one
+     * key each, and leave out tombstones. When the statistics are sampled, these are estimates
+     * scaled up to the size of the tree and the height is a lower bound, while the numbers of
+     * entries and tombstones are exact.
+     */
+    public static class TreeStats {
+        private final int entryCount;
+        private final int tombstones;
+        private final boolean sampled;
+        private double nodeCount;
+        private int height;
+        private int maxRank;
+        private double type11;
+        private double type12;
+        private double type22;
+        private double invalid;
+        private double depthSum;
+        private double weightSum;
+        private int p99Depth;
+        private double[] nodesByRank = new double[8];
+        private double[] nodesByDepth = new double[8];
+
+        private TreeStats(int entryCount, int tombstones, boolean sampled) {
+            this.entryCount = entryCount;
+            this.tombstones = tombstones;
+            this.sampled = sampled;
+        }
+
+        /**
+         * Accounts for a single node visited at the given depth.
+         *
+         * @param node      the node visited
+         * @param depth     the depth of the node, where the root is at depth 0
+         * @param weight    the number of nodes this node stands for
+         */
+        private void record(WAVLNode node, int depth, double weight) {
+            int leftDiff = node.rank - (node.left == null ? -1 : node.left.rank);
+            int rightDiff = node.rank - (node.right == null ? -1 : node.right.rank);
+            int smaller = Math.min(leftDiff, rightDiff);
+            int larger = Math.max(leftDiff, rightDiff);
+
+            if (node.isLeaf() && node.rank != 0)
+                invalid += weight;
+            else if (smaller == 1 && larger == 1)
+                type11 += weight;
+            else if (smaller == 1 && larger == 2)
+                type12 += weight;
+            else if (smaller == 2 && larger == 2)
+                type22 += weight;
+            else
+                invalid += weight;
+
+            height = Math.max(height, depth);
+            maxRank = Math.max(maxRank, node.rank);
+            depthSum += depth * weight;
+            weightSum += weight;
+
+            if (node.rank >= 0) {
+                nodesByRank = ensureLength(nodesByRank, node.rank);
+                nodesByRank[node.rank] += weight;
+            }
+            nodesByDepth = ensureLength(nodesByDepth, depth);
+            nodesByDepth[depth] += weight;
+        }
+
+        /**
+         * Scales the counts collected by the given factor and computes the depth percentile.
+         *
+         * @param scale     the number of nodes in the tree each recorded node stands for
+         */
+        private void finish(double scale) {
+            type11 *= scale;
+            type12 *= scale;
+            type22 *= scale;
+            invalid *= scale;
+            nodeCount = weightSum * scale;
+            nodesByRank = Arrays.copyOf(nodesByRank, maxRank + 1);
+            nodesByDepth = Arrays.copyOf(nodesByDepth, height + 1);
+
+            double seen = 0;
+            for (int d = 0; d < nodesByDepth.length; d++) {
+                seen += nodesByDepth[d];
+                nodesByDepth[d] *= scale;
+                if (seen < 0.99 * weightSum)
+                    p99Depth = d + 1;
+            }
+            for (int r = 0; r < nodesByRank.length; r++) {
+                nodesByRank[r] *= scale;
+            }
+        }
+
+        private static double[] ensureLength(double[] arr, int index) {
+            if (index < arr.length)
+                return arr;
+            return Arrays.copyOf(arr, Math.max(index + 1, arr.length * 2));
+        }
+
+        /** @return     the number of live nodes in the tree, which the histograms describe */
+        public double getNodeCount() { return nodeCount; }
+
+        /** @return     the number of entries in the tree, as returned by size */
+        public int getEntryCount() { return entryCount; }
+
+        /** @return     the number of tombstones in the tree, which are not in the histograms */
+        public int getTombstones() { return tombstones; }
+
+        /** @return     true if the statistics were estimated from a sample of the nodes */
+        public boolean isSampled() { return sampled; }
+
+        /** @return     the number of edges on the longest path from the root to a leaf */
+        public int getHeight() { return height; }
+
+        /** @return     the maximal rank of a node, which is the rank of the root */
+        public int getMaxRank() { return maxRank; }
+
+        /** @return     the number of (1,1) nodes, including leaves */
+        public double getType11() { return type11; }
+
+        /** @return     the number of (1,2) and (2,1) nodes */
+        public double getType12() { return type12; }
+
+        /** @return     the number of (2,2) nodes */
+        public double getType22() { return type22; }
+
+        /** @return     the number of nodes violating the WAVL rank rules */
+        public double getInvalid() { return invalid; }
+
+        /** @return     the average depth of a node */
+        public double getAverageDepth() { return weightSum == 0 ? 0 : depthSum / weightSum; }
+
+        /** @return     the smallest depth d such that at least 99% of the nodes are at depth d or less */
+        public int getP99Depth() { return p99Depth; }
+
+        /** @return     array whose r'th cell holds the number of nodes of rank r */
+        public double[] getNodesByRank() { return nodesByRank.clone(); }
+
+        /** @return     array whose d'th cell holds the number of nodes at depth d */
+        public double[] getNodesByDepth() { return nodesByDepth.clone(); }
+
+        @Override
+        public String toString() {
+            return String.format("nodes=%.0f%s entries=%d tombstones=%d height=%d maxRank=%d " +
+                            "(1,1)=%.0f (1,2)=%.0f (2,2)=%.0f invalid=%.0f avgDepth=%.2f p99Depth=%d",
+                    nodeCount, sampled ? " (sampled)" : "", entryCount, tombstones, height, maxRank, type11, type12,
+                    type22, invalid, getAverageDepth(), p99Depth);
+        }
+    }
 
     /**
      * WAVL node object represents a vertex in the tree. Each key node object contains
@@ -997,17 +2597,83 @@ public class WAVLTree implements Iterable {
      * property, and a string value.<br>
      *
      * The tree structure is doubly linked, hence each node knows its parent as well as
-     * its children.
+     * its children. The links, the rank and the subtree size are those of
+     * AbstractWAVLTree.Node, whose getters return them.
+     */
+    /**
+     * The state a node keeps for the optional modes of the tree, apart from the node itself,
+     * so that a node only takes its key, value, links, rank and size unless a mode needs more.
+     * It is allocated the first time a mode needs it for the node: for every node of an
+     * augmented tree, for a node deleted lazily, and as a UseLink for every entry of a tree
+     * bounded by a capacity. A recycled node keeps its state, cleared, for its next entry.
      */
-    public class WAVLNode {
+    private static class NodeState {
+        /** Aggregate of the subtree under the tree's augmentation, or null if there is none */
+        private Object aggregate;
+        /** Whether the node is a tombstone, and whether its key awaits compaction */
+        private boolean deleted;
+        private boolean pending;
+
+        private NodeState() {
+        }
+
+        /** Creates a copy of another state, or a cleared state if it is null */
+        private NodeState(NodeState other) {
+            if (other != null) {
+                aggregate = other.aggregate;
+                deleted = other.deleted;
+                pending = other.pending;
+            }
+        }
+
+        /** Resets the state to that of a new node */
+        void clear() {
+            aggregate = null;
+            deleted = false;
+            pending = false;
+        }
+
+        /** Returns true if the state holds nothing a new node would not */
+        private boolean isClear() {
+            return aggregate == null && !deleted && !pending;
+        }
+    }
+
+    /**
+     * The state of a node of a tree bounded by a capacity: a node of the intrusive use list of
+     * its entry, linked to the entries used just before and after it. Only allocated while the
+     * tree is bounded, when the entry is first linked into a list.
+     */
+    private static final class UseLink extends NodeState {
+        /** Use list of the entry and its neighbours in it, or null if it is in none */
+        private UseList list;
+        private WAVLNode older;
+        private WAVLNode newer;
+
+        /** Creates the use links of a node, keeping the rest of its current state */
+        private UseLink(NodeState state) {
+            super(state);
+        }
+
+        @Override
+        void clear() {
+            super.clear();
+            clearLinks();
+        }
+
+        private void clearLinks() {
+            list = null;
+            older = null;
+            newer = null;
+        }
+    }
+
+    public class WAVLNode extends AbstractWAVLTree.Node<WAVLNode> {
 
         private int key;
         private String value;
-        private WAVLNode left;
-        private WAVLNode right;
-        private WAVLNode parent;
-        private int subtreeSize;
-        private int rank;
+        /** State of the optional modes which need it, or null if none of them has so far */
+        private NodeState state;
 
         /**
          * Constructor for the WAVLNode class. Creates new node item with provided key
@@ -1020,40 +2686,6 @@ public class WAVLTree implements Iterable {
         private WAVLNode(int key, String value) {
             this.key = key;
             this.value = value;
-            this.right = null;
-            this.left = null;
-            this.parent = null;
-            this.subtreeSize = 1;
-        }
-
-        /**
-         * Overloaded constructor for the WAVLNode class, with an additional parent node
-         * parameter.<br>
-         *
-         * Used in the insertion process, this constructor allows to place a new node
-         * as the child of an existing node, and update its ancestors subtree sizes after
-         * the insertion. <br>
-         *
-         * The function runs in O(h) = O(logn) time, as its runtime complexity is determined
-         * by the subtree size update process - the process itself runs in O(1)
-         * time as it only involves a fixed number of pointers. The subtree size update
-         * traverses a path from the deepest leaf in the tree to the root in the worst case,
-         * hence it runs in O(logn) time.
-         *
-         * @param key       the new node's key
-         * @param value     the new node's info
-         * @param parent    the new node's parent
-         */
-        private WAVLNode(int key, String value, WAVLNode parent) {
-            this(key, value);
-            this.rank = 0;
-            if (key > parent.key)
-                parent.setRightChild(this);
-            else
-                parent.setLeftChild(this);
-
-            parent.updateSubtreeSize();
-
         }
 
         /**
@@ -1076,25 +2708,48 @@ public class WAVLTree implements Iterable {
         }
 
         /**
-         * Retrieves the left child of a specific node object. <br>
+         * Retrieves the aggregate of the subtree of a specific node object, under the
+         * augmentation set on the tree. <br>
          *
-         * @return      the node object set as the left child of this node,
-         *              or null if node does not have a left child.
+         * @return      the aggregate of the node's subtree, or null if the tree is not augmented
          */
-        public WAVLNode getLeft()
-        {
-            return left;
+        public Object getAggregate() {
+            return state == null ? null : state.aggregate;
         }
 
         /**
-         * Retrieves the right child of a specific node object. <br>
+         * Returns true if the node is a tombstone left by a lazy deletion. <br>
          *
-         * @return      the node object set as the right child of this node,
-         *              or null if node does not have a right child.
+         * @return      true if the node's entry has been deleted
          */
-        public WAVLNode getRight()
-        {
-            return right;
+        public boolean isDeleted() {
+            return state != null && state.deleted;
+        }
+
+        /**
+         * Returns the tree the node belongs to, for checking handles. <br>
+         */
+        private WAVLTree tree() {
+            return WAVLTree.this;
+        }
+
+        /**
+         * Retrieves the number of occurrences of the node's key, which is 1 unless the tree
+         * is a multiset. <br>
+         *
+         * @return      the occurrence count of the key, whether or not the node is a tombstone
+         */
+        public int getCount() {
+            return 1;
+        }
+
+        /**
+         * Returns the number of positions the node's own entry takes in the sorted order:
+         * its occurrence count, or 0 for a tombstone. This is the node's weight in the
+         * subtree sizes. <br>
+         */
+        private int ownSize() {
+            return isDeleted() ? 0 : getCount();
         }
 
         /**
@@ -1121,136 +2776,23 @@ public class WAVLTree implements Iterable {
         {
             return (left == null && right == null);
         }
+    }
 
-        /**
-         * Returns the number of nodes in the subtree of which this node is the root. <br>
-         *
-         * This function runs in O(1) time as it only involves accessing a field.
-         *
-         * @return          the number of node in this nodes subtree: counting itself,
-         *                  and the number of nodes in its left and right subtrees.
-         */
-        public int getSubtreeSize()
-        {
-            return subtreeSize;
-        }
-
-        /**
-         * Sets the right child of a node to be the node provided, and updates subtree
-         * sizes affected by the change. <br>
-         *
-         * Updates the parent field for the child node as well, to maintain the doubly
-         * linked structure of the tree. <br>
-         *
-         * The function runs in O(h) = O(logn) time, as its runtime complexity is determined
-         * by the subtree size update process - the setting process itself runs in O(1)
-         * time as it only involves a fixed number of pointers. The subtree size update
-         * traverses a path from the deepest leaf in the tree to the root in the worst case,
-         * hence it runs in O(logn) time.
-         *
-         * @param rChild        node to be set as the right child, or null value
-         */
-        private void setRightChild(WAVLNode rChild) {
-            this.right = rChild;
-            if (rChild != null) {
-                rChild.parent = this;
-            }
-
-            this.updateSubtreeSize();
-        }
-
-        /**
-         * Sets the left child of a node to be the node provided, and updates subtree
-         * sizes affected by the change.<br>
-         *
-         * Updates the parent field for the child node as well, to maintain the doubly
-         * linked structure of the tree. <br>
-         *
-         * The function runs in O(h) = O(logn) time, as its runtime complexity is determined
-         * by the subtree size update process - the setting process itself runs in O(1)
-         * time as it only involves a fixed number of pointers. The subtree size update
-         * traverses a path from the deepest leaf in the tree to the root in the worst case,
-         * hence it runs in O(logn) time.
-         *
-         * @param lChild        node to be set as the right child, or null value
-         */
-        private void setLeftChild(WAVLNode lChild) {
-
-            this.left = lChild;
-            if (lChild != null) {
-                lChild.parent = this;
-            }
-
-            this.updateSubtreeSize();
-        }
-
-        /**
-         * Updates the subtree size field for the node based on the subtree sizes of its
-         * children. Afterwards it updates the subtree sizes for the node's ancestors
-         * recursively. <br>
-         *
-         * The function runs in O(h) = O(logn) time, as it traverses a path from the deepest
-         * leaf in the tree to the root in the worst case.
-         */
-        private void updateSubtreeSize() {
-
-            this.subtreeSize = 1 +
-                    (this.right == null ? 0 : this.right.subtreeSize) +
-                    (this.left == null ? 0 : this.left.subtreeSize);
+    /**
+     * A node of a multiset, which counts the occurrences of its key. Only a multiset creates
+     * them, so the nodes of other trees do not take a count field.
+     */
+    private final class MultisetNode extends WAVLNode {
+        /** Number of occurrences of the key */
+        private int count = 1;
 
-            if (this.parent != null) {
-                this.parent.updateSubtreeSize();
-            }
+        private MultisetNode(int key, String value) {
+            super(key, value);
         }
 
-
-        /**
-         * Replaces a node with one of its descendants, and updates the affected subtree tree sizes
-         * after the change. <br>
-         *
-         * This methods takes care of the case where the node replaced is the root of the entire tree.<br>
-         *
-         * If the node replaced is the root of the tree, the replacing node's parent field is
-         * nullified, and it's placed as the root node of the WAVL tree object. Otherwise, it's
-         * set to be the appropriate child of the parent of the replaced node, according to how its key
-         * relates to the parent's key. <br>
-         *
-         * The function runs in O(h) = O(logn) time, as its runtime complexity is determined
-         * by the subtree size update process - the replacement process itself runs in O(1)
-         * time as it only involves a fixed number of pointers. The subtree size update
-         * traverses a path from the deepest leaf in the tree to the root in the worst case,
-         * hence it runs in O(logn) time.
-         *
-         * @param replacer       the node to take this the current node's place
-         */
-        private void replaceWith(WAVLNode replacer) {
-
-            WAVLNode parent = this.parent;
-            WAVLNode repParent = replacer.parent;
-
-            /* Step 1: Remove replacer as child of its parent */
-            if (repParent != null) {
-                if (replacer.key > repParent.key)
-                    repParent.right = null;
-                else
-                    repParent.left = null;
-
-                repParent.updateSubtreeSize();
-            }
-
-            /* Step 2: Set replacer as child of the replaced node, doubly linked */
-            if (parent != null) {
-                if (this.key < parent.key) {
-                    parent.setLeftChild(replacer);
-                } else {
-                    parent.setRightChild(replacer);
-                }
-            }
-            else {
-                replacer.parent = null;
-                root = replacer;
-                root.updateSubtreeSize();
-            }
+        @Override
+        public int getCount() {
+            return count;
         }
     }
-}
\ No newline at end of file
+}
@@ -1,91 +1,335 @@
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.List;
+import java.util.IdentityHashMap;
+import java.util.Set;
 
 /**
  * Credit to Amitai Cohen, the creator of the original code in python.
  * Ported by Yoav Sternberg
+ *
+ * The drawing is streamed row by row to a Writer. A layout of every subtree drawn, holding
+ * its width and where its root label lies, is computed first in one pass, and each row is
+ * then written by walking the layouts of the nodes it crosses, so no intermediate strings
+ * are built. The drawing, and the Graphviz DOT and JSON exports, can be limited to the top
+ * levels of the tree and to a number of nodes, which are chosen in breadth-first order, and
+ * can be focused on the subtree around a key. The cost of an export is then proportional to
+ * the part of the tree shown, whatever the size of the tree.
  */
 class WAVLTreePrinter {
+    private static final char[] SPACES = new char[256];
+    private static final char[] UNDERSCORES = new char[256];
+
+    static {
+        Arrays.fill(SPACES, ' ');
+        Arrays.fill(UNDERSCORES, '_');
+    }
+
     private WAVLTreePrinter(){}
 
+    /**
+     * The drawing of a subtree: the label of its root, the layouts of its children, its width
+     * and height in characters, and the columns where the label starts and ends. A null child
+     * is drawn as "." and a child left out by the limits as "...", both without children.
+     */
+    private static final class Layout {
+        private final String label;
+        private final Layout left;
+        private final Layout right;
+        private final int width;
+        private final int height;
+        private final int labelStart;
+
+        private Layout(String label) {
+            this.label = label;
+            this.left = null;
+            this.right = null;
+            this.width = label.length();
+            this.height = 1;
+            this.labelStart = 0;
+        }
+
+        private Layout(String label, Layout left, Layout right) {
+            this.label = label;
+            this.left = left;
+            this.right = right;
+            this.width = left.width + label.length() + right.width + 2;
+            this.height = 2 + Math.max(left.height, right.height);
+            this.labelStart = left.width + 1;
+        }
+
+        private int labelEnd() {
+            return labelStart + label.length();
+        }
+    }
+
+    private static final Layout NULL_CHILD = new Layout(".");
+    private static final Layout OMITTED_CHILD = new Layout("...");
+
     public static String toString(WAVLTree tree) {
         return toString(tree, true);
     }
 
     public static String toString(WAVLTree tree, boolean byKey) {
-        return String.join(System.lineSeparator(), repr(tree.getRoot(), byKey));
+        StringWriter out = new StringWriter();
+        try {
+            print(tree.getRoot(), out, byKey, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // cannot happen with a StringWriter
+        }
+        return out.toString();
     }
 
-    @SuppressWarnings("ConstantConditions")
-    private static List<String> repr(WAVLTree.WAVLNode node, boolean byKey) {
-        if (node == null) {
-            return Collections.singletonList(".");
+    /**
+     * Draws the subtree of the provided node to out, labelling nodes by key or by value.
+     * Tombstones are labelled in brackets. Only the nodes up to maxDepth levels below the
+     * node are drawn, and at most maxNodes of them, taken level by level. Rows are separated
+     * by line separators, without one after the last row.
+     *
+     * @param node          the root of the subtree drawn, which may be null
+     * @param out           the writer the drawing is streamed to
+     * @param byKey         true to label nodes by key, false to label them by value
+     * @param maxDepth      the depth of the deepest nodes drawn, 0 for the node alone
+     * @param maxNodes      the maximal number of nodes drawn
+     * @throws IOException  if writing fails
+     */
+    public static void print(WAVLTree.WAVLNode node, Writer out, boolean byKey, int maxDepth,
+                             int maxNodes) throws IOException {
+        Layout layout = layout(node, visibleNodes(node, maxDepth, maxNodes), byKey);
+        for (int row = 0; row < layout.height; row++) {
+            if (row > 0)
+                out.write(System.lineSeparator());
+            writeRow(layout, row, out);
         }
+    }
 
-        if (!node.isInnerNode()) {
-            return Collections.singletonList(String.valueOf(node.getKey()));
+    /**
+     * Returns the root of the subtree around key k: the node of k, or the node under which k
+     * would be inserted if it is not in the tree, or the ancestor of that node levelsAbove
+     * levels higher, or the root if there are fewer levels above it. Printing this subtree
+     * shows the neighbourhood of k in the tree.
+     *
+     * @param tree          a tree
+     * @param k             the key focused on
+     * @param levelsAbove   the number of levels to climb from the node of k
+     * @return              the root of the subtree around k, or null if the tree is empty
+     */
+    public static WAVLTree.WAVLNode focus(WAVLTree tree, int k, int levelsAbove) {
+        WAVLTree.WAVLNode node = tree.getRoot();
+        while (node != null && node.getKey() != k) {
+            WAVLTree.WAVLNode next = k < node.getKey() ? node.getLeft() : node.getRight();
+            if (next == null)
+                break;
+            node = next;
         }
+        for (int i = 0; i < levelsAbove && node != null && node.getParent() != null; i++) {
+            node = node.getParent();
+        }
+        return node;
+    }
 
-        String thisString = byKey ? String.valueOf(node.getKey()) : node.getValue();
+    /**
+     * Exports the subtree of the provided node as a Graphviz DOT digraph, limited as print is.
+     * Each node is annotated with its rank, its rank differences and its subtree size, and
+     * each edge with the rank difference of the child. Subtrees left out by the limits appear
+     * as "..." nodes.
+     *
+     * @param node          the root of the subtree exported, which may be null
+     * @param out           the writer the graph is streamed to
+     * @param maxDepth      the depth of the deepest nodes exported, 0 for the node alone
+     * @param maxNodes      the maximal number of nodes exported
+     * @throws IOException  if writing fails
+     */
+    public static void writeDot(WAVLTree.WAVLNode node, Writer out, int maxDepth, int maxNodes)
+            throws IOException {
+        Set<WAVLTree.WAVLNode> visible = visibleNodes(node, maxDepth, maxNodes);
+        out.write("digraph WAVLTree {" + System.lineSeparator());
+        out.write("  node [shape=box, fontname=monospace];" + System.lineSeparator());
 
-        return concatenation(repr(node.getLeft(), byKey), thisString, repr(node.getRight(), byKey));
+        ArrayDeque<WAVLTree.WAVLNode> queue = new ArrayDeque<>();
+        if (node != null)
+            queue.add(node);
+        int omitted = 0;
+        while (!queue.isEmpty()) {
+            WAVLTree.WAVLNode n = queue.poll();
+            out.write("  n" + n.getKey() + " [label=\"" + n.getKey() + (n.isDeleted() ? " (deleted)" : "")
+                    + "\\nrank " + n.getRank() + " (" + rankDiff(n, n.getLeft()) + "," + rankDiff(n, n.getRight())
+                    + ")\\nsize " + n.getSubtreeSize() + "\"];" + System.lineSeparator());
+            for (WAVLTree.WAVLNode child : new WAVLTree.WAVLNode[]{n.getLeft(), n.getRight()}) {
+                if (child == null)
+                    continue;
+                String target;
+                if (visible.contains(child)) {
+                    target = "n" + child.getKey();
+                    queue.add(child);
+                } else {
+                    target = "omitted" + omitted++;
+                    out.write("  " + target + " [label=\"...\", shape=plaintext];" + System.lineSeparator());
+                }
+                out.write("  n" + n.getKey() + " -> " + target + " [label=\"" + rankDiff(n, child) + "\"];"
+                        + System.lineSeparator());
+            }
+        }
+        out.write("}" + System.lineSeparator());
     }
 
-    private static List<String> concatenation(List<String> left, String root, List<String> right) {
-        int lwid = left.get(left.size()-1).length();
-        int rwid = right.get(right.size()-1).length();
-        int rootwid = root.length();
-
-        ArrayList<String> result = new ArrayList<>();
-        result.add(repeat(lwid+1, " ") + root + repeat(rwid+1, " "));
+    /**
+     * Exports the subtree of the provided node as a JSON object, limited as print is. Each
+     * node is an object with its key, value, rank, rank differences, subtree size and
+     * tombstone flag, and its left and right children, which are null for missing children
+     * and the string "..." for subtrees left out by the limits.
+     *
+     * @param node          the root of the subtree exported, which may be null
+     * @param out           the writer the JSON is streamed to
+     * @param maxDepth      the depth of the deepest nodes exported, 0 for the node alone
+     * @param maxNodes      the maximal number of nodes exported
+     * @throws IOException  if writing fails
+     */
+    public static void writeJson(WAVLTree.WAVLNode node, Writer out, int maxDepth, int maxNodes)
+            throws IOException {
+        writeJson(node, visibleNodes(node, maxDepth, maxNodes), out);
+    }
 
-        int ls = leftSpace(left.get(0));
-        int rs = rightSpace(right.get(0));
-        result.add(repeat(ls, " ") + repeat(lwid-ls,"_") + "/" + repeat(rootwid, " ") + "\\" + repeat(rs, "_") + repeat(rwid-rs, " "));
+    private static void writeJson(WAVLTree.WAVLNode node, Set<WAVLTree.WAVLNode> visible, Writer out)
+            throws IOException {
+        if (node == null) {
+            out.write("null");
+            return;
+        }
+        if (!visible.contains(node)) {
+            out.write("\"...\"");
+            return;
+        }
+        out.write("{\"key\":" + node.getKey() + ",\"value\":");
+        writeJsonString(node.getValue(), out);
+        out.write(",\"rank\":" + node.getRank() + ",\"rankDiffs\":[" + rankDiff(node, node.getLeft()) + ","
+                + rankDiff(node, node.getRight()) + "],\"subtreeSize\":" + node.getSubtreeSize()
+                + ",\"deleted\":" + node.isDeleted() + ",\"left\":");
+        writeJson(node.getLeft(), visible, out);
+        out.write(",\"right\":");
+        writeJson(node.getRight(), visible, out);
+        out.write('}');
+    }
 
-        for (int i = 0; i < Math.max(left.size(), right.size()); i++) {
-            String row = "";
-            if (i < left.size()) {
-                row += left.get(i);
-            } else {
-                row += repeat(lwid, " ");
-            }
-            row += repeat(rootwid+2, " ");
-            if (i < right.size()) {
-                row += right.get(i);
+    private static void writeJsonString(String s, Writer out) throws IOException {
+        if (s == null) {
+            out.write("null");
+            return;
+        }
+        out.write('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < 0x20) {
+                out.write(String.format("\\u%04x", (int) c));
             } else {
-                row += repeat(rwid," ");
+                out.write(c);
             }
-            result.add(row);
         }
-        return result;
+        out.write('"');
     }
 
-    private static String repeat(int n, String s) {
-        if (n <= 0) {
-            return "";
-        }
-        StringBuilder builder = new StringBuilder(s.length() * n);
-        for (int i = 0; i < n; i++) {
-            builder.append(s);
+    private static int rankDiff(WAVLTree.WAVLNode node, WAVLTree.WAVLNode child) {
+        return node.getRank() - (child == null ? -1 : child.getRank());
+    }
+
+    /**
+     * Returns the nodes shown under the limits: a breadth-first walk from the provided node,
+     * down to maxDepth levels below it, stopped after maxNodes nodes. This runs in time
+     * proportional to the number of nodes returned.
+     */
+    private static Set<WAVLTree.WAVLNode> visibleNodes(WAVLTree.WAVLNode node, int maxDepth, int maxNodes) {
+        Set<WAVLTree.WAVLNode> visible = Collections.newSetFromMap(new IdentityHashMap<>());
+        ArrayDeque<WAVLTree.WAVLNode> level = new ArrayDeque<>();
+        if (node != null)
+            level.add(node);
+        for (int depth = 0; depth <= maxDepth && !level.isEmpty(); depth++) {
+            ArrayDeque<WAVLTree.WAVLNode> next = new ArrayDeque<>();
+            for (WAVLTree.WAVLNode n : level) {
+                if (visible.size() >= maxNodes)
+                    return visible;
+                visible.add(n);
+                if (n.getLeft() != null)
+                    next.add(n.getLeft());
+                if (n.getRight() != null)
+                    next.add(n.getRight());
+            }
+            level = next;
         }
-        return builder.toString();
+        return visible;
     }
 
-    private static int leftSpace(String row) {
-        int i = row.length() - 1;
-        while (row.charAt(i) == ' ') {
-            i-=1;
+    /**
+     * Computes the layouts of the subtree of the provided node, restricted to the visible
+     * nodes. The recursion depth is bounded by the height of the tree.
+     */
+    private static Layout layout(WAVLTree.WAVLNode node, Set<WAVLTree.WAVLNode> visible, boolean byKey) {
+        if (node == null)
+            return NULL_CHILD;
+        if (!visible.contains(node))
+            return OMITTED_CHILD;
+
+        String label = byKey || !node.isInnerNode() ? String.valueOf(node.getKey()) : node.getValue();
+        if (node.isDeleted())
+            label = "[" + label + "]";
+        return new Layout(label, layout(node.getLeft(), visible, byKey), layout(node.getRight(), visible, byKey));
+    }
+
+    /**
+     * Writes a row of the drawing of a subtree, padded to the subtree's width. Row 0 holds
+     * the root label, row 1 the branches to the children, and the rows below them the rows
+     * of the children's drawings side by side.
+     */
+    private static void writeRow(Layout layout, int row, Writer out) throws IOException {
+        if (layout.left == null) { // "." or "..."
+            if (row == 0)
+                out.write(layout.label);
+            else
+                repeat(SPACES, layout.width, out);
+            return;
+        }
+
+        int lwid = layout.left.width;
+        int rwid = layout.right.width;
+        int rootwid = layout.label.length();
+        if (row == 0) {
+            repeat(SPACES, lwid + 1, out);
+            out.write(layout.label);
+            repeat(SPACES, rwid + 1, out);
+        } else if (row == 1) {
+            int ls = layout.left.labelEnd();
+            int rs = layout.right.labelStart;
+            repeat(SPACES, ls, out);
+            repeat(UNDERSCORES, lwid - ls, out);
+            out.write('/');
+            repeat(SPACES, rootwid, out);
+            out.write('\\');
+            repeat(UNDERSCORES, rs, out);
+            repeat(SPACES, rwid - rs, out);
+        } else {
+            if (row - 2 < layout.left.height)
+                writeRow(layout.left, row - 2, out);
+            else
+                repeat(SPACES, lwid, out);
+            repeat(SPACES, rootwid + 2, out);
+            if (row - 2 < layout.right.height)
+                writeRow(layout.right, row - 2, out);
+            else
+                repeat(SPACES, rwid, out);
         }
-        return i+1;
     }
 
-    private static int rightSpace(String row) {
-        int i = 0;
-        while (row.charAt(i) == ' ') {
-            i+=1;
+    private static void repeat(char[] chars, int n, Writer out) throws IOException {
+        while (n > 0) {
+            int chunk = Math.min(n, chars.length);
+            out.write(chars, 0, chunk);
+            n -= chunk;
         }
-        return i;
     }
-}
\ No newline at end of file
+}